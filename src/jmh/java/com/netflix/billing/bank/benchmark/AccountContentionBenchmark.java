@@ -0,0 +1,128 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.CreditBalanceTable;
+import com.netflix.billing.bank.service.AccountSynchronizer;
+
+/**
+ * One writer and 32 readers on a single hot account. The writer moves amounts
+ * between two credit types of the balance table under the write lock, the
+ * readers read both of them. The rwLock group is the ReentrantReadWriteLock
+ * the AccountSynchronizer used to wrap, readLock and optimistic use the
+ * StampedLock backed AccountSynchronizer.
+ *
+ * @author rkata
+ *
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AccountContentionBenchmark {
+
+	private static final int READERS = 32;
+
+	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+	private final AccountSynchronizer accountSync = new AccountSynchronizer("hot-customer");
+
+	private CreditBalanceTable balance;
+
+	@Setup
+	public void setup() {
+		balance = new CreditBalanceTable();
+		balance.add(CreditType.GIFTCARD, 1_000_000);
+	}
+
+	@Benchmark
+	@Group("rwLock")
+	@GroupThreads(1)
+	public void rwLockWriter() {
+		rwLock.writeLock().lock();
+		try {
+			moveBalance();
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	@Benchmark
+	@Group("rwLock")
+	@GroupThreads(READERS)
+	public long rwLockReader() {
+		rwLock.readLock().lock();
+		try {
+			return readBalance();
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	@Benchmark
+	@Group("readLock")
+	@GroupThreads(1)
+	public void readLockWriter() {
+		accountSync.acquireWriteLock();
+		try {
+			moveBalance();
+		} finally {
+			accountSync.releaseWriteLock();
+		}
+	}
+
+	@Benchmark
+	@Group("readLock")
+	@GroupThreads(READERS)
+	public long readLockReader() {
+		accountSync.acquireReadLock();
+		try {
+			return readBalance();
+		} finally {
+			accountSync.releaseReadLock();
+		}
+	}
+
+	@Benchmark
+	@Group("optimistic")
+	@GroupThreads(1)
+	public void optimisticWriter() {
+		accountSync.acquireWriteLock();
+		try {
+			moveBalance();
+		} finally {
+			accountSync.releaseWriteLock();
+		}
+	}
+
+	@Benchmark
+	@Group("optimistic")
+	@GroupThreads(READERS)
+	public long optimisticReader() {
+		return accountSync.readOptimistically(this::readBalance);
+	}
+
+	private void moveBalance() {
+		balance.add(CreditType.GIFTCARD, -1);
+		balance.add(CreditType.CASH, 1);
+		if (!balance.hasBalance(CreditType.GIFTCARD)) {
+			balance.add(CreditType.GIFTCARD, balance.get(CreditType.CASH));
+			balance.add(CreditType.CASH, -balance.get(CreditType.CASH));
+		}
+	}
+
+	private long readBalance() {
+		return balance.get(CreditType.GIFTCARD) + balance.get(CreditType.CASH);
+	}
+
+}
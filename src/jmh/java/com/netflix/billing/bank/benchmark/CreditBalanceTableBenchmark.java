@@ -0,0 +1,88 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.CreditBalanceTable;
+
+/**
+ * Compares the boxed ConcurrentHashMap balance that CustomerAccountByCurrency
+ * used to keep with the CreditBalanceTable. Each operation credits a type,
+ * debits it and reads the total balance the way a debit request does. Run
+ * with the gc profiler (the default for ./gradlew jmh) and compare
+ * gc.alloc.rate.norm, the table should report 0 bytes per operation.
+ *
+ * @author rkata
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CreditBalanceTableBenchmark {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	private ConcurrentMap<CreditType, Long> boxedBalance;
+	private CreditBalanceTable balanceTable;
+	private int next;
+
+	@Setup
+	public void setup() {
+		boxedBalance = new ConcurrentHashMap<>();
+		balanceTable = new CreditBalanceTable();
+		for (CreditType creditType : CREDIT_TYPES) {
+			updateBoxedBalance(creditType, 1_000_000L);
+			balanceTable.add(creditType, 1_000_000L);
+		}
+	}
+
+	@Benchmark
+	public long boxedMapCreditDebitAndTotal() {
+		CreditType creditType = nextCreditType();
+		updateBoxedBalance(creditType, 1_500L);
+		updateBoxedBalance(creditType, -1_250L);
+		long totalBalance = 0;
+		for (Long balance : boxedBalance.values()) {
+			totalBalance += balance;
+		}
+		return totalBalance;
+	}
+
+	@Benchmark
+	public long balanceTableCreditDebitAndTotal() {
+		CreditType creditType = nextCreditType();
+		balanceTable.add(creditType, 1_500L);
+		balanceTable.add(creditType, -1_250L);
+		return balanceTable.getTotal();
+	}
+
+	private CreditType nextCreditType() {
+		next = (next + 1) % CREDIT_TYPES.length;
+		return CREDIT_TYPES[next];
+	}
+
+	// copy of the balance update CustomerAccountByCurrency used to do.
+	private void updateBoxedBalance(CreditType creditType, Long creditAmt) {
+		Long curBalance = boxedBalance.get(creditType);
+		if (curBalance == null) {
+			curBalance = Long.valueOf(0);
+		}
+
+		curBalance = curBalance + creditAmt;
+		if (curBalance == 0) {
+			boxedBalance.remove(creditType);
+		} else {
+			boxedBalance.put(creditType, curBalance);
+		}
+	}
+}
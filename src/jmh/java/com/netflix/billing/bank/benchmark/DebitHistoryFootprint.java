@@ -0,0 +1,127 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.time.Instant;
+import java.util.LinkedList;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+
+/**
+ * Measures the retained heap per debit lineitem of the DebitHistoryStore and
+ * of the LinkedList<ProcessedDebit> layout CustomerAccountByCurrency used to
+ * keep, where every lineitem pointed back to the BankingTransaction of the
+ * debit holding the raw request json.
+ *
+ * Heap is sampled after forcing a few gcs, so run it alone on a quiet jvm:
+ *
+ * <pre>
+ *   ./gradlew jmhJar
+ *   java -cp build/libs/billingbank-0.0.1-SNAPSHOT-jmh.jar \
+ *        com.netflix.billing.bank.benchmark.DebitHistoryFootprint 1000000
+ * </pre>
+ *
+ * @author rkata
+ *
+ */
+public class DebitHistoryFootprint {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	// number of lineitems a debit spans.
+	private static final int LINEITEMS_PER_DEBIT = 2;
+
+	public static void main(String[] args) {
+		int debits = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int lineItems = debits * LINEITEMS_PER_DEBIT;
+
+		// ids are created upfront and shared by both layouts, like the ids of the
+		// credits and of the requests are in the bank.
+		String[] invoiceIds = new String[debits];
+		String[] transactionIds = new String[lineItems];
+		for (int i = 0; i < debits; i++) {
+			invoiceIds[i] = "inv-" + i;
+		}
+		for (int i = 0; i < lineItems; i++) {
+			transactionIds[i] = "trans-" + i;
+		}
+
+		long baseline = usedHeap();
+		LinkedList<LegacyProcessedDebit> legacy = buildLegacy(invoiceIds, transactionIds);
+		long legacyBytes = usedHeap() - baseline;
+		System.out.println("legacy layout    : " + legacy.size() + " lineitems, " + (legacyBytes / lineItems)
+				+ " bytes per lineitem");
+		legacy = null;
+
+		baseline = usedHeap();
+		DebitHistoryStore columnar = buildColumnar(invoiceIds, transactionIds);
+		long columnarBytes = usedHeap() - baseline;
+		System.out.println("columnar store   : " + columnar.size() + " lineitems, " + (columnarBytes / lineItems)
+				+ " bytes per lineitem");
+	}
+
+	private static LinkedList<LegacyProcessedDebit> buildLegacy(String[] invoiceIds, String[] transactionIds) {
+		LinkedList<LegacyProcessedDebit> processedDebits = new LinkedList<>();
+		int lineItem = 0;
+		for (int i = 0; i < invoiceIds.length; i++) {
+			LegacyTransaction transaction = new LegacyTransaction(invoiceIds[i]);
+			for (int j = 0; j < LINEITEMS_PER_DEBIT; j++, lineItem++) {
+				LegacyProcessedDebit debit = new LegacyProcessedDebit(transaction);
+				debit.amount = Long.valueOf(1000 + lineItem);
+				debit.transactionId = transactionIds[lineItem];
+				debit.creditType = CREDIT_TYPES[lineItem % CREDIT_TYPES.length];
+				processedDebits.add(debit);
+			}
+		}
+		return processedDebits;
+	}
+
+	private static DebitHistoryStore buildColumnar(String[] invoiceIds, String[] transactionIds) {
+		DebitHistoryStore processedDebits = new DebitHistoryStore();
+		int lineItem = 0;
+		for (int i = 0; i < invoiceIds.length; i++) {
+			Instant transactionTime = Instant.now();
+			for (int j = 0; j < LINEITEMS_PER_DEBIT; j++, lineItem++) {
+				processedDebits.append(invoiceIds[i], transactionIds[lineItem],
+						CREDIT_TYPES[lineItem % CREDIT_TYPES.length], 1000 + lineItem, transactionTime);
+			}
+		}
+		return processedDebits;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// shape of the BankingTransaction a ProcessedDebit used to point to.
+	private static final class LegacyTransaction {
+		private final String id;
+		private final String customerId = "cust-123";
+		private final String transactionId;
+		private final Object transactionType = "DEBIT";
+		private final String request;
+		private Object status = "SUCESS";
+		private final Instant transactionTime = Instant.now();
+
+		private LegacyTransaction(String invoiceId) {
+			this.id = customerId + "-" + invoiceId;
+			this.transactionId = invoiceId;
+			this.request = "{\"invoiceId\":\"" + invoiceId + "\",\"money\":{\"amount\":25,\"currency\":\"USD\"}}";
+		}
+	}
+
+	// shape of the ProcessedDebit CustomerAccountByCurrency used to keep.
+	private static final class LegacyProcessedDebit {
+		private final LegacyTransaction curTransaction;
+		private Long amount;
+		private String transactionId;
+		private CreditType creditType;
+
+		private LegacyProcessedDebit(LegacyTransaction curTransaction) {
+			this.curTransaction = curTransaction;
+		}
+	}
+}
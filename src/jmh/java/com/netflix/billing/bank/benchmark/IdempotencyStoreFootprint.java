@@ -0,0 +1,105 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.GlobalIdempotentTransactionStore;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.OffHeapIdempotentTransactionStore;
+import com.netflix.billing.bank.service.WindowedIdempotentTransactionStore;
+
+/**
+ * Measures the retained heap per key and the latency of a lookup of the
+ * idempotency stores. The keys are spread over 30 days of traffic, the
+ * windowed store keeps them in the given number of generations, a lookup of an
+ * unknown key goes through all of them. The offheap store keeps the keys out
+ * of the heap, its off-heap bytes are reported next to the heap.
+ *
+ * Heap is sampled after forcing a few gcs, so run it alone on a quiet jvm
+ * with a heap large enough for the keys, around 20g for 100M keys:
+ *
+ * <pre>
+ *   ./gradlew jmhJar
+ *   java -Xmx20g -cp build/libs/billingbank-0.0.1-SNAPSHOT-jmh.jar \
+ *        com.netflix.billing.bank.benchmark.IdempotencyStoreFootprint 100000000 windowed 8
+ * </pre>
+ *
+ * @author rkata
+ *
+ */
+public class IdempotencyStoreFootprint {
+
+	private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+
+	private static final int DAYS = 30;
+
+	private static final int CUSTOMERS = 1_000_000;
+
+	private static final int LOOKUPS = 10_000_000;
+
+	public static void main(String[] args) {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		String storeType = args.length > 1 ? args[1] : "windowed";
+		int generations = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		long baseline = usedHeap();
+		GlobalIdempotentTransactionStore store;
+		if ("windowed".equals(storeType)) {
+			store = new WindowedIdempotentTransactionStore(Duration.ofDays(DAYS).getSeconds(), generations, 0);
+		} else if ("offheap".equals(storeType)) {
+			store = new OffHeapIdempotentTransactionStore(64, 16384);
+		} else {
+			store = new IdempotentTransactionStoreImpl();
+		}
+		long dayNanos = Duration.ofDays(1).toNanos();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < keys; i++) {
+			// keys arrive in time order over the days.
+			Instant transactionTime = START.plusNanos((long) ((double) i / keys * DAYS * dayNanos));
+			store.recordTransactionIfNotAvailable(new BankingTransaction(key(i), TransactionType.CREDIT,
+					transactionTime));
+		}
+		long recordNanos = System.nanoTime() - startTime;
+		long storeBytes = usedHeap() - baseline;
+		System.out.println(storeType + " store : " + keys + " keys, " + (storeBytes / keys) + " bytes per key, "
+				+ (recordNanos / keys) + " ns per record");
+		if (store instanceof OffHeapIdempotentTransactionStore) {
+			System.out.println(storeType + " store : "
+					+ (((OffHeapIdempotentTransactionStore) store).getOffHeapBytes() / keys) + " off-heap bytes per key");
+		}
+
+		// lookups of random keys, half of them unknown.
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		TransactionKey[] lookups = new TransactionKey[1024];
+		for (int i = 0; i < lookups.length; i++) {
+			lookups[i] = key(random.nextInt(keys << 1 > 0 ? keys << 1 : Integer.MAX_VALUE));
+		}
+		int found = 0;
+		startTime = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			if (store.getCurTransaction(lookups[i & (lookups.length - 1)], TransactionType.CREDIT) != null) {
+				found++;
+			}
+		}
+		long lookupNanos = System.nanoTime() - startTime;
+		System.out.println(storeType + " store : " + (lookupNanos / LOOKUPS) + " ns per lookup, " + found
+				+ " found");
+	}
+
+	private static TransactionKey key(int i) {
+		return TransactionKey.forCredit("cust-" + (i % CUSTOMERS), CreditType.CASH, "trans-" + i);
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
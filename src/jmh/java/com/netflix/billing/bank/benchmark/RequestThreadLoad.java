@@ -0,0 +1,330 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+
+import com.netflix.billing.bank.BillingbankApplication;
+import com.netflix.billing.bank.service.VirtualThreads;
+
+/**
+ * Load test of the request threads, starts the bank once per mode and runs the
+ * given number of concurrent clients against it, each client on a keep-alive
+ * connection of its own posting a credit and a debit of one of the customers
+ * in a loop. A few customers for many clients keeps the account locks
+ * contended. Reports the requests per second and the latency percentiles of
+ * each mode, platform runs the requests on the Tomcat pool, virtual on a
+ * virtual thread each.
+ *
+ * Needs java 21 or later for the virtual mode, the clients run on virtual
+ * threads too when the jvm has them so that both modes are driven the same
+ * way. Every client holds a socket on both ends, raise the open files limit
+ * past twice the clients. Add -Djdk.tracePinnedThreads=short to report the
+ * virtual threads pinned to their carrier while blocking. The proxies of
+ * spring 5.0 need java.lang opened on java 17 and later, and Tomcat 8.5 fails
+ * to stop without java.io opened:
+ *
+ * <pre>
+ *   ./gradlew jmhJar
+ *   ulimit -n 65536
+ *   java -Xmx4g --add-opens java.base/java.lang=ALL-UNNAMED --add-opens java.base/java.io=ALL-UNNAMED \
+ *        -cp build/libs/billingbank-0.0.1-SNAPSHOT-jmh.jar \
+ *        com.netflix.billing.bank.benchmark.RequestThreadLoad 10000 30 100 platform,virtual
+ * </pre>
+ *
+ * @author rkata
+ *
+ */
+public class RequestThreadLoad {
+
+	private static final int WARMUP_SECONDS = 10;
+
+	// latencies are kept in microseconds with 32 sub buckets per power of two,
+	// within about 3% of the recorded value.
+	private static final int SUB_BUCKETS = 32;
+	private static final int BUCKETS = SUB_BUCKETS * 40;
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		int customers = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		String[] modes = (args.length > 3 ? args[3] : "platform,virtual").split(",");
+
+		if (!VirtualThreads.isSupported()) {
+			System.out.println("No virtual threads on java " + System.getProperty("java.version")
+					+ ", the virtual mode runs on platform threads.");
+		}
+		for (String mode : modes) {
+			System.out.println(run(mode, clients, seconds, customers));
+		}
+	}
+
+	private static String run(String mode, int clients, int seconds, int customers) throws Exception {
+		ServletWebServerApplicationContext context = (ServletWebServerApplicationContext) SpringApplication.run(
+				BillingbankApplication.class, "--server.port=0", "--logging.level.root=WARN",
+				"--billingbank.threads.virtual=" + "virtual".equals(mode),
+				"--server.tomcat.max-connections=" + (clients + 1000),
+				"--server.tomcat.accept-count=" + Math.min(clients, 10_000));
+		try {
+			int port = context.getWebServer().getPort();
+			Load load = new Load();
+			ThreadFactory threadFactory = VirtualThreads.newThreadFactory("load-client-");
+			if (threadFactory == null) {
+				threadFactory = r -> new Thread(null, r, "load-client", 256 * 1024);
+			}
+
+			CountDownLatch connected = new CountDownLatch(clients);
+			List<Thread> threads = new ArrayList<>(clients);
+			for (int i = 0; i < clients; i++) {
+				Thread thread = threadFactory.newThread(new Client(load, port, mode + "-" + i,
+						"load-customer-" + (i % customers), connected));
+				thread.setDaemon(true);
+				threads.add(thread);
+				thread.start();
+			}
+			connected.await();
+
+			Thread.sleep(WARMUP_SECONDS * 1000l);
+			load.measuring = true;
+			long startNanos = System.nanoTime();
+			Thread.sleep(seconds * 1000l);
+			load.measuring = false;
+			double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+			load.running = false;
+			for (Thread thread : threads) {
+				thread.join(10_000);
+			}
+
+			return String.format("%-8s : %d clients, %.0f requests/s, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms,"
+					+ " max %.2f ms, %d errors", mode, clients, load.requests.sum() / elapsedSeconds,
+					load.percentile(0.50) / 1000d, load.percentile(0.99) / 1000d, load.percentile(0.999) / 1000d,
+					load.maxMicros / 1000d, load.errors.sum());
+		} finally {
+			context.close();
+		}
+	}
+
+	private static final class Load {
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private volatile boolean measuring;
+		private volatile boolean running = true;
+		private volatile long maxMicros;
+
+		private void record(long micros, boolean failed) {
+			if (!measuring) {
+				return;
+			}
+			requests.increment();
+			if (failed) {
+				errors.increment();
+			}
+			histogram.incrementAndGet(bucket(micros));
+			if (micros > maxMicros) {
+				// racy, good enough for the report.
+				maxMicros = micros;
+			}
+		}
+
+		private long percentile(double percentile) {
+			long total = 0l;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += histogram.get(i);
+			}
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0l;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += histogram.get(i);
+				if (seen >= rank && seen > 0) {
+					return value(i);
+				}
+			}
+			return 0l;
+		}
+
+		private static int bucket(long micros) {
+			if (micros < SUB_BUCKETS) {
+				return (int) Math.max(0l, micros);
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+			int index = (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+			return Math.min(BUCKETS - 1, index);
+		}
+
+		private static long value(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		}
+	}
+
+	/**
+	 * Posts a credit and a debit of its customer in a loop over a keep-alive
+	 * connection, the debit takes back the credit so the balance never runs out.
+	 * Connects again when the server closes the connection, Tomcat closes it after
+	 * 100 requests.
+	 */
+	private static final class Client implements Runnable {
+		private final Load load;
+		private final int port;
+		private final String clientId;
+		private final String customerId;
+		private final CountDownLatch connected;
+
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		// the server closes the connection after the last response.
+		private boolean closing;
+
+		private Client(Load load, int port, String clientId, String customerId, CountDownLatch connected) {
+			this.load = load;
+			this.port = port;
+			this.clientId = clientId;
+			this.customerId = customerId;
+			this.connected = connected;
+		}
+
+		@Override
+		public void run() {
+			try {
+				connect();
+			} catch (IOException e) {
+				load.errors.increment();
+				return;
+			} finally {
+				connected.countDown();
+			}
+
+			try {
+				for (long i = 0; load.running; i++) {
+					String id = clientId + "-" + i;
+					post("/customer/" + customerId + "/credit", "{\"transactionId\":\"" + id
+							+ "\",\"creditType\":\"CASH\",\"money\":{\"amount\":1,\"currency\":\"USD\"}}");
+					post("/customer/" + customerId + "/debit",
+							"{\"invoiceId\":\"" + id + "\",\"money\":{\"amount\":1,\"currency\":\"USD\"}}");
+				}
+			} catch (IOException e) {
+				if (load.running) {
+					load.errors.increment();
+				}
+			} finally {
+				close();
+			}
+		}
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress("127.0.0.1", port), 60_000);
+			socket.setTcpNoDelay(true);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+			closing = false;
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway.
+			}
+		}
+
+		private void post(String path, String body) throws IOException {
+			if (closing) {
+				close();
+				connect();
+			}
+			byte[] content = body.getBytes(StandardCharsets.UTF_8);
+			String head = "POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+					+ "Content-Length: " + content.length + "\r\n\r\n";
+			long startNanos = System.nanoTime();
+			out.write(head.getBytes(StandardCharsets.US_ASCII));
+			out.write(content);
+			out.flush();
+			int status = readResponse();
+			load.record((System.nanoTime() - startNanos) / 1000l, status != 200);
+		}
+
+		/**
+		 *
+		 * @return the status of the response, its body is skipped.
+		 */
+		private int readResponse() throws IOException {
+			String statusLine = readLine(in);
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			long contentLength = -1l;
+			boolean chunked = false;
+			for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+				String name = header.substring(0, Math.max(0, header.indexOf(':'))).trim();
+				String value = header.substring(header.indexOf(':') + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					contentLength = Long.parseLong(value);
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					chunked = "chunked".equalsIgnoreCase(value);
+				} else if ("Connection".equalsIgnoreCase(name)) {
+					closing = "close".equalsIgnoreCase(value);
+				}
+			}
+			if (chunked) {
+				for (long size = chunkSize(readLine(in)); size > 0; size = chunkSize(readLine(in))) {
+					skip(in, size);
+					readLine(in);
+				}
+				while (!readLine(in).isEmpty()) {
+					// trailers.
+				}
+			} else if (contentLength > 0) {
+				skip(in, contentLength);
+			}
+			return status;
+		}
+
+		private static long chunkSize(String line) {
+			int extension = line.indexOf(';');
+			return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int b = in.read(); b != '\n'; b = in.read()) {
+				if (b < 0) {
+					throw new IOException("Connection closed by the server");
+				}
+				if (b != '\r') {
+					line.append((char) b);
+				}
+			}
+			return line.toString();
+		}
+
+		private static void skip(InputStream in, long bytes) throws IOException {
+			for (long left = bytes; left > 0;) {
+				long skipped = in.skip(left);
+				if (skipped <= 0) {
+					if (in.read() < 0) {
+						throw new IOException("Connection closed by the server");
+					}
+					skipped = 1;
+				}
+				left -= skipped;
+			}
+		}
+	}
+}
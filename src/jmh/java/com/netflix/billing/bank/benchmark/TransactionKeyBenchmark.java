@@ -0,0 +1,74 @@
+package com.netflix.billing.bank.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.TransactionKey;
+
+/**
+ * Builds the idempotency key of a credit and looks it up in a map holding
+ * 100k keys. The string variant does what the credit path used to do, format
+ * the key once for the idempotency store and once more for the
+ * ProcessedCredit.
+ *
+ * @author rkata
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransactionKeyBenchmark {
+
+	private static final int KEYS = 100_000;
+
+	private final ConcurrentHashMap<String, Boolean> stringKeys = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<TransactionKey, Boolean> transactionKeys = new ConcurrentHashMap<>();
+
+	private String[] customerIds;
+	private String[] transactionIds;
+	private int next;
+
+	@Setup
+	public void setup() {
+		customerIds = new String[KEYS];
+		transactionIds = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			customerIds[i] = "cust-" + i;
+			transactionIds[i] = "trans-" + (i * 7);
+			stringKeys.put(String.format("%s-%s-%s", customerIds[i], CreditType.PROMOTION.ordinal(),
+					transactionIds[i]), Boolean.TRUE);
+			transactionKeys.put(TransactionKey.forCredit(customerIds[i], CreditType.PROMOTION, transactionIds[i]),
+					Boolean.TRUE);
+		}
+	}
+
+	@Benchmark
+	public Boolean formattedStringKey() {
+		int i = nextIndex();
+		String id = String.format("%s-%s-%s", customerIds[i], CreditType.PROMOTION.ordinal(), transactionIds[i]);
+		String creditTransId = String.format("ctype-%s-%s", CreditType.PROMOTION.ordinal(), transactionIds[i]);
+		Boolean seen = stringKeys.get(id);
+		return creditTransId.isEmpty() ? null : seen;
+	}
+
+	@Benchmark
+	public Boolean transactionKey() {
+		int i = nextIndex();
+		TransactionKey id = TransactionKey.forCredit(customerIds[i], CreditType.PROMOTION, transactionIds[i]);
+		return transactionKeys.get(id);
+	}
+
+	private int nextIndex() {
+		next = (next + 7919) % KEYS;
+		return next;
+	}
+}
@@ -0,0 +1,41 @@
+package com.netflix.billing.bank;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.netflix.billing.bank.controller.wire.BulkImportReport;
+import com.netflix.billing.bank.service.BulkImportService;
+import com.netflix.billing.bank.service.JsonUtils;
+
+/**
+ * Command line entry-point to import credits and debits from a newline
+ * delimited json file, or from stdin when the file is "-". The application
+ * context is started without the web server, the remaining arguments are
+ * passed on to Spring, e.g --billingbank.import.batch-size=5000.
+ */
+public class BulkImportApplication {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: BulkImportApplication <file.ndjson|-> [--property=value ...]");
+			System.exit(2);
+		}
+
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(BillingbankApplication.class)
+				.web(WebApplicationType.NONE).run(Arrays.copyOfRange(args, 1, args.length));
+		try {
+			BulkImportService importService = context.getBean(BulkImportService.class);
+			BulkImportReport report = "-".equals(args[0]) ? importService.importNdjson(System.in)
+					: importService.importFile(Paths.get(args[0]));
+			System.out.println(JsonUtils.writeValueAsString(report));
+		} finally {
+			context.close();
+		}
+	}
+
+}
@@ -1,6 +1,34 @@
 package com.netflix.billing.bank.config;
 
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.coyote.AbstractProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import com.netflix.billing.bank.service.AccountLockTable;
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore;
+import com.netflix.billing.bank.service.CustomerAccountRegistry;
+import com.netflix.billing.bank.service.GlobalIdempotentTransactionStore;
+import com.netflix.billing.bank.service.IdempotentTransactionStore;
+import com.netflix.billing.bank.service.LockWaitExecutor;
+import com.netflix.billing.bank.service.LockWaitPolicy;
+import com.netflix.billing.bank.service.OffHeapIdempotentTransactionStore;
+import com.netflix.billing.bank.service.RequestAuditLog;
+import com.netflix.billing.bank.service.VirtualThreads;
+import com.netflix.billing.bank.snapshot.AccountSnapshotStore;
+import com.netflix.billing.bank.wal.FsyncPolicy;
+import com.netflix.billing.bank.wal.SegmentedWriteAheadLog;
+import com.netflix.billing.bank.wal.WriteAheadLog;
 
 
 /**
@@ -9,10 +37,163 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class ApplicationConfig {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(ApplicationConfig.class);
+
 // e.g. configuration.
 //    @Bean
 //    public MyDataStore myDataStore() {
 //        return new MyDataStore();
 //    }
 
+	/**
+	 * Raw requests are only captured when auditing is enabled, one in every
+	 * sample-rate requests is kept in a buffer of the given capacity.
+	 */
+	@Bean
+	public RequestAuditLog requestAuditLog(@Value("${billingbank.audit.enabled:false}") boolean enabled,
+			@Value("${billingbank.audit.sample-rate:100}") int sampleRate,
+			@Value("${billingbank.audit.capacity:1024}") int capacity) {
+		return new RequestAuditLog(enabled, sampleRate, capacity);
+	}
+
+	/**
+	 * Customer accounts are split over a fixed number of shards, rounded up to a
+	 * power of two, presized for the expected customers.
+	 */
+	@Bean
+	public CustomerAccountRegistry customerAccountRegistry(@Value("${billingbank.customers.shards:64}") int shards,
+			@Value("${billingbank.customers.expected:100000}") int expectedCustomers) {
+		return new CustomerAccountRegistry(shards, expectedCustomers);
+	}
+
+	/**
+	 * Customer accounts are guarded by a fixed number of lock stripes, rounded up
+	 * to a power of two.
+	 */
+	@Bean
+	public AccountLockTable accountLockTable(@Value("${billingbank.lock.stripes:1024}") int stripes) {
+		return new AccountLockTable(stripes);
+	}
+
+	/**
+	 * Operations wait for the lock of their customer until the deadline of their
+	 * kind, at most max-waiters of them per customer, in the locking engine. The
+	 * holder of a lock applies up to max-combined-writes queued writes.
+	 */
+	@Bean
+	public LockWaitPolicy lockWaitPolicy(@Value("${billingbank.lock.credit-timeout-millis:2000}") long creditTimeoutMillis,
+			@Value("${billingbank.lock.debit-timeout-millis:2000}") long debitTimeoutMillis,
+			@Value("${billingbank.lock.delete-timeout-millis:5000}") long deleteTimeoutMillis,
+			@Value("${billingbank.lock.batch-timeout-millis:5000}") long batchTimeoutMillis,
+			@Value("${billingbank.lock.max-waiters:128}") int maxWaiters,
+			@Value("${billingbank.lock.max-combined-writes:64}") int maxCombinedWrites) {
+		return new LockWaitPolicy(creditTimeoutMillis, debitTimeoutMillis, deleteTimeoutMillis, batchTimeoutMillis,
+				maxWaiters, maxCombinedWrites);
+	}
+
+	/**
+	 * Requests finding the lock of their customer held wait for it on these
+	 * threads instead of the request threads, in the locking engine, on virtual
+	 * threads when they are enabled.
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public LockWaitExecutor lockWaitExecutor(@Value("${billingbank.async.lock-wait-threads:64}") int threads,
+			@Value("${billingbank.async.lock-wait-queue-capacity:10000}") int queueCapacity,
+			@Value("${billingbank.threads.virtual:false}") boolean virtualThreads) {
+		return new LockWaitExecutor(threads, queueCapacity, virtualThreads);
+	}
+
+	/**
+	 * Requests are run by the embedded Tomcat on a virtual thread each when
+	 * virtual threads are enabled, on its pool of server.tomcat.max-threads
+	 * otherwise or when the jvm has none.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "billingbank.threads.virtual", havingValue = "true")
+	public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadRequestExecutor() {
+		return factory -> {
+			ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("billingbank-http-");
+			if (executor == null) {
+				LOGGER.warn("Virtual threads are not available on this jvm, running requests on platform threads.");
+				return;
+			}
+			LOGGER.info("Running requests on virtual threads.");
+			factory.addConnectorCustomizers(connector -> {
+				if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+					((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(executor);
+				}
+			});
+		};
+	}
+
+	/**
+	 * Credits, debits and deletes are only logged when the write-ahead log is
+	 * enabled, the log is replayed by the bank store on startup.
+	 */
+	@Bean(destroyMethod = "close")
+	public WriteAheadLog writeAheadLog(@Value("${billingbank.wal.enabled:false}") boolean enabled,
+			@Value("${billingbank.wal.dir:data/wal}") String dir,
+			@Value("${billingbank.wal.fsync:batched}") String fsyncPolicy,
+			@Value("${billingbank.wal.flush-interval-micros:1000}") long flushIntervalMicros,
+			@Value("${billingbank.wal.flush-max-records:512}") int flushMaxRecords,
+			@Value("${billingbank.wal.segment-bytes:67108864}") long segmentBytes) {
+		if (!enabled) {
+			return WriteAheadLog.DISABLED;
+		}
+		return new SegmentedWriteAheadLog(Paths.get(dir), FsyncPolicy.fromString(fsyncPolicy), flushIntervalMicros,
+				flushMaxRecords, segmentBytes);
+	}
+
+	/**
+	 * Snapshots of the accounts are only taken and restored on startup when they
+	 * are enabled, the write-ahead log is then replayed from the snapshot on.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "billingbank.snapshot.enabled", havingValue = "true")
+	public AccountSnapshotStore accountSnapshotStore(@Value("${billingbank.snapshot.dir:data/snapshot}") String dir) {
+		return new AccountSnapshotStore(Paths.get(dir));
+	}
+
+	/**
+	 * Idempotency keys are kept off the heap when the offheap store is selected,
+	 * in segments of hash tables growing from the initial capacity.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "billingbank.idempotency.store", havingValue = "offheap")
+	public OffHeapIdempotentTransactionStore offHeapIdempotentTransactionStore(
+			@Value("${billingbank.idempotency.offheap.segments:64}") int segments,
+			@Value("${billingbank.idempotency.offheap.initial-capacity:16384}") int initialCapacity) {
+		return new OffHeapIdempotentTransactionStore(segments, initialCapacity);
+	}
+
+	/**
+	 * The idempotency store is put behind a bloom filter when it is enabled,
+	 * whichever global store is selected. The account store, the default, checks
+	 * the keys of one account only and is left as is. Static as post processors
+	 * are created before the other beans.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "billingbank.idempotency.bloom.enabled", havingValue = "true")
+	public static BeanPostProcessor bloomFilteredIdempotentTransactionStore(Environment environment) {
+		int shards = environment.getProperty("billingbank.idempotency.bloom.shards", Integer.class, 64);
+		long expectedKeys = environment.getProperty("billingbank.idempotency.bloom.expected-keys", Long.class,
+				10_000_000l);
+		int bitsPerKey = environment.getProperty("billingbank.idempotency.bloom.bits-per-key", Integer.class, 16);
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				if (bean instanceof GlobalIdempotentTransactionStore
+						&& !(bean instanceof BloomFilteredIdempotentTransactionStore)) {
+					return new BloomFilteredIdempotentTransactionStore((GlobalIdempotentTransactionStore) bean, shards,
+							expectedKeys, bitsPerKey);
+				}
+				if (bean instanceof IdempotentTransactionStore
+						&& !(bean instanceof BloomFilteredIdempotentTransactionStore)) {
+					LOGGER.warn("Bloom filter not used, {} keeps the idempotency keys by account.", beanName);
+				}
+				return bean;
+			}
+		};
+	}
+
 }
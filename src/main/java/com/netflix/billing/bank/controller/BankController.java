@@ -1,18 +1,54 @@
 package com.netflix.billing.bank.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchRequest;
+import com.netflix.billing.bank.controller.wire.BatchResult;
+import com.netflix.billing.bank.controller.wire.BulkImportReport;
 import com.netflix.billing.bank.controller.wire.CreditAmount;
 import com.netflix.billing.bank.controller.wire.CustomerBalance;
 import com.netflix.billing.bank.controller.wire.DebitAmount;
 import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.controller.wire.DebitLineItem;
+import com.netflix.billing.bank.exception.ApiStatusException;
 import com.netflix.billing.bank.service.BillingBankStore;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore;
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore.FilterStats;
+import com.netflix.billing.bank.service.BulkImportService;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.RegistryStats;
+import com.netflix.billing.bank.service.IdempotentTransactionStore;
+import com.netflix.billing.bank.service.JsonUtils;
+import com.netflix.billing.bank.service.LockWaitPolicy.LockWaitStats;
+import com.netflix.billing.bank.service.RequestAuditLog;
+import com.netflix.billing.bank.service.RequestAuditLog.AuditedRequest;
 
 /**
  * Implement the following methods to complete the exercise.
@@ -24,9 +60,38 @@ public class BankController {
 //    @Autowired
 //    private SomeDependency someDependency;
 
+	private static final byte[] EMPTY_BALANCE_JSON = JsonUtils.writeValueAsBytes(new CustomerBalance());
+
+	private static final String NDJSON = "application/x-ndjson";
+
+	private static final int STREAM_PAGE_SIZE = 500;
+
 	@Autowired
 	private BillingBankStore billingBankStore;
 
+	@Autowired
+	private RequestAuditLog requestAuditLog;
+
+	@Autowired
+	private BulkImportService bulkImportService;
+
+	@Autowired
+	private IdempotentTransactionStore requestStore;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	// how long a request waits for its operation before it is answered with a
+	// 503, the server default when not positive.
+	@Value("${billingbank.async.credit-timeout-millis:5000}")
+	private long creditTimeoutMillis = 5000l;
+
+	@Value("${billingbank.async.debit-timeout-millis:5000}")
+	private long debitTimeoutMillis = 5000l;
+
+	@Value("${billingbank.async.history-timeout-millis:10000}")
+	private long historyTimeoutMillis = 10000l;
+
 	/**
 	 *
 	 * @param customerId String id representing the customer/account id.
@@ -35,12 +100,14 @@ public class BankController {
 	 *         left.
 	 */
 	@GetMapping("customer/{customerId}/balance")
-	public CustomerBalance getBalance(@PathVariable String customerId) {
-		CustomerBalance customerBal = billingBankStore.getCustomerAccountBalance(customerId);
-		if (customerBal == null) {
-			customerBal = new CustomerBalance();
+	public ResponseEntity<byte[]> getBalance(@PathVariable String customerId) {
+		// the balance json is cached on the balance snapshot of the account, it is
+		// written out as is. No lock is taken, the request never waits.
+		byte[] customerBalJson = billingBankStore.getCustomerAccountBalanceJson(customerId);
+		if (customerBalJson == null) {
+			customerBalJson = EMPTY_BALANCE_JSON;
 		}
-		return customerBal;
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(customerBalJson);
 	}
 
 	/**
@@ -51,8 +118,10 @@ public class BankController {
 	 *         applied.
 	 */
 	@PostMapping("customer/{customerId}/credit")
-	public CustomerBalance postCredit(@PathVariable String customerId, @RequestBody CreditAmount creditAmount) {
-		return billingBankStore.processCredit(customerId, creditAmount);
+	public DeferredResult<CustomerBalance> postCredit(@PathVariable String customerId,
+			@RequestBody CreditAmount creditAmount) {
+		return deferred(billingBankStore.processCreditAsync(customerId, creditAmount), creditTimeoutMillis,
+				"Credit", customerId);
 	}
 
 	/**
@@ -64,25 +133,152 @@ public class BankController {
 	 *         amount was deducted from balance.
 	 */
 	@PostMapping("customer/{customerId}/debit")
-	public CustomerBalance debit(@PathVariable String customerId, @RequestBody DebitAmount debitAmount) {
-		return billingBankStore.processDebit(customerId, debitAmount);
+	public DeferredResult<CustomerBalance> debit(@PathVariable String customerId,
+			@RequestBody DebitAmount debitAmount) {
+		return deferred(billingBankStore.processDebitAsync(customerId, debitAmount), debitTimeoutMillis, "Debit",
+				customerId);
+	}
+
+	/**
+	 *
+	 * @param batchRequest Credits and debits across customers, the operations of a
+	 *                     customer are applied in the order they are listed.
+	 * @return The result of every operation in the order of the request and the
+	 *         balance of every customer after its operations were applied.
+	 */
+	@PostMapping("customer/batch")
+	public BatchResult postBatch(@RequestBody BatchRequest batchRequest) {
+		List<BatchOperation> operations = batchRequest.getOperations();
+		if (operations == null) {
+			operations = Collections.emptyList();
+		}
+		return billingBankStore.processBatch(operations);
+	}
+
+	/**
+	 *
+	 * @param body Newline delimited json with one batch operation per line, the
+	 *             body is streamed and applied in batches as it is read.
+	 * @return Summary of the import.
+	 */
+	@PostMapping("import")
+	public BulkImportReport importOperations(InputStream body) throws IOException {
+		return bulkImportService.importNdjson(body);
 	}
 
 	/**
 	 *
 	 * @param customerId String id representing the customer/account id.
-	 * @return The debitHistory object representing all the debit transactions made
-	 *         to the customer's account.
+	 * @param limit      Maximum number of debits of the page, the whole history is
+	 *                   returned when none of the page parameters are set.
+	 * @param after      nextCursor of the previous page.
+	 * @param currency   Only the debits of the currency when set.
+	 * @param from       Only the debits applied at or after the instant when set.
+	 * @param to         Only the debits applied before the instant when set.
+	 * @return The debitHistory object representing the debit transactions made to
+	 *         the customer's account, with the cursor of the next page if the
+	 *         history was paged.
 	 */
 	@GetMapping("customer/{customerId}/history")
-	public DebitHistory debitHistory(@PathVariable String customerId) {
-		DebitHistory debitHistory = billingBankStore.debitHistory(customerId);
+	public DeferredResult<DebitHistory> debitHistory(@PathVariable String customerId,
+			@RequestParam(required = false) Integer limit, @RequestParam(required = false) String after,
+			@RequestParam(required = false) String currency,
+			@RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Instant from,
+			@RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Instant to) {
+		if (limit == null && after == null && currency == null && from == null && to == null) {
+			return deferred(billingBankStore.debitHistoryAsync(customerId)
+					.thenApply(debitHistory -> debitHistory == null ? new DebitHistory() : debitHistory),
+					historyTimeoutMillis, "Debit history", customerId);
+		}
+
+		DebitHistoryQuery query = new DebitHistoryQuery();
+		if (limit != null) {
+			query.setLimit(limit);
+		}
+		query.setAfter(after);
+		query.setCurrency(currency);
+		query.setFrom(from);
+		query.setTo(to);
+		return deferred(billingBankStore.debitHistoryPageAsync(customerId, query)
+				.<DebitHistory>thenApply(
+						page -> page == null ? new DebitHistoryPage(Collections.emptyList(), null) : page),
+				historyTimeoutMillis, "Debit history", customerId);
+	}
+
+	/**
+	 *
+	 * @param customerId String id representing the customer/account id.
+	 * @param invoiceId  Invoice id the debits were made for.
+	 * @return The debit transactions made to the customer's account for the
+	 *         invoice.
+	 */
+	@GetMapping("customer/{customerId}/history/invoice/{invoiceId}")
+	public DebitHistory debitHistoryOfInvoice(@PathVariable String customerId, @PathVariable String invoiceId) {
+		DebitHistory debitHistory = billingBankStore.debitHistoryOfInvoice(customerId, invoiceId);
 		if (debitHistory == null) {
-			debitHistory = new DebitHistory();
+			debitHistory = new DebitHistory(Collections.emptyList());
 		}
 		return debitHistory;
 	}
 
+	/**
+	 *
+	 * @param customerId String id representing the customer/account id.
+	 * @param from       Start of the time range, inclusive.
+	 * @param to         End of the time range, exclusive.
+	 * @return The debit transactions made to the customer's account in the time
+	 *         range.
+	 */
+	@GetMapping("customer/{customerId}/history/range")
+	public DebitHistory debitHistoryBetween(@PathVariable String customerId,
+			@RequestParam @DateTimeFormat(iso = ISO.DATE_TIME) Instant from,
+			@RequestParam @DateTimeFormat(iso = ISO.DATE_TIME) Instant to) {
+		DebitHistory debitHistory = billingBankStore.debitHistoryBetween(customerId, from, to);
+		if (debitHistory == null) {
+			debitHistory = new DebitHistory(Collections.emptyList());
+		}
+		return debitHistory;
+	}
+
+	/**
+	 *
+	 * @param customerId String id representing the customer/account id.
+	 * @param currency   Only the debits of the currency when set.
+	 * @param from       Only the debits applied at or after the instant when set.
+	 * @param to         Only the debits applied before the instant when set.
+	 * @return The debits of the customer's account as newline delimited json, one
+	 *         debit line item per line. The history is read page by page so the
+	 *         account is only held for the time it takes to read a page.
+	 */
+	@GetMapping(value = "customer/{customerId}/history/stream", produces = NDJSON)
+	public ResponseEntity<StreamingResponseBody> streamDebitHistory(@PathVariable String customerId,
+			@RequestParam(required = false) String currency,
+			@RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Instant from,
+			@RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Instant to) {
+		DebitHistoryQuery query = new DebitHistoryQuery();
+		query.setLimit(STREAM_PAGE_SIZE);
+		query.setCurrency(currency);
+		query.setFrom(from);
+		query.setTo(to);
+
+		StreamingResponseBody body = out -> {
+			ObjectWriter lineItemWriter = objectMapper.writerFor(DebitLineItem.class);
+			do {
+				DebitHistoryPage page = billingBankStore.debitHistoryPage(customerId, query);
+				if (page == null) {
+					break;
+				}
+				for (DebitLineItem debitLineItem : page.getDebits()) {
+					out.write(lineItemWriter.writeValueAsBytes(debitLineItem));
+					out.write('\n');
+				}
+				out.flush();
+				query.setAfter(page.getNextCursor());
+			} while (query.getAfter() != null);
+		};
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+	}
+
 	/**
 	 *
 	 * @param customerId String id representing the customer/account id.
@@ -94,4 +290,73 @@ public class BankController {
 		return billingBankStore.delete(customerId);
 	}
 
+	/**
+	 *
+	 * @return The raw credit and debit requests captured by the audit log, empty
+	 *         unless auditing is enabled.
+	 */
+	@GetMapping("audit/requests")
+	public List<AuditedRequest> auditedRequests() {
+		return requestAuditLog.getCapturedRequests();
+	}
+
+	/**
+	 *
+	 * @return The counters and the false positive rate of the bloom filter in
+	 *         front of the idempotency store, not found unless it is enabled.
+	 */
+	@GetMapping("idempotency/filter")
+	public ResponseEntity<FilterStats> idempotencyFilterStats() {
+		if (!(requestStore instanceof BloomFilteredIdempotentTransactionStore)) {
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(((BloomFilteredIdempotentTransactionStore) requestStore).getStats());
+	}
+
+	/**
+	 *
+	 * @return The operations waiting for the locks of their customers and the
+	 *         operations rejected or timed out waiting, not found unless the
+	 *         locking engine is used.
+	 */
+	@GetMapping("locks/stats")
+	public ResponseEntity<LockWaitStats> lockWaitStats() {
+		if (!(billingBankStore instanceof BillingBankStoreImpl)) {
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(((BillingBankStoreImpl) billingBankStore).getLockWaitStats());
+	}
+
+	/**
+	 *
+	 * @return The accounts, estimated bytes and writes of every shard of the
+	 *         customers, with the hot and oversized shards.
+	 */
+	@GetMapping("customers/shards/stats")
+	public RegistryStats customerShardStats() {
+		return billingBankStore.getCustomerShardStats();
+	}
+
+	/**
+	 * Answers the request once the future completes, the request thread is not
+	 * held meanwhile. A request timing out is answered with a 503 but its
+	 * operation is not cancelled, a retried credit or debit is deduplicated by
+	 * its idempotency key.
+	 */
+	private static <T> DeferredResult<T> deferred(CompletableFuture<T> future, long timeoutMillis, String operation,
+			String customerId) {
+		DeferredResult<T> result = new DeferredResult<>(timeoutMillis > 0 ? timeoutMillis : null);
+		result.onTimeout(() -> result.setErrorResult(new ApiStatusException("timeout",
+				operation + " of customer " + customerId + " timed out after " + timeoutMillis + " ms", 503)));
+		future.whenComplete((value, error) -> {
+			if (error == null) {
+				result.setResult(value);
+			} else {
+				result.setErrorResult(
+						error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+			}
+		});
+		return result;
+	}
+
 }
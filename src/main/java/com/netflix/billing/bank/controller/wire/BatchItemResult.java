@@ -0,0 +1,58 @@
+package com.netflix.billing.bank.controller.wire;
+
+/**
+ * Result of the operation at the given index of the batch.
+ */
+public class BatchItemResult {
+	private int index;
+
+	private String customerId;
+
+	private BatchItemStatus status;
+
+	// reason of the failure, only set for FAILED operations.
+	private String message;
+
+	public BatchItemResult() {
+	}
+
+	public BatchItemResult(int index, String customerId, BatchItemStatus status, String message) {
+		super();
+		this.index = index;
+		this.customerId = customerId;
+		this.status = status;
+		this.message = message;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	public String getCustomerId() {
+		return customerId;
+	}
+
+	public void setCustomerId(String customerId) {
+		this.customerId = customerId;
+	}
+
+	public BatchItemStatus getStatus() {
+		return status;
+	}
+
+	public void setStatus(BatchItemStatus status) {
+		this.status = status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,13 @@
+package com.netflix.billing.bank.controller.wire;
+
+/**
+ * Outcome of one operation of a batch.
+ */
+public enum BatchItemStatus {
+	// the operation got applied to the account.
+	APPLIED,
+	// the credit or debit was processed before, the account is left as is.
+	DUPLICATE,
+	// the operation is invalid or could not be applied, the account is left as is.
+	FAILED
+}
@@ -0,0 +1,54 @@
+package com.netflix.billing.bank.controller.wire;
+
+/**
+ * One operation of a batch, either a credit or a debit to be applied to the
+ * account of the customer. Exactly one of credit and debit should be set.
+ */
+public class BatchOperation {
+	private String customerId;
+
+	private CreditAmount credit;
+
+	private DebitAmount debit;
+
+	public BatchOperation() {
+	}
+
+	public static BatchOperation credit(String customerId, CreditAmount credit) {
+		BatchOperation operation = new BatchOperation();
+		operation.setCustomerId(customerId);
+		operation.setCredit(credit);
+		return operation;
+	}
+
+	public static BatchOperation debit(String customerId, DebitAmount debit) {
+		BatchOperation operation = new BatchOperation();
+		operation.setCustomerId(customerId);
+		operation.setDebit(debit);
+		return operation;
+	}
+
+	public String getCustomerId() {
+		return customerId;
+	}
+
+	public void setCustomerId(String customerId) {
+		this.customerId = customerId;
+	}
+
+	public CreditAmount getCredit() {
+		return credit;
+	}
+
+	public void setCredit(CreditAmount credit) {
+		this.credit = credit;
+	}
+
+	public DebitAmount getDebit() {
+		return debit;
+	}
+
+	public void setDebit(DebitAmount debit) {
+		this.debit = debit;
+	}
+}
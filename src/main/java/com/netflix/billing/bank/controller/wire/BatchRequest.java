@@ -0,0 +1,27 @@
+package com.netflix.billing.bank.controller.wire;
+
+import java.util.List;
+
+/**
+ * List of credits and debits across customers to be applied in one call. The
+ * operations of a customer are applied in the order they are listed.
+ */
+public class BatchRequest {
+	private List<BatchOperation> operations;
+
+	public BatchRequest() {
+	}
+
+	public BatchRequest(List<BatchOperation> operations) {
+		super();
+		this.operations = operations;
+	}
+
+	public List<BatchOperation> getOperations() {
+		return operations;
+	}
+
+	public void setOperations(List<BatchOperation> operations) {
+		this.operations = operations;
+	}
+}
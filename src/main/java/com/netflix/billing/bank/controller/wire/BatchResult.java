@@ -0,0 +1,39 @@
+package com.netflix.billing.bank.controller.wire;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per operation results of a batch in the order of the request, along with the
+ * balance of every customer of the batch once its operations are applied.
+ */
+public class BatchResult {
+	private List<BatchItemResult> results;
+
+	private Map<String, CustomerBalance> balances;
+
+	public BatchResult() {
+	}
+
+	public BatchResult(List<BatchItemResult> results, Map<String, CustomerBalance> balances) {
+		super();
+		this.results = results;
+		this.balances = balances;
+	}
+
+	public List<BatchItemResult> getResults() {
+		return results;
+	}
+
+	public void setResults(List<BatchItemResult> results) {
+		this.results = results;
+	}
+
+	public Map<String, CustomerBalance> getBalances() {
+		return balances;
+	}
+
+	public void setBalances(Map<String, CustomerBalance> balances) {
+		this.balances = balances;
+	}
+}
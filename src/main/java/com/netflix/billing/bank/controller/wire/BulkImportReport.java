@@ -0,0 +1,95 @@
+package com.netflix.billing.bank.controller.wire;
+
+import java.util.List;
+
+/**
+ * Summary of a bulk import of credits and debits.
+ */
+public class BulkImportReport {
+	// number of records read from the input, including the ones that could not be
+	// parsed.
+	private long operations;
+	private long applied;
+	private long duplicates;
+	private long failed;
+	private long batches;
+	private long elapsedMillis;
+	private long operationsPerSecond;
+	// true if the import stopped before the end of the input as it is not valid
+	// json.
+	private boolean aborted;
+	// first errors seen while importing.
+	private List<String> errors;
+
+	public long getOperations() {
+		return operations;
+	}
+
+	public void setOperations(long operations) {
+		this.operations = operations;
+	}
+
+	public long getApplied() {
+		return applied;
+	}
+
+	public void setApplied(long applied) {
+		this.applied = applied;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public void setDuplicates(long duplicates) {
+		this.duplicates = duplicates;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public void setFailed(long failed) {
+		this.failed = failed;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public void setBatches(long batches) {
+		this.batches = batches;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public long getOperationsPerSecond() {
+		return operationsPerSecond;
+	}
+
+	public void setOperationsPerSecond(long operationsPerSecond) {
+		this.operationsPerSecond = operationsPerSecond;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	public void setAborted(boolean aborted) {
+		this.aborted = aborted;
+	}
+
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	public void setErrors(List<String> errors) {
+		this.errors = errors;
+	}
+}
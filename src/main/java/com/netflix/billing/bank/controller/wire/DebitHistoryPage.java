@@ -0,0 +1,31 @@
+package com.netflix.billing.bank.controller.wire;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * One page of the debit transactions applied to the customer's account. The
+ * next page is read by passing the nextCursor as the after cursor, there are no
+ * more debits when it is not set.
+ */
+public class DebitHistoryPage extends DebitHistory {
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private String nextCursor;
+
+	public DebitHistoryPage() {
+	}
+
+	public DebitHistoryPage(List<DebitLineItem> debits, String nextCursor) {
+		super(debits);
+		this.nextCursor = nextCursor;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+}
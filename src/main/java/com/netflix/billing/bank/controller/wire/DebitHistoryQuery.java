@@ -0,0 +1,64 @@
+package com.netflix.billing.bank.controller.wire;
+
+import java.time.Instant;
+
+/**
+ * Selects a page of the debit history of a customer. Debits are listed
+ * currency by currency, in the order of the currency codes, and in the order
+ * they were applied within a currency.
+ */
+public class DebitHistoryQuery {
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT = 1000;
+
+	// maximum number of debits in the page.
+	private int limit = DEFAULT_LIMIT;
+	// nextCursor of the previous page, the first page is read when it is not set.
+	private String after;
+	// only debits of the currency when set.
+	private String currency;
+	// only debits applied at or after from when set.
+	private Instant from;
+	// only debits applied before to when set.
+	private Instant to;
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	public String getAfter() {
+		return after;
+	}
+
+	public void setAfter(String after) {
+		this.after = after;
+	}
+
+	public String getCurrency() {
+		return currency;
+	}
+
+	public void setCurrency(String currency) {
+		this.currency = currency;
+	}
+
+	public Instant getFrom() {
+		return from;
+	}
+
+	public void setFrom(Instant from) {
+		this.from = from;
+	}
+
+	public Instant getTo() {
+		return to;
+	}
+
+	public void setTo(Instant to) {
+		this.to = to;
+	}
+}
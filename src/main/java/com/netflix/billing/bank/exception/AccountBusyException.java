@@ -0,0 +1,43 @@
+package com.netflix.billing.bank.exception;
+
+/**
+ * Raised when an operation is shed instead of waiting for the lock of its
+ * customer: too many requests are waiting for the lock already (429), the lock
+ * was not acquired before the deadline of the operation (503), or the requests
+ * waiting for locks are piling up (503). The operation is not applied, it can
+ * be retried after Retry-After seconds.
+ */
+public class AccountBusyException extends ApiStatusException {
+
+	public static final long serialVersionUID = 12121213L;
+
+	public static final int RETRY_AFTER_SECONDS = 1;
+
+	private final String customerId;
+
+	public AccountBusyException(Throwable cause, String customerId, String error, String description, int status) {
+		super(cause, error, description, status);
+		this.customerId = customerId;
+	}
+
+	public static AccountBusyException tooManyWaiters(String customerId, int maxWaiters) {
+		return new AccountBusyException(null, customerId, "too_many_waiters",
+				maxWaiters + " requests are waiting for the account already, try again later for customer "
+						+ customerId,
+				429);
+	}
+
+	public static AccountBusyException lockTimeout(Throwable cause, String customerId, long timeoutMillis) {
+		return new AccountBusyException(cause, customerId, "lock_timeout",
+				"The account was busy for " + timeoutMillis + " ms, try again later for customer " + customerId, 503);
+	}
+
+	public static AccountBusyException tooManyPending(Throwable cause, String customerId) {
+		return new AccountBusyException(cause, customerId, "account_busy",
+				"Too many pending requests, try again later for customer " + customerId, 503);
+	}
+
+	public String getCustomerId() {
+		return customerId;
+	}
+}
@@ -0,0 +1,23 @@
+package com.netflix.billing.bank.exception;
+
+/**
+ * An {@link ApiException} that is answered with its own http status and error
+ * fields by {@link BillingBankGlobalExceptionHandler}. Other ApiExceptions keep
+ * the default error handling.
+ * 
+ * @author rkata
+ *
+ */
+public class ApiStatusException extends ApiException {
+
+	public static final long serialVersionUID = 13131313L;
+
+	public ApiStatusException(String error, String description, int status) {
+		super(error, description, status);
+	}
+
+	public ApiStatusException(Throwable cause, String error, String description, int status) {
+		super(cause, error, description, status);
+	}
+
+}
@@ -1,6 +1,8 @@
 package com.netflix.billing.bank.exception;
 
 import java.nio.file.AccessDeniedException;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -203,6 +205,45 @@ public class BillingBankGlobalExceptionHandler extends ResponseEntityExceptionHa
 		return handleExceptionInternal(ex, apiResponse, new HttpHeaders(), HttpStatus.UNSUPPORTED_MEDIA_TYPE, request);
 	}
 
+	/**
+	 * Handle ApiStatusException, the response carries the status of the exception
+	 * and the error fields ApiException.valueOf(Map) reads back. Other
+	 * ApiExceptions are left to the default error handling.
+	 */
+	@ExceptionHandler({ ApiStatusException.class })
+	public ResponseEntity<Object> handleApiStatusException(final ApiStatusException ex, final WebRequest request) {
+		return handleApiStatusException(ex, new HttpHeaders(), request);
+	}
+
+	/**
+	 * Handle AccountBusyException, the operation was shed before it waited for
+	 * the lock of its customer, the client is told when to try again.
+	 */
+	@ExceptionHandler({ AccountBusyException.class })
+	public ResponseEntity<Object> handleAccountBusy(final AccountBusyException ex, final WebRequest request) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(AccountBusyException.RETRY_AFTER_SECONDS));
+		return handleApiStatusException(ex, headers, request);
+	}
+
+	private ResponseEntity<Object> handleApiStatusException(ApiStatusException ex, HttpHeaders headers,
+			WebRequest request) {
+		HttpStatus status = HttpStatus.resolve(ex.getHttpStatus());
+		if (status == null) {
+			status = HttpStatus.INTERNAL_SERVER_ERROR;
+		}
+		log.warn("{} Status Code: {}", status.value(), ex.getMessage());
+
+		Map<String, String> body = new TreeMap<>();
+		if (ex.getAdditionalInformation() != null) {
+			body.putAll(ex.getAdditionalInformation());
+		}
+		body.put("error", ex.getErrorCode());
+		body.put("error_description", ex.getMessage());
+		body.put("status", String.valueOf(status.value()));
+		return handleExceptionInternal(ex, body, headers, status, request);
+	}
+
 	// 500
 	@ExceptionHandler({ NullPointerException.class, IllegalArgumentException.class, IllegalStateException.class })
 	public ResponseEntity<Object> handle500s(final RuntimeException ex, final WebRequest request) {
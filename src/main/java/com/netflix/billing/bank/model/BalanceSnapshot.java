@@ -0,0 +1,107 @@
+package com.netflix.billing.bank.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.Money;
+
+/**
+ *
+ * Immutable view of the balance of a CustomerAccount at a given version. A new
+ * snapshot is built and published by the writer holding the write lock of the
+ * account every time the balance changes, readers only need a volatile read of
+ * the current snapshot of the account.
+ *
+ * The serialized json of the balance is computed lazily on the first read and
+ * cached on the snapshot, racing readers may serialize it more than once but
+ * always end up with the same bytes.
+ *
+ * @author rkata
+ *
+ */
+public final class BalanceSnapshot {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	public static final BalanceSnapshot EMPTY = new BalanceSnapshot(0l,
+			Collections.<CreditType, List<Money>>emptyMap());
+
+	private final long version;
+
+	private final CustomerBalance balance;
+
+	private volatile byte[] json;
+
+	private BalanceSnapshot(long version, Map<CreditType, List<Money>> balanceAmounts) {
+		this.version = version;
+		this.balance = new CustomerBalance();
+		this.balance.setBalanceAmounts(balanceAmounts);
+	}
+
+	/**
+	 * Builds the snapshot following this one from the per currency balances of
+	 * the account, needs to be called while holding the write lock of the
+	 * account.
+	 *
+	 * @param custAccountByCurrency
+	 * @return
+	 */
+	public BalanceSnapshot next(Collection<CustomerAccountByCurrency> custAccountByCurrency) {
+		Map<CreditType, List<Money>> balanceAmounts = new EnumMap<>(CreditType.class);
+
+		for (CustomerAccountByCurrency custActByCurrency : custAccountByCurrency) {
+			String currency = custActByCurrency.getCurrency();
+			CreditBalanceTable balanceTable = custActByCurrency.getBalance();
+
+			for (CreditType creditType : CREDIT_TYPES) {
+				// credit types that are used completely are not part of the balance.
+				if (!balanceTable.hasBalance(creditType)) {
+					continue;
+				}
+
+				List<Money> cTypeMoney = balanceAmounts.get(creditType);
+				if (cTypeMoney == null) {
+					cTypeMoney = new ArrayList<>(2);
+					balanceAmounts.put(creditType, cTypeMoney);
+				}
+				cTypeMoney.add(new Money(balanceTable.get(creditType), currency));
+			}
+		}
+
+		for (Map.Entry<CreditType, List<Money>> entry : balanceAmounts.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		return new BalanceSnapshot(version + 1, Collections.unmodifiableMap(balanceAmounts));
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 *
+	 * @return the balance of the account, the balance amounts are unmodifiable.
+	 */
+	public CustomerBalance getBalance() {
+		return balance;
+	}
+
+	/**
+	 *
+	 * @return the cached json of the balance, null if it is not serialized yet.
+	 */
+	public byte[] getJson() {
+		return json;
+	}
+
+	public void setJson(byte[] json) {
+		this.json = json;
+	}
+
+}
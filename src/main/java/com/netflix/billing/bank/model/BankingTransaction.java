@@ -3,56 +3,50 @@ package com.netflix.billing.bank.model;
 import java.time.Instant;
 
 /**
- * All the idempotent transactions are identified by the id.
+ * All the idempotent transactions are identified by the id. The record is
+ * kept for as long as the transaction is remembered, so it only carries the
+ * identity of the transaction and its outcome, the raw request is not
+ * retained. Everything but the status is immutable, the status is set once
+ * the transaction is processed.
  * 
  * @author rkata
  *
  */
-public class BankingTransaction {
+public final class BankingTransaction {
 
-//	customerid+credittype+transactionid --> for transactions of type credit
-//	customerid+invoiceid --> for transactions of type debit
-	private final String id;
-
-	private final String customerId;
-
-	// This will be invoice id for debits and transaction id for credits.
-	private final String transactionId;
+	// customer id and transaction id for credits or invoice id for debits.
+	private final TransactionKey id;
 
 	// is it a debit or credit transaction.
 	private final TransactionType transactionType;
 
-	private String request;
-	private TransactionStatus status;
 	private final Instant transactionTime;
 
-	public BankingTransaction(String id, String customerId, TransactionType transactionType, String transactionId) {
+	private volatile TransactionStatus status = TransactionStatus.RECEIVED;
+
+	public BankingTransaction(TransactionKey id, TransactionType transactionType) {
+		this(id, transactionType, Instant.now());
+	}
+
+	// transaction applied at the given time, used when the transaction is replayed.
+	public BankingTransaction(TransactionKey id, TransactionType transactionType, Instant transactionTime) {
 		super();
 		this.id = id;
-		this.customerId = customerId;
 		this.transactionType = transactionType;
-		this.transactionId = transactionId;
-		this.transactionTime = Instant.now();
+		this.transactionTime = transactionTime;
 	}
 
 	public String getCustomerId() {
-		return customerId;
+		return id.getCustomerId();
 	}
 
 	public TransactionType getTransactionType() {
 		return transactionType;
 	}
 
+	// This will be invoice id for debits and transaction id for credits.
 	public String getTransactionId() {
-		return transactionId;
-	}
-
-	public String getRequest() {
-		return request;
-	}
-
-	public void setRequest(String request) {
-		this.request = request;
+		return id.getExternalId();
 	}
 
 	public TransactionStatus getStatus() {
@@ -67,7 +61,7 @@ public class BankingTransaction {
 		return transactionTime;
 	}
 
-	public String getId() {
+	public TransactionKey getId() {
 		return id;
 	}
 
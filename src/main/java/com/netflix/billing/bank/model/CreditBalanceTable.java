@@ -0,0 +1,48 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+
+/**
+ *
+ * Balance of a CustomerAccountByCurrency by credit type. Balances are kept in
+ * a long[] indexed by the ordinal of the credit type along with a running
+ * total, so crediting, debiting and checking the balance are O(1) and do not
+ * allocate. Not thread safe, mutations happen under the write lock of the
+ * account.
+ *
+ * @author rkata
+ *
+ */
+public class CreditBalanceTable {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	private final long[] balanceByCreditType = new long[CREDIT_TYPES.length];
+
+	private long totalBalance = 0;
+
+	/**
+	 * Adds the amount to the balance of the credit type, a negative amount
+	 * deducts from the balance.
+	 *
+	 * @param creditType
+	 * @param amount
+	 */
+	public void add(CreditType creditType, long amount) {
+		balanceByCreditType[creditType.ordinal()] += amount;
+		totalBalance += amount;
+	}
+
+	public long get(CreditType creditType) {
+		return balanceByCreditType[creditType.ordinal()];
+	}
+
+	public boolean hasBalance(CreditType creditType) {
+		return balanceByCreditType[creditType.ordinal()] != 0;
+	}
+
+	public long getTotal() {
+		return totalBalance;
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.netflix.billing.bank.model;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Scratch buffer recording the credits consumed by the debit that is being
+ * processed as (credit, amount) entries. The buffer is owned by a
+ * CustomerAccountByCurrency and reused across debits, it is only touched
+ * under the write lock of the account.
+ *
+ * A fully consumed credit is removed from the CreditLedger with its amount
+ * left untouched, a partially consumed credit stays in the ledger with the
+ * consumed amount deducted. Either way the entry carries the amount that was
+ * consumed, which is all that is needed to build the debit lineitems or to
+ * rollback the debit.
+ *
+ * @author rkata
+ *
+ */
+public class CreditConsumptionBuffer {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private ProcessedCredit[] credits = new ProcessedCredit[INITIAL_CAPACITY];
+	private long[] amounts = new long[INITIAL_CAPACITY];
+	private int size = 0;
+
+	public void add(ProcessedCredit credit, long amountConsumed) {
+		if (size == credits.length) {
+			credits = Arrays.copyOf(credits, size << 1);
+			amounts = Arrays.copyOf(amounts, size << 1);
+		}
+		credits[size] = credit;
+		amounts[size] = amountConsumed;
+		size++;
+	}
+
+	public ProcessedCredit getCredit(int index) {
+		return credits[index];
+	}
+
+	public long getAmount(int index) {
+		return amounts[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Drops the recorded entries, references to the credits are cleared so that
+	 * consumed credits can be collected.
+	 */
+	public void clear() {
+		Arrays.fill(credits, 0, size, null);
+		size = 0;
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.netflix.billing.bank.model;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+
+/**
+ *
+ * Ledger of the credits available in a CustomerAccountByCurrency. Credits are
+ * kept in one FIFO bucket per CreditType, indexed by the ordinal of the credit
+ * type. Credits are appended in the order they are applied, so the head of a
+ * bucket is always the oldest credit of that type and the head of the first
+ * non empty bucket is the next credit to be consumed by a debit.
+ *
+ * Partially consumed credits are adjusted in place at the head of their
+ * bucket, no reordering is needed. Like the rest of the account state the
+ * ledger is not thread safe, callers need to hold the write lock of the
+ * account.
+ *
+ * @author rkata
+ *
+ */
+public class CreditLedger {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	// buckets are created lazily as most of the accounts carry only one or two
+	// types of credits.
+	private final ArrayDeque<ProcessedCredit>[] buckets;
+
+	private int size = 0;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public CreditLedger() {
+		this.buckets = new ArrayDeque[CREDIT_TYPES.length];
+	}
+
+	/**
+	 * Appends the credit to the tail of the bucket of its credit type.
+	 *
+	 * @param credit
+	 */
+	public void append(ProcessedCredit credit) {
+		int ordinal = credit.getCreditType().ordinal();
+		ArrayDeque<ProcessedCredit> bucket = buckets[ordinal];
+		if (bucket == null) {
+			bucket = new ArrayDeque<>();
+			buckets[ordinal] = bucket;
+		}
+		bucket.addLast(credit);
+		size++;
+	}
+
+	/**
+	 * Puts the credit back at the head of the bucket of its credit type, used
+	 * while rolling back a debit that is not fulfilled.
+	 *
+	 * @param credit
+	 */
+	public void pushFirst(ProcessedCredit credit) {
+		int ordinal = credit.getCreditType().ordinal();
+		ArrayDeque<ProcessedCredit> bucket = buckets[ordinal];
+		if (bucket == null) {
+			bucket = new ArrayDeque<>();
+			buckets[ordinal] = bucket;
+		}
+		bucket.addFirst(credit);
+		size++;
+	}
+
+	/**
+	 *
+	 * @return the next credit to be consumed, i.e the oldest credit of the highest
+	 *         priority credit type, null if there are no credits available.
+	 */
+	public ProcessedCredit peekFirst() {
+		for (ArrayDeque<ProcessedCredit> bucket : buckets) {
+			if (bucket != null && !bucket.isEmpty()) {
+				return bucket.peekFirst();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @return the oldest credit of the given credit type, null if there are no
+	 *         credits of that type.
+	 */
+	public ProcessedCredit peekFirst(CreditType creditType) {
+		ArrayDeque<ProcessedCredit> bucket = buckets[creditType.ordinal()];
+		return bucket == null ? null : bucket.peekFirst();
+	}
+
+	/**
+	 * Removes the next credit to be consumed.
+	 *
+	 * @return the removed credit, null if there are no credits available.
+	 */
+	public ProcessedCredit pollFirst() {
+		for (ArrayDeque<ProcessedCredit> bucket : buckets) {
+			if (bucket != null && !bucket.isEmpty()) {
+				size--;
+				return bucket.pollFirst();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Walks the credits in the order they are consumed, bucket by bucket in the
+	 * priority order of the credit types, oldest credit first.
+	 *
+	 * @param action
+	 */
+	public void forEach(Consumer<ProcessedCredit> action) {
+		for (ArrayDeque<ProcessedCredit> bucket : buckets) {
+			if (bucket != null) {
+				bucket.forEach(action);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int size(CreditType creditType) {
+		ArrayDeque<ProcessedCredit> bucket = buckets[creditType.ordinal()];
+		return bucket == null ? 0 : bucket.size();
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+}
@@ -17,19 +17,38 @@ public class CustomerAccount {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CustomerAccount.class);
 
+	// rough heap footprints on a 64 bit jvm with compressed oops, for the memory
+	// accounting of the accounts, not for sizing anything.
+	private static final long ACCOUNT_BYTES = 256l;
+	private static final long CURRENCY_BYTES = 640l;
+	// credit, its transaction and key, transaction id and ledger slot.
+	private static final long CREDIT_BYTES = 160l;
+	// debit history row, invoice id and invoice index entry.
+	private static final long DEBIT_BYTES = 120l;
+	// slots of the key set, the ids are shared with the credits and debits.
+	private static final long KEY_BYTES = 24l;
+
 	private final String customerId;
 
 	// build a key of currency to CustomerAccountBalance
 	private final ConcurrentHashMap<String, CustomerAccountByCurrency> custActBalMapByCurrency = new ConcurrentHashMap<>();
 
-//	// Recording a key of customerid+credittype+transactionid ---> CreditRequest to
-//	// store the CreditAmount request that is tied to a request.
-//	private final ConcurrentHashMap<String, BankingTransaction> processedCredits = new ConcurrentHashMap<>();
-//
-//	// Recording a key of customerid+invoiceid ---> DebitAmount to store all debits
-//	// that are processed.
-//	// store the DebitAmount request that is tied to the request.
-//	private final ConcurrentHashMap<String, BankingTransaction> processedDebits = new ConcurrentHashMap<>();
+	// latest balance of the account, republished by the writer after every change
+	// to the balance so that readers do not need to take the account lock.
+	private volatile BalanceSnapshot balanceSnapshot = BalanceSnapshot.EMPTY;
+
+	// lsn of the last write-ahead log record applied to the account, a duplicate
+	// request is acknowledged once the log is durable up to it. Records up to
+	// this lsn are already reflected in the account when the log is replayed on
+	// top of a snapshot.
+	private long appliedLsn = 0l;
+
+	// idempotency keys of the transactions of the account, only filled when the
+	// keys are kept by account, they go away with the account.
+	private final TransactionKeySet transactionKeys = new TransactionKeySet();
+
+	// estimated bytes of the account last counted by the registry holding it.
+	private long accountedBytes = 0l;
 
 	public CustomerAccount(String customerId) {
 		this.customerId = customerId;
@@ -60,4 +79,69 @@ public class CustomerAccount {
 		return custActBalMapByCurrency.values();
 	}
 
+	/**
+	 * 
+	 * @return the account of the currency, null if the customer has no credits or
+	 *         debits in the currency.
+	 */
+	public CustomerAccountByCurrency getCustAccountByCurrency(String currency) {
+		return custActBalMapByCurrency.get(currency);
+	}
+
+	public long getAppliedLsn() {
+		return appliedLsn;
+	}
+
+	public void setAppliedLsn(long appliedLsn) {
+		this.appliedLsn = appliedLsn;
+	}
+
+	/**
+	 *
+	 * @return the idempotency keys of the account, needs to be used by the owner
+	 *         of the account.
+	 */
+	public TransactionKeySet getTransactionKeys() {
+		return transactionKeys;
+	}
+
+	/**
+	 * Estimates the heap used by the account from the number of its credits,
+	 * debits and idempotency keys, needs to be called by the owner of the account.
+	 *
+	 * @return the estimated bytes of the account.
+	 */
+	public long estimateBytes() {
+		long bytes = ACCOUNT_BYTES + 2l * customerId.length() + KEY_BYTES * transactionKeys.size();
+		for (CustomerAccountByCurrency custActBal : custActBalMapByCurrency.values()) {
+			bytes += CURRENCY_BYTES + CREDIT_BYTES * custActBal.getCreditLedger().size()
+					+ DEBIT_BYTES * custActBal.getProcessedDebits().size();
+		}
+		return bytes;
+	}
+
+	public long getAccountedBytes() {
+		return accountedBytes;
+	}
+
+	public void setAccountedBytes(long accountedBytes) {
+		this.accountedBytes = accountedBytes;
+	}
+
+	public BalanceSnapshot getBalanceSnapshot() {
+		return balanceSnapshot;
+	}
+
+	/**
+	 * Rebuilds the balance snapshot from the current balances and publishes it,
+	 * needs to be called while holding the write lock of the account.
+	 *
+	 * @return the published snapshot
+	 */
+	public BalanceSnapshot publishBalanceSnapshot() {
+		BalanceSnapshot snapshot = balanceSnapshot.next(custActBalMapByCurrency.values());
+		balanceSnapshot = snapshot;
+		return snapshot;
+	}
+
 }
@@ -1,12 +1,5 @@
 package com.netflix.billing.bank.model;
 
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,73 +20,52 @@ public class CustomerAccountByCurrency {
 	private final String customerId;
 	private final String currency;
 
-	// build a key of credit-type to CustomerBalance
-	private final ConcurrentMap<CreditType, Long> balanceByCreditType = new ConcurrentHashMap<>();
+	// balance by credit-type along with the total balance
+	private final CreditBalanceTable balanceByCreditType = new CreditBalanceTable();
 
 //	// build a key of credittype+transactionid and map the credits that are
 //	// processed.
 //	private final ConcurrentMap<String, ProcessedCredit> creditsMapByTypeAndTransId = new ConcurrentHashMap<>();
 
-	// build a key of invoiceid to a map of processed Debits
-	private final LinkedList<ProcessedDebit> processedDebits = new LinkedList<ProcessedDebit>();
-
-	// Process the credits available in the below order
-	private final PriorityQueue<ProcessedCredit> sortedCredits = new PriorityQueue<>(new Comparator<ProcessedCredit>() {
-		@Override
-		public int compare(ProcessedCredit o1, ProcessedCredit o2) {
-			int creditTypeCompareRes = o1.getCreditType().compareTo(o2.getCreditType());
-			if (creditTypeCompareRes == 0) {
-				// compare timestamps of creditAmountReq
-				long o1AppliedDatetime = o1.getTransactionDate().toEpochMilli();
-				long o2AppliedDatetime = o2.getTransactionDate().toEpochMilli();
-				if (o1AppliedDatetime < o2AppliedDatetime) {
-					return -1;
-				} else if (o1AppliedDatetime > o2AppliedDatetime) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
-			return creditTypeCompareRes;
-		}
-	});
+	// debit lineitems in the order they are processed
+	private final DebitHistoryStore processedDebits = new DebitHistoryStore();
+
+	// invoice and time indexes over the processed debits
+	private final DebitIndex debitIndex = new DebitIndex();
+
+	// Credits available bucketed by credit type and kept in the order they are
+	// applied, consumed in the same order.
+	private final CreditLedger creditLedger = new CreditLedger();
+
+	// Reusable buffer recording the credits consumed by the debit in progress,
+	// created on the first debit.
+	private CreditConsumptionBuffer consumptionBuffer;
 
 	public CustomerAccountByCurrency(String customerId, String currency) {
 		this.customerId = customerId;
 		this.currency = currency;
 	}
 
-	public void updateBalance(CreditType creditType, Long creditAmt) {
-		Long curBalance = balanceByCreditType.get(creditType);
-		if (curBalance == null) {
-			curBalance = new Long(0);
-		}
-
-		curBalance = curBalance + creditAmt;
-		// remove the balance entry mapped to credit type if it is used completely.
-		if (curBalance == 0) {
-			balanceByCreditType.remove(creditType);
-		} else {
-			balanceByCreditType.put(creditType, curBalance);
-		}
+	public void updateBalance(CreditType creditType, long creditAmt) {
+		balanceByCreditType.add(creditType, creditAmt);
 	}
 
 	public long totalCreditsAvailable() {
-		long totalBalance = 0;
-		for (Long balance : balanceByCreditType.values()) {
-			totalBalance += balance;
-		}
-		return totalBalance;
+		return balanceByCreditType.getTotal();
 	}
 
-	public Map<CreditType, Long> getBalance() {
+	public CreditBalanceTable getBalance() {
 		return balanceByCreditType;
 	}
 
-	public LinkedList<ProcessedDebit> getProcessedDebits() {
+	public DebitHistoryStore getProcessedDebits() {
 		return processedDebits;
 	}
 
+	public DebitIndex getDebitIndex() {
+		return debitIndex;
+	}
+
 	public String getCustomerId() {
 		return customerId;
 	}
@@ -102,12 +74,15 @@ public class CustomerAccountByCurrency {
 		return currency;
 	}
 
-	public ConcurrentMap<CreditType, Long> getBalanceByCreditType() {
-		return balanceByCreditType;
+	public CreditLedger getCreditLedger() {
+		return creditLedger;
 	}
 
-	public PriorityQueue<ProcessedCredit> getSortedCredits() {
-		return sortedCredits;
+	public CreditConsumptionBuffer getConsumptionBuffer() {
+		if (consumptionBuffer == null) {
+			consumptionBuffer = new CreditConsumptionBuffer();
+		}
+		return consumptionBuffer;
 	}
 
 	@Override
@@ -142,7 +117,7 @@ public class CustomerAccountByCurrency {
 	}
 
 	public void recordCredit(ProcessedCredit procCredit) {
-		sortedCredits.offer(procCredit);
+		creditLedger.append(procCredit);
 		updateBalance(procCredit.getCreditType(), procCredit.getAmount());
 	}
 
@@ -0,0 +1,146 @@
+package com.netflix.billing.bank.model;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+
+/**
+ *
+ * Append only, columnar store of the debit lineitems of a
+ * CustomerAccountByCurrency. Every lineitem is a row spread across parallel
+ * primitive columns: amount, transaction time in epoch nanos and the ordinal
+ * of the credit type it was charged against. The invoice id and the credit
+ * transaction id columns keep references to the id strings that are already
+ * shared with the debit request and the credit, so an id is never copied no
+ * matter how many lineitems point to it.
+ *
+ * Rows are kept in fixed size chunks, appending a row is O(1) and never
+ * copies the rows that are already stored. Only the first chunk grows to its
+ * full size, so accounts with a handful of debits stay small. Not thread
+ * safe, rows are appended under the write lock of the account.
+ *
+ * @author rkata
+ *
+ */
+public class DebitHistoryStore {
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	static final int CHUNK_SHIFT = 10;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int INITIAL_CHUNK_CAPACITY = 4;
+
+	private Chunk[] chunks = new Chunk[1];
+	private int size = 0;
+
+	/**
+	 * Appends a debit lineitem.
+	 *
+	 * @param invoiceId       invoice id of the debit
+	 * @param transactionId   credit transaction id the debit was charged against
+	 * @param creditType      credit type the debit was charged against
+	 * @param amount          amount that was debited
+	 * @param transactionDate time the debit was applied
+	 */
+	public void append(String invoiceId, String transactionId, CreditType creditType, long amount,
+			Instant transactionDate) {
+		int chunkIndex = size >>> CHUNK_SHIFT;
+		int offset = size & CHUNK_MASK;
+
+		if (chunkIndex == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunkIndex << 1);
+		}
+
+		Chunk chunk = chunks[chunkIndex];
+		if (chunk == null) {
+			chunk = new Chunk(chunkIndex == 0 ? INITIAL_CHUNK_CAPACITY : CHUNK_SIZE);
+			chunks[chunkIndex] = chunk;
+		} else if (offset == chunk.amounts.length) {
+			chunk.grow(Math.min(offset << 1, CHUNK_SIZE));
+		}
+
+		chunk.amounts[offset] = amount;
+		chunk.transactionTimes[offset] = toEpochNanos(transactionDate);
+		chunk.creditTypes[offset] = (byte) creditType.ordinal();
+		chunk.invoiceIds[offset] = invoiceId;
+		chunk.transactionIds[offset] = transactionId;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getAmount(int row) {
+		return chunk(row).amounts[row & CHUNK_MASK];
+	}
+
+	public long getTransactionTimeNanos(int row) {
+		return chunk(row).transactionTimes[row & CHUNK_MASK];
+	}
+
+	public Instant getTransactionDate(int row) {
+		return ofEpochNanos(getTransactionTimeNanos(row));
+	}
+
+	public CreditType getCreditType(int row) {
+		return CREDIT_TYPES[chunk(row).creditTypes[row & CHUNK_MASK]];
+	}
+
+	public String getInvoiceId(int row) {
+		return chunk(row).invoiceIds[row & CHUNK_MASK];
+	}
+
+	public String getTransactionId(int row) {
+		return chunk(row).transactionIds[row & CHUNK_MASK];
+	}
+
+	private Chunk chunk(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+		}
+		return chunks[row >>> CHUNK_SHIFT];
+	}
+
+	public static long toEpochNanos(Instant instant) {
+		return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), NANOS_PER_SECOND), instant.getNano());
+	}
+
+	public static Instant ofEpochNanos(long epochNanos) {
+		return Instant.ofEpochSecond(Math.floorDiv(epochNanos, NANOS_PER_SECOND),
+				Math.floorMod(epochNanos, NANOS_PER_SECOND));
+	}
+
+	private static final class Chunk {
+		private long[] amounts;
+		private long[] transactionTimes;
+		private byte[] creditTypes;
+		private String[] invoiceIds;
+		private String[] transactionIds;
+
+		private Chunk(int capacity) {
+			amounts = new long[capacity];
+			transactionTimes = new long[capacity];
+			creditTypes = new byte[capacity];
+			invoiceIds = new String[capacity];
+			transactionIds = new String[capacity];
+		}
+
+		private void grow(int capacity) {
+			amounts = Arrays.copyOf(amounts, capacity);
+			transactionTimes = Arrays.copyOf(transactionTimes, capacity);
+			creditTypes = Arrays.copyOf(creditTypes, capacity);
+			invoiceIds = Arrays.copyOf(invoiceIds, capacity);
+			transactionIds = Arrays.copyOf(transactionIds, capacity);
+		}
+	}
+
+}
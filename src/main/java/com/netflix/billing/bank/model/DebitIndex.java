@@ -0,0 +1,129 @@
+package com.netflix.billing.bank.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Secondary indexes over the rows of a DebitHistoryStore. The invoice index
+ * maps an invoice id to the rows of its debit lineitems, the time index keeps
+ * the first row of every minute long bucket that has debits so a time range
+ * is read starting from the first bucket it covers instead of the first row.
+ *
+ * Rows are appended in the order the debits are applied, which is the order
+ * of their transaction times unless the clock went back. A row is bucketed by
+ * the latest transaction time seen so far, which keeps the buckets sorted,
+ * and the largest step back of the clock is kept to know how far past the end
+ * of a range a lineitem of the range can be found. Like the rest of the
+ * account state the index is not thread safe, rows are added under the write
+ * lock of the account.
+ *
+ * @author rkata
+ *
+ */
+public class DebitIndex {
+
+	static final long BUCKET_NANOS = 60_000_000_000L;
+
+	// past the last row whatever the size of the store, readers stop at the size.
+	static final int END_OF_ROWS = Integer.MAX_VALUE;
+
+	private static final int[] NO_ROWS = new int[0];
+
+	// rows of every invoice, the invoice id strings are shared with the store.
+	private final Map<String, int[]> rowsByInvoice = new HashMap<>();
+
+	// bucket number and first row of the buckets that have rows, in row order.
+	private long[] bucketKeys = new long[4];
+	private int[] bucketFirstRows = new int[4];
+	private int bucketCount = 0;
+
+	private long maxTransactionTime = Long.MIN_VALUE;
+	private long maxClockStepBack = 0l;
+
+	/**
+	 * Indexes the row that was just appended to the DebitHistoryStore.
+	 *
+	 * @param row             row of the lineitem in the store
+	 * @param invoiceId       invoice id of the lineitem
+	 * @param transactionTime transaction time of the lineitem in epoch nanos
+	 */
+	public void add(int row, String invoiceId, long transactionTime) {
+		int[] invoiceRows = rowsByInvoice.get(invoiceId);
+		if (invoiceRows == null) {
+			rowsByInvoice.put(invoiceId, new int[] { row });
+		} else {
+			invoiceRows = Arrays.copyOf(invoiceRows, invoiceRows.length + 1);
+			invoiceRows[invoiceRows.length - 1] = row;
+			rowsByInvoice.put(invoiceId, invoiceRows);
+		}
+
+		if (transactionTime < maxTransactionTime) {
+			maxClockStepBack = Math.max(maxClockStepBack, maxTransactionTime - transactionTime);
+		} else {
+			maxTransactionTime = transactionTime;
+		}
+
+		long bucket = Math.floorDiv(maxTransactionTime, BUCKET_NANOS);
+		if (bucketCount == 0 || bucketKeys[bucketCount - 1] != bucket) {
+			if (bucketCount == bucketKeys.length) {
+				bucketKeys = Arrays.copyOf(bucketKeys, bucketCount << 1);
+				bucketFirstRows = Arrays.copyOf(bucketFirstRows, bucketCount << 1);
+			}
+			bucketKeys[bucketCount] = bucket;
+			bucketFirstRows[bucketCount] = row;
+			bucketCount++;
+		}
+	}
+
+	/**
+	 *
+	 * @return the rows of the invoice in the order they were added, empty if the
+	 *         invoice has no lineitems.
+	 */
+	public int[] rowsOfInvoice(String invoiceId) {
+		int[] invoiceRows = rowsByInvoice.get(invoiceId);
+		return invoiceRows == null ? NO_ROWS : invoiceRows;
+	}
+
+	/**
+	 *
+	 * @return the first row that can have a transaction time at or after
+	 *         fromNanos, the rows before it are all older than fromNanos.
+	 */
+	public int firstRowFrom(long fromNanos) {
+		int bucket = bucketAtOrAfter(Math.floorDiv(fromNanos, BUCKET_NANOS));
+		return bucket == bucketCount ? END_OF_ROWS : bucketFirstRows[bucket];
+	}
+
+	/**
+	 *
+	 * @return the row after the last one that can have a transaction time before
+	 *         toNanos, the rows from it on are all at or after toNanos.
+	 */
+	public int endRowBefore(long toNanos) {
+		if (toNanos > Long.MAX_VALUE - maxClockStepBack) {
+			return END_OF_ROWS;
+		}
+		// a row is bucketed by a time at most maxClockStepBack after its own.
+		long lastBucket = Math.floorDiv(toNanos + maxClockStepBack, BUCKET_NANOS);
+		int bucket = bucketAtOrAfter(lastBucket + 1);
+		return bucket == bucketCount ? END_OF_ROWS : bucketFirstRows[bucket];
+	}
+
+	public int getInvoiceCount() {
+		return rowsByInvoice.size();
+	}
+
+	public int getBucketCount() {
+		return bucketCount;
+	}
+
+	// index of the first bucket with a key at or after the given one.
+	private int bucketAtOrAfter(long key) {
+		int index = Arrays.binarySearch(bucketKeys, 0, bucketCount, key);
+		return index >= 0 ? index : -index - 1;
+	}
+
+}
@@ -4,9 +4,8 @@ import java.time.Instant;
 
 import com.netflix.billing.bank.controller.wire.CreditType;
 
-public class ProcessedCredit implements Cloneable {
+public class ProcessedCredit {
 
-	private final String CTypeTransId;
 	private final BankingTransaction curTransaction;
 
 	private volatile long amount = 0;
@@ -15,13 +14,14 @@ public class ProcessedCredit implements Cloneable {
 	// Type of credit. Different types of credits cannot be merged with each other.
 	private CreditType creditType;
 
-	public String getCTypeTransId() {
-		return CTypeTransId;
-	}
-
 	public ProcessedCredit(CreditType creditType, BankingTransaction curTransaction) {
 		this.curTransaction = curTransaction;
-		this.CTypeTransId = buildCreditTransactionId(creditType, curTransaction.getTransactionId());
+		this.creditType = creditType;
+	}
+
+	// customer id, credit type and transaction id of the credit.
+	public TransactionKey getTransactionKey() {
+		return curTransaction.getId();
 	}
 
 	// The time in UTC when the credit was applied to the account.
@@ -57,19 +57,10 @@ public class ProcessedCredit implements Cloneable {
 		this.creditType = creditType;
 	}
 
-	public static String buildCreditTransactionId(CreditType creditType, String transactionId) {
-		String creditTransId = String.format("ctype-%s-%s", creditType.ordinal(), transactionId);
-		return creditTransId;
-	}
-
-	@Override
-	public ProcessedCredit clone() throws CloneNotSupportedException {
-		return (ProcessedCredit) super.clone();
-	}
-
 	@Override
 	public String toString() {
-		return "ProcessedCredit [customerId=" + curTransaction.getCustomerId() + ", CTypeTransId=" + CTypeTransId + "]";
+		return "ProcessedCredit [customerId=" + curTransaction.getCustomerId() + ", transactionKey="
+				+ curTransaction.getId() + "]";
 	}
 
 }
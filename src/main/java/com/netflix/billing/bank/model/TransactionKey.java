@@ -0,0 +1,98 @@
+package com.netflix.billing.bank.model;
+
+import java.util.Objects;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+
+/**
+ *
+ * Idempotency key of a banking transaction.
+ *
+ * customerid+credittype+transactionid --> for transactions of type credit
+ * customerid+invoiceid --> for transactions of type debit
+ *
+ * The parts are kept as they are and the hash is computed once, building a
+ * key does not format or concatenate strings and equals compares the parts
+ * directly.
+ *
+ * @author rkata
+ *
+ */
+public final class TransactionKey {
+
+	// type of the debit keys, credit keys use the ordinal of their credit type.
+	public static final int DEBIT_TYPE = -1;
+
+	private final String customerId;
+	private final int type;
+	private final String externalId;
+	private final int hash;
+
+	private TransactionKey(String customerId, int type, String externalId) {
+		this.customerId = customerId;
+		this.type = type;
+		this.externalId = externalId;
+
+		int h = Objects.hashCode(customerId);
+		h = 31 * h + type;
+		h = 31 * h + Objects.hashCode(externalId);
+		this.hash = h;
+	}
+
+	public static TransactionKey forCredit(String customerId, CreditType creditType, String transactionId) {
+		return new TransactionKey(customerId, creditType.ordinal(), transactionId);
+	}
+
+	public static TransactionKey forDebit(String customerId, String invoiceId) {
+		return new TransactionKey(customerId, DEBIT_TYPE, invoiceId);
+	}
+
+	public String getCustomerId() {
+		return customerId;
+	}
+
+	/**
+	 *
+	 * @return ordinal of the credit type for credits, DEBIT_TYPE for debits.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	public boolean isDebit() {
+		return type == DEBIT_TYPE;
+	}
+
+	/**
+	 *
+	 * @return transaction id for credits, invoice id for debits.
+	 */
+	public String getExternalId() {
+		return externalId;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TransactionKey))
+			return false;
+		TransactionKey other = (TransactionKey) obj;
+		return hash == other.hash && type == other.type && Objects.equals(externalId, other.externalId)
+				&& Objects.equals(customerId, other.customerId);
+	}
+
+	@Override
+	public String toString() {
+		if (isDebit()) {
+			return customerId + "-" + externalId;
+		}
+		return customerId + "-" + type + "-" + externalId;
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.netflix.billing.bank.model;
+
+/**
+ *
+ * Idempotency keys of the transactions of one customer account. A key is the
+ * type of the transaction, the ordinal of the credit type or DEBIT_TYPE, and
+ * its transaction id or invoice id, the customer is the one of the account.
+ *
+ * Open addressing set with linear probing over parallel arrays of the ids and
+ * the types, the arrays are only allocated with the first key and doubled once
+ * they are half full. The set is not synchronized, it is read and written by
+ * the owner of the account like the rest of the account.
+ *
+ * @author rkata
+ *
+ */
+public final class TransactionKeySet {
+
+	private static final int MIN_CAPACITY = 8;
+
+	// stands for a null id, an empty slot has a null id.
+	private static final String NULL_ID = new String("");
+
+	private String[] ids;
+	private byte[] types;
+	private int size;
+
+	/**
+	 *
+	 * @return true if the key was added, false if it was already in the set.
+	 */
+	public boolean add(TransactionKey key) {
+		return add(key.getType(), key.getExternalId());
+	}
+
+	/**
+	 *
+	 * @param type       ordinal of the credit type or TransactionKey.DEBIT_TYPE.
+	 * @param externalId transaction id for credits, invoice id for debits.
+	 * @return true if the key was added, false if it was already in the set.
+	 */
+	public boolean add(int type, String externalId) {
+		if (ids == null) {
+			ids = new String[MIN_CAPACITY];
+			types = new byte[MIN_CAPACITY];
+		} else if (size + 1 > ids.length >>> 1) {
+			grow();
+		}
+
+		String id = externalId == null ? NULL_ID : externalId;
+		int mask = ids.length - 1;
+		int index = hash(type, externalId) & mask;
+		while (ids[index] != null) {
+			if (types[index] == type && same(ids[index], id)) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		ids[index] = id;
+		types[index] = (byte) type;
+		size++;
+		return true;
+	}
+
+	public boolean contains(TransactionKey key) {
+		return contains(key.getType(), key.getExternalId());
+	}
+
+	public boolean contains(int type, String externalId) {
+		if (ids == null) {
+			return false;
+		}
+		String id = externalId == null ? NULL_ID : externalId;
+		int mask = ids.length - 1;
+		int index = hash(type, externalId) & mask;
+		while (ids[index] != null) {
+			if (types[index] == type && same(ids[index], id)) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Walks the keys in no particular order.
+	 */
+	public void forEach(KeyConsumer action) {
+		if (ids == null) {
+			return;
+		}
+		for (int index = 0; index < ids.length; index++) {
+			if (ids[index] != null) {
+				action.accept(types[index], ids[index] == NULL_ID ? null : ids[index]);
+			}
+		}
+	}
+
+	private void grow() {
+		String[] oldIds = ids;
+		byte[] oldTypes = types;
+		ids = new String[oldIds.length << 1];
+		types = new byte[oldIds.length << 1];
+		int mask = ids.length - 1;
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] != null) {
+				int index = hash(oldTypes[i], oldIds[i] == NULL_ID ? null : oldIds[i]) & mask;
+				while (ids[index] != null) {
+					index = (index + 1) & mask;
+				}
+				ids[index] = oldIds[i];
+				types[index] = oldTypes[i];
+			}
+		}
+	}
+
+	private static boolean same(String stored, String id) {
+		if (stored == NULL_ID || id == NULL_ID) {
+			return stored == id;
+		}
+		return stored.equals(id);
+	}
+
+	private static int hash(int type, String externalId) {
+		int h = (externalId == null ? 0 : externalId.hashCode()) * 31 + type;
+		// spreads the bits of the string hash, linear probing is sensitive to
+		// clustered hashes.
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@FunctionalInterface
+	public interface KeyConsumer {
+		void accept(int type, String externalId);
+	}
+}
@@ -0,0 +1,61 @@
+package com.netflix.billing.bank.service;
+
+import java.util.function.Consumer;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+
+/**
+ *
+ * Idempotency store keeping the keys in the account they belong to. Keys are
+ * checked and recorded by the owner of the account while it processes the
+ * transaction, in the TransactionKeySet of the account, no map is shared
+ * between the accounts. Deleting an account drops its keys with it, and the
+ * keys are written to the snapshots with their account. The default store.
+ *
+ * The store holds nothing itself, keys can not be looked up or recorded
+ * without their account, so it is not a GlobalIdempotentTransactionStore.
+ * A snapshot written with another store can not be restored with it.
+ *
+ * @author rkata
+ *
+ */
+@Service
+@ConditionalOnProperty(name = "billingbank.idempotency.store", havingValue = "account", matchIfMissing = true)
+public class AccountIdempotentTransactionStore implements IdempotentTransactionStore {
+
+	@Override
+	public boolean recordTransactionIfNotAvailable(CustomerAccount custAccount, BankingTransaction curTransaction) {
+		return custAccount.getTransactionKeys().add(curTransaction.getId());
+	}
+
+	/**
+	 * The keys of this store are restored with their accounts, a key restored
+	 * on its own comes from a snapshot written with another store. Dropping it
+	 * would let a retry of its transaction be applied twice, so the restore
+	 * fails instead.
+	 */
+	@Override
+	public void restoreTransaction(BankingTransaction curTransaction) {
+		throw new IllegalStateException("Idempotency key " + curTransaction.getId()
+				+ " of the snapshot was written without the account store, restore the snapshot with"
+				+ " the billingbank.idempotency.store it was taken with.");
+	}
+
+	/**
+	 * Keys go away with their accounts.
+	 */
+	@Override
+	public void clearAllRequests() {
+	}
+
+	/**
+	 * Keys are written with their accounts.
+	 */
+	@Override
+	public void forEachTransaction(Consumer<BankingTransaction> action) {
+	}
+}
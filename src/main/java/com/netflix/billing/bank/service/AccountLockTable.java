@@ -0,0 +1,71 @@
+package com.netflix.billing.bank.service;
+
+/**
+ * Fixed size table of AccountSynchronizers, a customer is guarded by the
+ * stripe its customer id hashes to. The number of stripes is rounded up to a
+ * power of two so that the stripe is picked with a mask, customers sharing a
+ * stripe are serialized with each other but no lock is ever allocated per
+ * customer or per request.
+ *
+ * The stripes are not reentrant, a caller holding the lock of one customer
+ * must not acquire the lock of another customer.
+ *
+ * @author rkata
+ *
+ */
+public class AccountLockTable {
+
+	public static final int DEFAULT_STRIPES = 1024;
+
+	private static final int MAX_STRIPES = 1 << 30;
+
+	private final AccountSynchronizer[] stripes;
+	private final int mask;
+
+	public AccountLockTable(int stripeCount) {
+		if (stripeCount < 1 || stripeCount > MAX_STRIPES) {
+			throw new IllegalArgumentException("stripeCount should be between 1 and " + MAX_STRIPES);
+		}
+		int size = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+
+		this.stripes = new AccountSynchronizer[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new AccountSynchronizer("stripe-" + i);
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 *
+	 * @param customerId
+	 * @return the synchronizer guarding the customer.
+	 */
+	public AccountSynchronizer lockFor(String customerId) {
+		return stripes[stripeIndex(customerId)];
+	}
+
+	public int stripeIndex(String customerId) {
+		int h = customerId.hashCode();
+		// spread the high bits, String hashes of similar ids differ mostly in the low
+		// bits.
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 *
+	 * @return the number of callers registered as waiters of the stripes.
+	 */
+	public int getWaiterCount() {
+		int waiters = 0;
+		for (AccountSynchronizer stripe : stripes) {
+			waiters += stripe.getWaiterCount();
+		}
+		return waiters;
+	}
+
+}
@@ -1,23 +1,52 @@
 package com.netflix.billing.bank.service;
 
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /**
- * Account synchronizer which guards the customer Account is composed of
- * ReadWriteLock which synchornizes the calls that modify the state of the
+ * Account synchronizer which guards the customer Account is composed of a
+ * StampedLock which synchornizes the calls that modify the state of the
  * customerAccount.
- * 
+ *
+ * Besides the read and write locks it supports optimistic reads, a reader
+ * takes a stamp without writing to the lock word and validates it after
+ * reading, so readers of a hot account do not contend with each other. The
+ * locks are not reentrant.
+ *
+ * Callers waiting for the write lock may register as waiters of their
+ * customer, so that the number of requests of one customer piling up on the
+ * lock can be bounded without holding back the other customers sharing it.
+ * The waiters of a customer are counted in a small map cleaned up once the
+ * customer has no waiter left.
+ *
+ * Writes may also be queued on the synchronizer instead of waiting for the
+ * lock, the thread holding the write lock applies the queued writes in their
+ * arrival order before releasing it. At most one combiner is scheduled at a
+ * time to take the lock on behalf of the queued writes.
+ *
  * @author rkata
  *
  */
 public class AccountSynchronizer {
 
 	private final String customerId;
-	private final ReadWriteLock rqLock = new ReentrantReadWriteLock();
-	private final Lock readLock = rqLock.readLock();
-	private final Lock writeLock = rqLock.writeLock();
+	private final StampedLock stampedLock = new StampedLock();
+	private final Lock readLock = stampedLock.asReadLock();
+	private final Lock writeLock = stampedLock.asWriteLock();
+	private final ConcurrentHashMap<String, Integer> waitersByCustomer = new ConcurrentHashMap<>(4);
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+	private final AtomicLong pendingSequence = new AtomicLong();
+	private final AtomicBoolean combinerScheduled = new AtomicBoolean();
 
 	public AccountSynchronizer(String customerId) {
 		super();
@@ -44,6 +73,129 @@ public class AccountSynchronizer {
 		writeLock.lockInterruptibly();
 	}
 
+	/**
+	 *
+	 * @return true if the write lock was free and is now held by the caller.
+	 */
+	public boolean tryAcquireWriteLock() {
+		return writeLock.tryLock();
+	}
+
+	/**
+	 *
+	 * @return true if the write lock got acquired before the timeout.
+	 */
+	public boolean tryAcquireWriteLock(long timeout, TimeUnit unit) throws InterruptedException {
+		return writeLock.tryLock(timeout, unit);
+	}
+
+	/**
+	 *
+	 * @return true if a writer holds the lock at the time of the call.
+	 */
+	public boolean isWriteLocked() {
+		return stampedLock.isWriteLocked();
+	}
+
+	/**
+	 *
+	 * @param customerId customer the caller waits for.
+	 * @param maxWaiters number of waiters allowed per customer, unbounded when not
+	 *                   positive.
+	 * @return true if the caller is now a waiter, false if the customer has
+	 *         maxWaiters waiters already.
+	 */
+	public boolean tryEnterWaiters(String customerId, int maxWaiters) {
+		boolean[] entered = new boolean[1];
+		waitersByCustomer.compute(customerId, (id, count) -> {
+			int current = count == null ? 0 : count;
+			if (maxWaiters > 0 && current >= maxWaiters) {
+				return count;
+			}
+			entered[0] = true;
+			return current + 1;
+		});
+		if (entered[0]) {
+			waiters.incrementAndGet();
+		}
+		return entered[0];
+	}
+
+	public void leaveWaiters(String customerId) {
+		waitersByCustomer.computeIfPresent(customerId, (id, count) -> count == 1 ? null : count - 1);
+		waiters.decrementAndGet();
+	}
+
+	/**
+	 *
+	 * @return the waiters of every customer of the lock.
+	 */
+	public int getWaiterCount() {
+		return waiters.get();
+	}
+
+	public int getWaiterCount(String customerId) {
+		Integer count = waitersByCustomer.get(customerId);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 *
+	 * @return the number of customers with waiters on the lock.
+	 */
+	public int getWaitingCustomerCount() {
+		return waitersByCustomer.size();
+	}
+
+	void enqueuePendingWrite(PendingWrite pendingWrite) {
+		pendingWrite.sequence = pendingSequence.incrementAndGet();
+		pendingWrites.add(pendingWrite);
+	}
+
+	/**
+	 *
+	 * @return the sequence of the last write queued so far.
+	 */
+	long getLastPendingSequence() {
+		return pendingSequence.get();
+	}
+
+	/**
+	 *
+	 * @param lastSequence sequence of the last write to poll.
+	 * @return the oldest queued write, null if none is queued up to lastSequence.
+	 */
+	PendingWrite pollPendingWrite(long lastSequence) {
+		PendingWrite oldest = pendingWrites.peek();
+		if (oldest == null || oldest.sequence > lastSequence) {
+			return null;
+		}
+		// a later write if the oldest timed out meanwhile, queued concurrently with
+		// the caller all the same.
+		return pendingWrites.poll();
+	}
+
+	Iterator<PendingWrite> pendingWrites() {
+		return pendingWrites.iterator();
+	}
+
+	public boolean hasPendingWrites() {
+		return !pendingWrites.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return true if the caller should run the combiner, false if one is
+	 *         scheduled already.
+	 */
+	boolean tryScheduleCombiner() {
+		return !combinerScheduled.get() && combinerScheduled.compareAndSet(false, true);
+	}
+
+	void clearCombinerScheduled() {
+		combinerScheduled.set(false);
+	}
+
 	public void releaseReadLock() {
 		readLock.unlock();
 	}
@@ -51,4 +203,84 @@ public class AccountSynchronizer {
 	public void releaseWriteLock() {
 		writeLock.unlock();
 	}
+
+	/**
+	 *
+	 * @return a stamp to validate an optimistic read with, zero if the write lock
+	 *         is held.
+	 */
+	public long tryOptimisticRead() {
+		return stampedLock.tryOptimisticRead();
+	}
+
+	/**
+	 *
+	 * @param stamp
+	 * @return true if no write lock was acquired since the stamp was issued.
+	 */
+	public boolean validate(long stamp) {
+		return stampedLock.validate(stamp);
+	}
+
+	/**
+	 * Runs the reader optimistically once without ever blocking, the same way as
+	 * readOptimistically does before it falls back to the read lock.
+	 *
+	 * @param reader
+	 * @param result completed with the outcome of the reader if the read is valid
+	 * @return false if the write lock was held or got acquired while reading, the
+	 *         result is left as is then.
+	 */
+	public <T> boolean tryReadOptimistically(Supplier<T> reader, CompletableFuture<T> result) {
+		long stamp = stampedLock.tryOptimisticRead();
+		if (stamp == 0l) {
+			return false;
+		}
+		try {
+			T value = reader.get();
+			if (stampedLock.validate(stamp)) {
+				result.complete(value);
+				return true;
+			}
+		} catch (RuntimeException e) {
+			if (stampedLock.validate(stamp)) {
+				result.completeExceptionally(e);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the reader optimistically and falls back to running it under the read
+	 * lock if a writer got in while it was reading. The reader may observe the
+	 * account while it is being modified, it should only read and it should
+	 * tolerate inconsistent state, runtime exceptions raised by an invalidated
+	 * read are discarded and the read is retried under the read lock.
+	 *
+	 * @param reader
+	 * @return the result of the reader
+	 */
+	public <T> T readOptimistically(Supplier<T> reader) {
+		long stamp = stampedLock.tryOptimisticRead();
+		if (stamp != 0l) {
+			try {
+				T result = reader.get();
+				if (stampedLock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (stampedLock.validate(stamp)) {
+					throw e;
+				}
+			}
+		}
+
+		readLock.lock();
+		try {
+			return reader.get();
+		} finally {
+			readLock.unlock();
+		}
+	}
 }
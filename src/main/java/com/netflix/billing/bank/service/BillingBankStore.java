@@ -1,19 +1,135 @@
 package com.netflix.billing.bank.service;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
 import com.netflix.billing.bank.controller.wire.CreditAmount;
 import com.netflix.billing.bank.controller.wire.CustomerBalance;
 import com.netflix.billing.bank.controller.wire.DebitAmount;
 import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.RegistryStats;
 
 public interface BillingBankStore {
 
 	CustomerBalance getCustomerAccountBalance(String customerId);
 
+	byte[] getCustomerAccountBalanceJson(String customerId);
+
 	CustomerBalance processDebit(String customerId, DebitAmount debitAmount);
 
 	CustomerBalance processCredit(String customerId, CreditAmount creditReq);
 
 	DebitHistory debitHistory(String customerId);
 
+	/**
+	 * Reads one page of the debit history of the customer.
+	 * 
+	 * @return the page, null if there is no such customer.
+	 */
+	DebitHistoryPage debitHistoryPage(String customerId, DebitHistoryQuery query);
+
+	/**
+	 * Looks up the debits of an invoice through the invoice index of the
+	 * customer.
+	 * 
+	 * @return the debits of the invoice, null if there is no such customer.
+	 */
+	DebitHistory debitHistoryOfInvoice(String customerId, String invoiceId);
+
+	/**
+	 * Reads the debits applied from the start, inclusive, to the end of the time
+	 * range, exclusive, through the time index of the customer.
+	 * 
+	 * @return the debits of the range, null if there is no such customer.
+	 */
+	DebitHistory debitHistoryBetween(String customerId, Instant from, Instant to);
+
 	CustomerBalance delete(String customerId);
+
+	/**
+	 * Applies a batch of credits and debits across customers. The operations of
+	 * a customer are applied in order, with the same idempotency semantics as
+	 * processCredit and processDebit, and its balance is published once.
+	 */
+	BatchResult processBatch(List<BatchOperation> operations);
+
+	/**
+	 * Visits every account as its owner, one account at a time, so the visitor
+	 * sees a consistent state of the account while the other accounts keep
+	 * taking writes. Used to take snapshots.
+	 */
+	void forEachAccount(Consumer<CustomerAccount> visitor);
+
+	/**
+	 * Accounts, estimated bytes and writes of every shard of the customers of the
+	 * store, with the hot and oversized shards.
+	 */
+	RegistryStats getCustomerShardStats();
+
+	/**
+	 * Reads the debit history without blocking the caller where the store
+	 * supports it, by default the history is read on the calling thread. The
+	 * future completes with null if there is no such customer.
+	 */
+	default CompletableFuture<DebitHistory> debitHistoryAsync(String customerId) {
+		CompletableFuture<DebitHistory> result = new CompletableFuture<>();
+		try {
+			result.complete(debitHistory(customerId));
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Reads one page of the debit history without blocking the caller where the
+	 * store supports it, by default the page is read on the calling thread. The
+	 * future completes with null if there is no such customer.
+	 */
+	default CompletableFuture<DebitHistoryPage> debitHistoryPageAsync(String customerId, DebitHistoryQuery query) {
+		CompletableFuture<DebitHistoryPage> result = new CompletableFuture<>();
+		try {
+			result.complete(debitHistoryPage(customerId, query));
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Processes the debit without blocking the caller where the store supports
+	 * it, by default the debit is processed on the calling thread. Failures are
+	 * reported through the returned future.
+	 */
+	default CompletableFuture<CustomerBalance> processDebitAsync(String customerId, DebitAmount debitAmount) {
+		CompletableFuture<CustomerBalance> result = new CompletableFuture<>();
+		try {
+			result.complete(processDebit(customerId, debitAmount));
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Processes the credit without blocking the caller where the store supports
+	 * it, by default the credit is processed on the calling thread. Failures are
+	 * reported through the returned future.
+	 */
+	default CompletableFuture<CustomerBalance> processCreditAsync(String customerId, CreditAmount creditReq) {
+		CompletableFuture<CustomerBalance> result = new CompletableFuture<>();
+		try {
+			result.complete(processCredit(customerId, creditReq));
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
 }
@@ -1,31 +1,50 @@
 package com.netflix.billing.bank.service;
 
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import com.netflix.billing.bank.controller.wire.BatchItemResult;
+import com.netflix.billing.bank.controller.wire.BatchItemStatus;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
 import com.netflix.billing.bank.controller.wire.CreditAmount;
-import com.netflix.billing.bank.controller.wire.CreditType;
 import com.netflix.billing.bank.controller.wire.CustomerBalance;
 import com.netflix.billing.bank.controller.wire.DebitAmount;
 import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
 import com.netflix.billing.bank.controller.wire.DebitLineItem;
-import com.netflix.billing.bank.controller.wire.Money;
-import com.netflix.billing.bank.exception.ApiException;
-import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.exception.AccountBusyException;
 import com.netflix.billing.bank.model.CustomerAccount;
-import com.netflix.billing.bank.model.CustomerAccountByCurrency;
-import com.netflix.billing.bank.model.ProcessedCredit;
-import com.netflix.billing.bank.model.ProcessedDebit;
-import com.netflix.billing.bank.model.TransactionStatus;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.RegistryStats;
+import com.netflix.billing.bank.service.LockWaitPolicy.LockWaitStats;
+import com.netflix.billing.bank.service.LockWaitPolicy.Operation;
+import com.netflix.billing.bank.service.PendingWrite.AccountWrite;
+import com.netflix.billing.bank.snapshot.AccountSnapshotStore;
+import com.netflix.billing.bank.wal.WriteAheadLog;
 
 /**
  * 
@@ -34,50 +53,59 @@ import com.netflix.billing.bank.model.TransactionStatus;
  * operations associated with the customer should go through
  * BillingBankStoreImpl
  * 
+ * Credits and debits run on the calling thread while holding the write lock
+ * of the customer, this is the default engine of the bank. When the
+ * write-ahead log is enabled the lock is released once the operation is
+ * logged and the caller waits for the group commit outside of the lock. The
+ * async variants only run on the calling thread when the lock is free, a
+ * request finding the lock held waits for it on the LockWaitExecutor. Waits for
+ * a held lock are bounded by the LockWaitPolicy, operations are rejected with
+ * an AccountBusyException instead of waiting past it.
+ * 
+ * Async credits and debits finding the lock held are queued on the lock
+ * instead, the thread holding the lock applies the queued writes in their
+ * arrival order before releasing it and publishes the balance of each account
+ * once for all of them, so that a burst of writes on one customer does not
+ * take the lock and rebuild the balance once per write. A combiner waits for
+ * the lock on the LockWaitExecutor when no holder is left to apply them. A
+ * credit, debit, delete or batch taking the lock applies the writes queued
+ * before it first, so that it never overtakes them.
+ * 
  * @author rkata
  *
  */
 @Service
+@ConditionalOnProperty(name = "billingbank.store.engine", havingValue = "locking", matchIfMissing = true)
 public class BillingBankStoreImpl implements BillingBankStore {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(BillingBankStoreImpl.class);
 
-	@Autowired
 	private IdempotentTransactionStore requestStore;
 
-	// Every customer carries an accountSynchronizer which is used to synchronize
-	// calls that modify customerAccount.
-	private final ConcurrentHashMap<String, AccountSynchronizer> custActSyncMap = new ConcurrentHashMap<>();
+	private CustomerAccountProcessor accountProcessor;
 
-	private final ConcurrentHashMap<String, CustomerAccount> customers = new ConcurrentHashMap<>();
+	@Autowired(required = false)
+	private RequestAuditLog auditLog = RequestAuditLog.DISABLED;
 
-	private AccountSynchronizer getOrCreateCustomerSynchronizer(String customerId) {
-		AccountSynchronizer newAcctSync = new AccountSynchronizer(customerId);
-		AccountSynchronizer acctSyncInMap = custActSyncMap.putIfAbsent(customerId, newAcctSync);
-		if (acctSyncInMap == null) {
-			return newAcctSync;
-		} else {
-			return acctSyncInMap;
-		}
-	}
+	// customers are guarded by the stripe of the lock table their id hashes to.
+	@Autowired(required = false)
+	private AccountLockTable lockTable = new AccountLockTable(AccountLockTable.DEFAULT_STRIPES);
 
-	private AccountSynchronizer getCustomerSynchronizer(String customerId) {
-		return custActSyncMap.get(customerId);
-	}
+	// waits for the locks of the customers held by other requests.
+	private LockWaitExecutor lockWaitExecutor = new LockWaitExecutor(LockWaitExecutor.DEFAULT_THREADS,
+			LockWaitExecutor.DEFAULT_QUEUE_CAPACITY);
 
-	private CustomerAccount getOrCreateCustomerAccount(String customerId) {
-		CustomerAccount custAcct = new CustomerAccount(customerId);
-		CustomerAccount custAcctInMap = customers.putIfAbsent(customerId, custAcct);
-		if (custAcctInMap == null) {
-			return custAcct;
-		} else {
-			return custAcctInMap;
-		}
-	}
+	// deadlines and bounds of the waits for the locks.
+	@Autowired(required = false)
+	private LockWaitPolicy lockWaitPolicy = new LockWaitPolicy();
 
-	private CustomerAccount getCustomerAccount(String customerId) {
-		return customers.get(customerId);
-	}
+	// customers are split over the shards of the registry by their id.
+	@Autowired(required = false)
+	private CustomerAccountRegistry customers = new CustomerAccountRegistry();
+
+	private WriteAheadLog writeAheadLog = WriteAheadLog.DISABLED;
+
+	private AccountSnapshotStore snapshotStore;
 
 	/**
 	 * 
@@ -86,59 +114,25 @@ public class BillingBankStoreImpl implements BillingBankStore {
 	 * 
 	 */
 	public CustomerBalance processCredit(String customerId, CreditAmount creditReq) {
-		AccountSynchronizer custActSync = getOrCreateCustomerSynchronizer(customerId);
-		try {
-			custActSync.acquireWriteLock();
-
-			CustomerAccount custAccount = getOrCreateCustomerAccount(customerId);
-			BankingTransaction creditTransaction = Util.buildBankingTransaction(creditReq, customerId);
-			boolean canProcess = requestStore.recordTransactionIfNotAvailable(creditTransaction);
-
-			// if the credit request key is not seen before only then process the process
-			// the request
-			if (canProcess) {
-				LOGGER.info("Processing credit request with key " + creditTransaction.getId() + ".");
-				// go ahead and process the credit and update all indexes.
-				processCreditInternal(custAccount, creditReq, creditTransaction);
-			} else {
-				// duplicate request log and leave it.
-				LOGGER.info("Ignoring process credit request with key " + creditTransaction.getId()
-						+ " as it is already processed.");
-			}
-		} finally {
-			custActSync.releaseWriteLock();
-		}
-
+		auditLog.record(customerId, TransactionType.CREDIT, creditReq);
+		long lsn = write(customerId, Operation.CREDIT,
+				custAccount -> accountProcessor.processCredit(custAccount, creditReq));
+		writeAheadLog.awaitDurable(lsn);
 		return getCustomerAccountBalance(customerId);
 	}
 
 	/**
-	 * Need to be called in a thread safe manner from the bank store.
 	 * 
-	 * @param creditReq
+	 * Applies the credit on the calling thread when the lock of the customer is
+	 * free, the wait for a held lock and for the group commit of the write-ahead
+	 * log do not hold the request thread.
+	 * 
 	 */
-	private void processCreditInternal(CustomerAccount custAct, CreditAmount creditReq,
-			BankingTransaction curTransaction) {
-
-		TransactionStatus status = TransactionStatus.RECEIVED;
-		try {
-			if (creditReq != null) {
-				CustomerAccountByCurrency custActBalByCur = custAct
-						.getOrCreateCustomerAccountBalance(creditReq.getMoney().getCurrency());
-
-				ProcessedCredit procCredit = new ProcessedCredit(creditReq.getCreditType(), curTransaction);
-				procCredit.setAmount(creditReq.getMoney().getAmount());
-				procCredit.setCreditType(creditReq.getCreditType());
-				procCredit.setCurrency(creditReq.getMoney().getCurrency());
-
-				custActBalByCur.recordCredit(procCredit);
-			}
-			status = TransactionStatus.SUCESS;
-		} catch (Exception e) {
-			status = TransactionStatus.FAILURE;
-		} finally {
-			curTransaction.setStatus(status);
-		}
+	@Override
+	public CompletableFuture<CustomerBalance> processCreditAsync(String customerId, CreditAmount creditReq) {
+		auditLog.record(customerId, TransactionType.CREDIT, creditReq);
+		return writeAsync(customerId, Operation.CREDIT,
+				(custAccount, publish) -> accountProcessor.processCredit(custAccount, creditReq, publish));
 	}
 
 	/**
@@ -148,328 +142,570 @@ public class BillingBankStoreImpl implements BillingBankStore {
 	 * 
 	 */
 	public CustomerBalance processDebit(String customerId, DebitAmount debitAmount) {
+		auditLog.record(customerId, TransactionType.DEBIT, debitAmount);
+		long lsn = write(customerId, Operation.DEBIT,
+				custAccount -> accountProcessor.processDebit(custAccount, debitAmount));
+		writeAheadLog.awaitDurable(lsn);
+		return getCustomerAccountBalance(customerId);
+	}
 
-		AccountSynchronizer custActSync = getOrCreateCustomerSynchronizer(customerId);
-		try {
-			custActSync.acquireWriteLock();
-
-			CustomerAccount custAccount = getOrCreateCustomerAccount(customerId);
-			BankingTransaction debitTransaction = Util.buildBankingTransaction(debitAmount, customerId);
-			boolean canProcess = requestStore.recordTransactionIfNotAvailable(debitTransaction);
-			// if debit request key is not seen before only then process the request
-			if (canProcess) {
-				LOGGER.info("Processing Debit request with key " + debitTransaction.getId() + ".");
-				// go ahead and process the debit transaction and update all indexes.
-				processDebitInternal(custAccount, debitAmount, debitTransaction);
+	@Override
+	public CompletableFuture<CustomerBalance> processDebitAsync(String customerId, DebitAmount debitAmount) {
+		auditLog.record(customerId, TransactionType.DEBIT, debitAmount);
+		return writeAsync(customerId, Operation.DEBIT,
+				(custAccount, publish) -> accountProcessor.processDebit(custAccount, debitAmount, publish));
+	}
+
+	// applies the operation while holding the write lock, the lock is released
+	// before the operation is durable.
+	private long write(String customerId, Operation kind, ToLongFunction<CustomerAccount> operation) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		lockWaitPolicy.acquireWriteLock(custActSync, customerId, kind);
+		return writeLocked(custActSync, customerId, operation);
+	}
+
+	// the operation runs on the calling thread if it gets the lock right away,
+	// otherwise it is queued on the lock for its holder to apply, or handed to the
+	// lock wait executor to wait for the lock as one of its waiters when writes
+	// are not combined.
+	private CompletableFuture<CustomerBalance> writeAsync(String customerId, Operation kind,
+			AccountWrite operation) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		CompletableFuture<Long> logged;
+		// queued writes go first, they arrived earlier.
+		if (!custActSync.hasPendingWrites() && custActSync.tryAcquireWriteLock()) {
+			logged = new CompletableFuture<>();
+			try {
+				logged.complete(writeLocked(custActSync, customerId, custAccount -> operation.apply(custAccount, true)));
+			} catch (RuntimeException e) {
+				logged.completeExceptionally(e);
+			}
+		} else if (lockWaitPolicy.isCombining()) {
+			try {
+				lockWaitPolicy.enterWaiters(custActSync, customerId, kind);
+			} catch (AccountBusyException e) {
+				CompletableFuture<CustomerBalance> rejected = new CompletableFuture<>();
+				rejected.completeExceptionally(e);
+				return rejected;
+			}
+			PendingWrite pendingWrite = new PendingWrite(customerId, kind, operation, System.nanoTime());
+			// the caller sees the write done once it left the waiters.
+			logged = pendingWrite.logged.whenComplete((lsn, error) -> custActSync.leaveWaiters(customerId));
+			custActSync.enqueuePendingWrite(pendingWrite);
+			if (custActSync.tryAcquireWriteLock()) {
+				combineAndRelease(custActSync);
 			} else {
-				// duplicate request log and leave it.
-				LOGGER.info("Ignoring process Debit request with key " + debitTransaction.getId()
-						+ " as it is already processed.");
+				scheduleCombiner(custActSync);
+			}
+		} else {
+			try {
+				lockWaitPolicy.enterWaiters(custActSync, customerId, kind);
+			} catch (AccountBusyException e) {
+				CompletableFuture<CustomerBalance> rejected = new CompletableFuture<>();
+				rejected.completeExceptionally(e);
+				return rejected;
 			}
+			long startNanos = System.nanoTime();
+			// the waiter leaves once done, rejected by the executor included, before
+			// the caller sees the write done.
+			logged = lockWaitExecutor.submit(customerId, () -> {
+				lockWaitPolicy.awaitWriteLock(custActSync, customerId, kind, startNanos);
+				return writeLocked(custActSync, customerId, custAccount -> operation.apply(custAccount, true));
+			}).whenComplete((lsn, error) -> custActSync.leaveWaiters(customerId));
+		}
+		return logged.thenCompose(lsn -> whenDurable(customerId, lsn));
+	}
+
+	// the writes queued before the operation are applied ahead of it, the ones
+	// queued meanwhile before the lock is released.
+	private long writeLocked(AccountSynchronizer custActSync, String customerId,
+			ToLongFunction<CustomerAccount> operation) {
+		List<PendingWrite> combined = new ArrayList<>();
+		try {
+			combined.addAll(applyEarlierWrites(custActSync));
+			CustomerAccount custAccount = customers.getOrCreate(customerId);
+			long lsn = operation.applyAsLong(custAccount);
+			customers.recordWrite(custAccount);
+			combined.addAll(applyPendingWrites(custActSync));
+			return lsn;
 		} finally {
 			custActSync.releaseWriteLock();
+			completePendingWrites(custActSync, combined);
 		}
-
-		return getCustomerAccountBalance(customerId);
 	}
 
 	/**
-	 * 
-	 * gets the latest customer balance, Performs credit operation on the customer
-	 * account, write lock needs to be acquired before any operation that modifies
-	 * the state of the customer account
-	 * 
+	 * Applies the queued writes of the lock held by the caller, releases the lock
+	 * and completes them.
 	 */
-	public CustomerBalance getCustomerAccountBalance(String customerId) {
-		CustomerBalance custBal = null;
-		AccountSynchronizer custActSync = getCustomerSynchronizer(customerId);
-		if (custActSync != null) {
-			try {
-				custActSync.acquireReadLock();
-				CustomerAccount custAccount = getCustomerAccount(customerId);
-				if (custAccount != null) {
-					custBal = new CustomerBalance();
-					custBal.setBalanceAmounts(getAccountBalance(custAccount));
+	private void combineAndRelease(AccountSynchronizer custActSync) {
+		List<PendingWrite> combined = Collections.emptyList();
+		try {
+			combined = applyPendingWrites(custActSync);
+		} finally {
+			custActSync.releaseWriteLock();
+			completePendingWrites(custActSync, combined);
+		}
+	}
+
+	private List<PendingWrite> applyPendingWrites(AccountSynchronizer custActSync) {
+		return applyPendingWrites(custActSync, lockWaitPolicy.getMaxCombinedWrites(), Long.MAX_VALUE);
+	}
+
+	// applies every write queued before the caller took the lock, ahead of the
+	// operation of the caller. Not bounded by maxCombinedWrites as the caller
+	// would overtake the writes left queued otherwise.
+	private List<PendingWrite> applyEarlierWrites(AccountSynchronizer custActSync) {
+		return applyPendingWrites(custActSync, Integer.MAX_VALUE, custActSync.getLastPendingSequence());
+	}
+
+	// applies up to maxWrites queued writes up to lastSequence in their arrival
+	// order while holding the lock, the balance of every account written is
+	// published once at the end.
+	private List<PendingWrite> applyPendingWrites(AccountSynchronizer custActSync, int maxWrites,
+			long lastSequence) {
+		if (lockWaitPolicy.getMaxCombinedWrites() == 0 || !custActSync.hasPendingWrites()) {
+			return Collections.emptyList();
+		}
+		List<PendingWrite> combined = new ArrayList<>();
+		Set<CustomerAccount> written = Collections.newSetFromMap(new IdentityHashMap<>());
+		try {
+			PendingWrite pendingWrite;
+			while (combined.size() < maxWrites
+					&& (pendingWrite = custActSync.pollPendingWrite(lastSequence)) != null) {
+				// skips the writes that timed out meanwhile.
+				if (!pendingWrite.claim()) {
+					continue;
+				}
+				combined.add(pendingWrite);
+				CustomerAccount custAccount = customers.getOrCreate(pendingWrite.customerId);
+				written.add(custAccount);
+				pendingWrite.apply(custAccount);
+				customers.recordWrite(custAccount);
+			}
+		} finally {
+			for (CustomerAccount custAccount : written) {
+				custAccount.publishBalanceSnapshot();
+			}
+		}
+		if (!combined.isEmpty()) {
+			lockWaitPolicy.recordCombined(combined.size());
+		}
+		return combined;
+	}
+
+	// completes the writes applied while holding the lock, once it is released,
+	// and schedules a combiner for the writes left queued.
+	private void completePendingWrites(AccountSynchronizer custActSync, List<PendingWrite> combined) {
+		for (PendingWrite pendingWrite : combined) {
+			pendingWrite.complete();
+		}
+		if (custActSync.hasPendingWrites()) {
+			scheduleCombiner(custActSync);
+		}
+	}
+
+	// waits for the lock on the lock wait executor on behalf of the queued writes,
+	// unless a combiner is scheduled already.
+	private void scheduleCombiner(AccountSynchronizer custActSync) {
+		if (!custActSync.tryScheduleCombiner()) {
+			return;
+		}
+		PendingWrite oldest = null;
+		for (Iterator<PendingWrite> it = custActSync.pendingWrites(); oldest == null && it.hasNext();) {
+			oldest = it.next();
+		}
+		String customerId = oldest == null ? custActSync.getCustomerId() : oldest.customerId;
+		lockWaitExecutor.submit(customerId, () -> {
+			runCombiner(custActSync);
+			return null;
+		}).whenComplete((done, error) -> {
+			if (error != null) {
+				// the executor is full, the queued writes are rejected the same way.
+				custActSync.clearCombinerScheduled();
+				failPendingWrites(custActSync, Long.MAX_VALUE,
+						pendingWrite -> AccountBusyException.tooManyPending(error, pendingWrite.customerId));
+			}
+		});
+	}
+
+	// takes the lock until no write is left queued, writes still queued at their
+	// deadline time out.
+	private void runCombiner(AccountSynchronizer custActSync) {
+		do {
+			while (custActSync.hasPendingWrites()) {
+				long deadlineNanos = Long.MAX_VALUE;
+				for (Iterator<PendingWrite> it = custActSync.pendingWrites(); it.hasNext();) {
+					PendingWrite pendingWrite = it.next();
+					deadlineNanos = Math.min(deadlineNanos,
+							lockWaitPolicy.deadlineNanos(pendingWrite.kind, pendingWrite.startNanos));
+				}
+				boolean locked;
+				try {
+					if (deadlineNanos == Long.MAX_VALUE) {
+						custActSync.acquireWriteLockInterruptibly();
+						locked = true;
+					} else {
+						locked = custActSync.tryAcquireWriteLock(Math.max(0l, deadlineNanos - System.nanoTime()),
+								TimeUnit.NANOSECONDS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					custActSync.clearCombinerScheduled();
+					failPendingWrites(custActSync, Long.MAX_VALUE,
+							pendingWrite -> lockWaitPolicy.lockTimeout(e, pendingWrite.customerId, pendingWrite.kind));
+					return;
+				}
+				if (locked) {
+					combineAndRelease(custActSync);
 				} else {
-					LOGGER.info("No CustomerAccount found with id " + customerId + " to get CustomerAccountBalance.");
+					failPendingWrites(custActSync, System.nanoTime(),
+							pendingWrite -> lockWaitPolicy.lockTimeout(null, pendingWrite.customerId, pendingWrite.kind));
 				}
-				return custBal;
-			} finally {
-				custActSync.releaseReadLock();
+			}
+			custActSync.clearCombinerScheduled();
+			// a write queued while clearing found the combiner still scheduled.
+		} while (custActSync.hasPendingWrites() && custActSync.tryScheduleCombiner());
+	}
+
+	// fails the queued writes whose deadline is at or before nowNanos, all of them
+	// with a Long.MAX_VALUE nowNanos.
+	private void failPendingWrites(AccountSynchronizer custActSync, long nowNanos,
+			Function<PendingWrite, AccountBusyException> error) {
+		for (Iterator<PendingWrite> it = custActSync.pendingWrites(); it.hasNext();) {
+			PendingWrite pendingWrite = it.next();
+			if (nowNanos != Long.MAX_VALUE
+					&& lockWaitPolicy.deadlineNanos(pendingWrite.kind, pendingWrite.startNanos) > nowNanos) {
+				continue;
+			}
+			if (pendingWrite.claim()) {
+				it.remove();
+				pendingWrite.logged.completeExceptionally(error.apply(pendingWrite));
 			}
 		}
-		return custBal;
+	}
+
+	private CompletableFuture<CustomerBalance> whenDurable(String customerId, long lsn) {
+		return writeAheadLog.whenDurable(lsn).thenApply(durable -> getCustomerAccountBalance(customerId));
 	}
 
 	/**
-	 * Computes the account balance by using CustomerAccountByCurrency which
-	 * maintains an aggregated balance by currency, creditType
 	 * 
-	 * @return
+	 * gets the latest customer balance from the balance snapshot published by the
+	 * last write on the account, no lock is needed as the snapshot is immutable.
+	 * 
 	 */
-	private Map<CreditType, List<Money>> getAccountBalance(CustomerAccount customerAccount) {
+	public CustomerBalance getCustomerAccountBalance(String customerId) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			LOGGER.info("No CustomerAccount found with id {} to get CustomerAccountBalance.", customerId);
+			return null;
+		}
+		return custAccount.getBalanceSnapshot().getBalance();
+	}
 
-		Map<CreditType, List<Money>> custActBalanceByCreditType = new HashMap<>();
+	/**
+	 * 
+	 * gets the json of the latest customer balance, the json is serialized once
+	 * per balance snapshot and served from the snapshot after that.
+	 * 
+	 */
+	public byte[] getCustomerAccountBalanceJson(String customerId) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			return null;
+		}
+		return CustomerAccountProcessor.getBalanceJson(custAccount);
+	}
 
-		for (CustomerAccountByCurrency custActByCurrency : customerAccount.getCustAccountByCurrency()) {
-			String currency = custActByCurrency.getCurrency();
+	/**
+	 * 
+	 * Gets the debitHistory with an optimistic read, the history is read again
+	 * under the readLock() if a debit got processed while it was being read.
+	 * 
+	 */
+	public DebitHistory debitHistory(String customerId) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		return custActSync.readOptimistically(() -> readProcessedDebits(customerId));
+	}
 
-			for (Map.Entry<CreditType, Long> creditTypeBalEntry : custActByCurrency.getBalance().entrySet()) {
-				CreditType creditType = creditTypeBalEntry.getKey();
+	/**
+	 * 
+	 * Reads the debitHistory optimistically on the calling thread, the read is
+	 * handed to the lock wait executor if a writer holds the lock of the customer
+	 * or gets it while reading, the calling thread never blocks on the lock.
+	 * 
+	 */
+	@Override
+	public CompletableFuture<DebitHistory> debitHistoryAsync(String customerId) {
+		return readAsync(customerId, () -> readProcessedDebits(customerId));
+	}
 
-				List<Money> cTypeMoney = custActBalanceByCreditType.get(creditType);
-				if (cTypeMoney == null) {
-					cTypeMoney = new ArrayList<>();
-					custActBalanceByCreditType.put(creditType, cTypeMoney);
-				}
-				// record the balance now.
-				cTypeMoney.add(new Money(creditTypeBalEntry.getValue(), currency));
-			}
+	private DebitHistory readProcessedDebits(String customerId) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			LOGGER.info("No CustomerAccount found with id {} to get debitHistory.", customerId);
+			return null;
 		}
+		return new DebitHistory(accountProcessor.getProcessedDebits(custAccount));
+	}
 
-		return custActBalanceByCreditType;
+	/**
+	 * 
+	 * Gets one page of the debitHistory with an optimistic read, only the page is
+	 * read while holding the readLock() if a debit got processed meanwhile.
+	 * 
+	 */
+	@Override
+	public DebitHistoryPage debitHistoryPage(String customerId, DebitHistoryQuery query) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		return custActSync.readOptimistically(() -> readDebitHistoryPage(customerId, query));
 	}
 
 	/**
 	 * 
-	 * Gets the debitHistory after acquiring readLock()
+	 * Reads the page like debitHistoryAsync reads the whole history.
 	 * 
 	 */
-	public DebitHistory debitHistory(String customerId) {
-		DebitHistory debitHistory = null;
-		AccountSynchronizer custActSync = getCustomerSynchronizer(customerId);
-		if (custActSync != null) {
-			try {
-				custActSync.acquireReadLock();
-				CustomerAccount custAccount = getCustomerAccount(customerId);
-				if (custAccount != null) {
-					debitHistory = new DebitHistory(getProcessedDebits(custAccount));
-				} else {
-					LOGGER.info("No CustomerAccount found with id " + customerId + " to get debitHistory.");
-				}
-			} finally {
-				custActSync.releaseReadLock();
-			}
+	@Override
+	public CompletableFuture<DebitHistoryPage> debitHistoryPageAsync(String customerId, DebitHistoryQuery query) {
+		return readAsync(customerId, () -> readDebitHistoryPage(customerId, query));
+	}
+
+	private DebitHistoryPage readDebitHistoryPage(String customerId, DebitHistoryQuery query) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			return null;
 		}
-		return debitHistory;
-	}
-
-	private List<DebitLineItem> getProcessedDebits(CustomerAccount custAccount) {
-		List<DebitLineItem> debitLineItems = new ArrayList<DebitLineItem>();
-		Collection<CustomerAccountByCurrency> custActByCurrencies = custAccount.getCustAccountByCurrency();
-
-		for (CustomerAccountByCurrency custActByCurrency : custActByCurrencies) {
-			String currency = custActByCurrency.getCurrency();
-			for (ProcessedDebit p : custActByCurrency.getProcessedDebits()) {
-				DebitLineItem dli = new DebitLineItem();
-				dli.setCreditType(p.getCreditType());
-				dli.setInvoiceId(p.getInvoiceId());
-				dli.setTransactionId(p.getTransactionId());
-				dli.setTransactionDate(p.getTransactionDate());
-				dli.setAmount(new Money(p.getAmount(), currency));
-				debitLineItems.add(dli);
-			}
+		return accountProcessor.getProcessedDebitsPage(custAccount, query);
+	}
+
+	/**
+	 * Runs the reader optimistically on the calling thread, or on the lock wait
+	 * executor with the read lock to fall back to if the optimistic read fails.
+	 */
+	private <T> CompletableFuture<T> readAsync(String customerId, Supplier<T> reader) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		CompletableFuture<T> result = new CompletableFuture<>();
+		if (custActSync.tryReadOptimistically(reader, result)) {
+			return result;
 		}
+		return lockWaitExecutor.submit(customerId, () -> custActSync.readOptimistically(reader));
+	}
+
+	@Override
+	public DebitHistory debitHistoryOfInvoice(String customerId, String invoiceId) {
+		return readDebitHistory(customerId,
+				custAccount -> accountProcessor.getProcessedDebitsOfInvoice(custAccount, invoiceId));
+	}
+
+	@Override
+	public DebitHistory debitHistoryBetween(String customerId, Instant from, Instant to) {
+		return readDebitHistory(customerId,
+				custAccount -> accountProcessor.getProcessedDebitsBetween(custAccount, from, to));
+	}
 
-		return debitLineItems;
+	private DebitHistory readDebitHistory(String customerId, Function<CustomerAccount, List<DebitLineItem>> reader) {
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		return custActSync.readOptimistically(() -> {
+			CustomerAccount custAccount = customers.get(customerId);
+			if (custAccount == null) {
+				return null;
+			}
+			return new DebitHistory(reader.apply(custAccount));
+		});
 	}
 
 	@Override
 	public CustomerBalance delete(String customerId) {
 		CustomerBalance custBal = null;
-		AccountSynchronizer custActSync = getCustomerSynchronizer(customerId);
-		if (custActSync != null) {
-			try {
-				custActSync.acquireWriteLock();
-				CustomerAccount custAccount = customers.remove(customerId);
-				if (custAccount != null) {
-					LOGGER.info("Removed customer with " + customerId + " id.");
-					custBal = new CustomerBalance();
-					custBal.setBalanceAmounts(getAccountBalance(custAccount));
-				}
-			} finally {
-				custActSync.releaseWriteLock();
+		long lsn = WriteAheadLog.NO_LSN;
+		AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+		lockWaitPolicy.acquireWriteLock(custActSync, customerId, Operation.DELETE);
+		List<PendingWrite> combined = Collections.emptyList();
+		try {
+			combined = applyEarlierWrites(custActSync);
+			CustomerAccount custAccount = customers.remove(customerId);
+			if (custAccount != null) {
+				LOGGER.info("Removed customer with " + customerId + " id.");
+				custBal = custAccount.getBalanceSnapshot().getBalance();
+				lsn = accountProcessor.logDelete(customerId);
 			}
+		} finally {
+			custActSync.releaseWriteLock();
+			completePendingWrites(custActSync, combined);
 		}
 
+		writeAheadLog.awaitDurable(lsn);
 		return custBal;
 	}
 
 	/**
-	 * Need to be called in a thread safe manner from the bank store.
 	 * 
-	 * @param creditReq
+	 * Applies the operations of every customer of the batch while holding the
+	 * write lock of the customer once. The operations of a customer whose lock is
+	 * too busy fail, the other customers are applied.
+	 * 
 	 */
-	private void processDebitInternal(CustomerAccount custAccount, DebitAmount debitAmount,
-			BankingTransaction debitTransaction) {
-		TransactionStatus status = TransactionStatus.RECEIVED;
-		try {
-			if (debitAmount != null && debitAmount.getMoney() != null) {
-				CustomerAccountByCurrency custActBalByCur = custAccount
-						.getOrCreateCustomerAccountBalance(debitAmount.getMoney().getCurrency());
+	@Override
+	public BatchResult processBatch(List<BatchOperation> operations) {
+		BatchItemResult[] results = new BatchItemResult[operations.size()];
+		Map<String, List<Integer>> groups = CustomerAccountProcessor.groupByCustomer(operations, results);
+		Map<String, CustomerBalance> balances = new LinkedHashMap<>();
+		long lastLsn = WriteAheadLog.NO_LSN;
+
+		for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+			String customerId = group.getKey();
+			for (Integer index : group.getValue()) {
+				auditLog.record(operations.get(index));
+			}
 
-				if (custActBalByCur != null) {
-					processDebitTransaction(custActBalByCur, debitAmount, debitTransaction);
-					status = TransactionStatus.SUCESS;
-				} else {
-					status = TransactionStatus.FAILURE;
-					String errorMsg = String.format(
-							"No credits avialble to process debit request with currency  for customer %s, currency %s",
-							custAccount.getCustomerId(), debitAmount.getMoney().getCurrency());
-					LOGGER.error(errorMsg);
-					throw new ApiException(errorMsg);
+			CustomerAccount custAccount = null;
+			AccountSynchronizer custActSync = lockTable.lockFor(customerId);
+			try {
+				lockWaitPolicy.acquireWriteLock(custActSync, customerId, Operation.BATCH);
+			} catch (AccountBusyException e) {
+				for (Integer index : group.getValue()) {
+					results[index] = new BatchItemResult(index, customerId, BatchItemStatus.FAILED, e.getMessage());
 				}
+				continue;
 			}
-		} catch (Exception e) {
-			status = TransactionStatus.FAILURE;
-			throw e;
-		} finally {
-			debitTransaction.setStatus(status);
+			List<PendingWrite> combined = Collections.emptyList();
+			try {
+				combined = applyEarlierWrites(custActSync);
+				custAccount = customers.getOrCreate(customerId);
+				lastLsn = Math.max(lastLsn,
+						accountProcessor.processBatchGroup(custAccount, operations, group.getValue(), results));
+				customers.recordWrites(custAccount, group.getValue().size());
+			} finally {
+				custActSync.releaseWriteLock();
+				completePendingWrites(custActSync, combined);
+			}
+			balances.put(customerId, custAccount.getBalanceSnapshot().getBalance());
 		}
+
+		// one wait on the log for the whole batch.
+		writeAheadLog.awaitDurable(lastLsn);
+		return new BatchResult(Arrays.asList(results), balances);
 	}
 
 	/**
 	 * 
-	 * Process debit amount request for the customer.
+	 * Visits every account while holding its read lock, writers of the account
+	 * wait for the visit of that account only.
 	 * 
-	 * @param custActBalByCur
-	 * @param debitAmount
-	 * @param curTransaction
 	 */
-	private void processDebitTransaction(CustomerAccountByCurrency custActBalByCur, DebitAmount debitAmount,
-			BankingTransaction curTransaction) {
-		Long amtToDebit = debitAmount.getMoney().getAmount();
-
-		long totalCreditsAvail = custActBalByCur.totalCreditsAvailable();
-		// if the total credit is less than the debit amount that is requested the call
-		// would fail.
-		if (totalCreditsAvail < amtToDebit) {
-			String errorMsg = String.format(
-					"Not enough credit amount is avialble for customer %s to process debit request, totalCreditsAvail %s, amtToDebit %s, currency %s ",
-					custActBalByCur.getCustomerId(), totalCreditsAvail, amtToDebit,
-					debitAmount.getMoney().getCurrency());
-			throw new ApiException(errorMsg);
-		}
+	@Override
+	public void forEachAccount(Consumer<CustomerAccount> visitor) {
+		customers.forEach(custAccount -> {
+			AccountSynchronizer custActSync = lockTable.lockFor(custAccount.getCustomerId());
+			try {
+				custActSync.acquireReadLock();
+				// skips the account if it got deleted meanwhile.
+				if (customers.get(custAccount.getCustomerId()) == custAccount) {
+					visitor.accept(custAccount);
+				}
+			} finally {
+				custActSync.releaseReadLock();
+			}
+		});
+	}
 
-		// maintaining all the credits that are used to full fill the BankingTransaction
-		List<ProcessedCredit> creditsUsed = new ArrayList<>();
-		try {
-			while (amtToDebit > 0) {
-				ProcessedCredit availCredit = custActBalByCur.getSortedCredits().peek();
+	public IdempotentTransactionStore getRequestStore() {
+		return requestStore;
+	}
 
-				// safety check to make sure th
-				if (availCredit == null) {
-					throw new ApiException("No more credits avialble to process debit request with currency ");
-				}
+	@Autowired
+	public void setRequestStore(IdempotentTransactionStore requestStore) {
+		this.requestStore = requestStore;
+		this.accountProcessor = new CustomerAccountProcessor(requestStore, writeAheadLog);
+	}
 
-				long remainingCreditAmt = availCredit.getAmount() - amtToDebit;
+	public WriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
 
-				// Left over credit to use, update the amount on the available credit amount.
-				if (remainingCreditAmt > 0) {
+	@Autowired(required = false)
+	public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		if (requestStore != null) {
+			this.accountProcessor = new CustomerAccountProcessor(requestStore, writeAheadLog);
+		}
+	}
 
-					ProcessedCredit usedCredit = null;
-					try {
-						usedCredit = (ProcessedCredit) availCredit.clone();
-						usedCredit.setAmount(amtToDebit);
-					} catch (CloneNotSupportedException e) {
-						e.printStackTrace();
-					}
+	public AccountSnapshotStore getSnapshotStore() {
+		return snapshotStore;
+	}
 
-					creditsUsed.add(usedCredit);
+	@Autowired(required = false)
+	public void setSnapshotStore(AccountSnapshotStore snapshotStore) {
+		this.snapshotStore = snapshotStore;
+	}
 
-					// Remove the credit
-					custActBalByCur.getSortedCredits().poll();
+	/**
+	 * Rebuilds the customer accounts from the latest snapshot and the tail of the
+	 * write-ahead log before the store serves any request.
+	 */
+	@PostConstruct
+	public void recover() {
+		long snapshotLsn = WriteAheadLog.NO_LSN;
+		if (snapshotStore != null) {
+			snapshotLsn = snapshotStore.load(customers::restore, requestStore::restoreTransaction);
+		}
+		accountProcessor.recover(customers, snapshotLsn + 1);
+	}
 
-					// adjust the leftover amount on the processed credit or availCredit object
-					availCredit.setAmount(remainingCreditAmt);
-					custActBalByCur.getSortedCredits().offer(availCredit);
+	public AccountLockTable getLockTable() {
+		return lockTable;
+	}
 
-					// Debit request is fullfilled completely.
-					amtToDebit = 0l;
-				} else if (remainingCreditAmt <= 0) {
+	public void setLockTable(AccountLockTable lockTable) {
+		this.lockTable = lockTable;
+	}
 
-					// Debit request amount is higher than the credit amount that is used.
-					creditsUsed.add(availCredit);
-					// remove the credit
-					custActBalByCur.getSortedCredits().poll();
-					amtToDebit = Math.abs(remainingCreditAmt);
-				}
-			}
+	public CustomerAccountRegistry getCustomers() {
+		return customers;
+	}
 
-			postProcessOnCompletion(custActBalByCur, creditsUsed, curTransaction);
-		} catch (ApiException e) {
-			LOGGER.error("Exception while processing debit request", e);
-			// handle the case by rollbacking the credits that were removed/adjusted.
-			// Not needed - this is just a buffer
-			rollbackDebitTransaction(custActBalByCur, creditsUsed);
-			throw e;
-		}
+	public void setCustomers(CustomerAccountRegistry customers) {
+		this.customers = customers;
 	}
 
-	/**
-	 * 
-	 * Implementation of rollback of creditsUsed if it is not fullfilled completely.
-	 * 
-	 * @param custActBalByCur
-	 * @param creditsUsed
-	 */
-	private void rollbackDebitTransaction(CustomerAccountByCurrency custActBalByCur,
-			List<ProcessedCredit> creditsUsed) {
-		// credits are rollbacked here by adding them back to the sorted queue.
-		// No debit lineitems are built as the transaction has failed.
-		for (ProcessedCredit creditUsed : creditsUsed) {
-
-			ProcessedCredit creditAvailInQ = custActBalByCur.getSortedCredits().peek();
-			if (!creditAvailInQ.getCTypeTransId().equals(creditUsed.getCTypeTransId())) {
-				// put the credit back to the sorted queue.
-				custActBalByCur.getSortedCredits().offer(creditUsed);
-			} else {
-				custActBalByCur.getSortedCredits().poll();
-				// put the credit back by updating the amount to its original value.
-				creditAvailInQ.setAmount(creditAvailInQ.getAmount() + creditUsed.getAmount());
-				custActBalByCur.getSortedCredits().offer(creditAvailInQ);
-			}
-		}
+	@Override
+	public RegistryStats getCustomerShardStats() {
+		return customers.getStats();
 	}
 
-	/**
-	 * 
-	 * Build the ProcessedDebit lineitems and add it to processedDebits collection
-	 * update the credit balance by deducting the credit amounts that are used.
-	 * 
-	 * @param custActBalByCur
-	 * @param creditsUsed
-	 * @param curTransaction
-	 */
-	private void postProcessOnCompletion(CustomerAccountByCurrency custActBalByCur, List<ProcessedCredit> creditsUsed,
-			BankingTransaction curTransaction) {
-		// After adjusting the credit amount left, put the entry back int the map and
-		// into the sorted queue.
-		for (ProcessedCredit creditUsed : creditsUsed) {
-			// create debit lineitem for the credit amount that was used.
-			custActBalByCur.getProcessedDebits()
-					.add(createDebitTransaction(creditUsed.getAmount(), creditUsed, curTransaction));
-			custActBalByCur.updateBalance(creditUsed.getCreditType(), creditUsed.getAmount() * -1);
-		}
+	public LockWaitExecutor getLockWaitExecutor() {
+		return lockWaitExecutor;
 	}
 
-	private ProcessedDebit createDebitTransaction(Long amtDebitted, ProcessedCredit creditUsed,
-			BankingTransaction curTransaction) {
-		ProcessedDebit processedDebit = new ProcessedDebit(curTransaction);
-		processedDebit.setAmount(amtDebitted);
+	@Autowired(required = false)
+	public void setLockWaitExecutor(LockWaitExecutor lockWaitExecutor) {
+		this.lockWaitExecutor = lockWaitExecutor;
+	}
 
-		// mapping the credit trn information that is used.
-		processedDebit.setCreditType(creditUsed.getCreditType());
-		processedDebit.setTransactionId(creditUsed.getTransactionId());
+	public LockWaitPolicy getLockWaitPolicy() {
+		return lockWaitPolicy;
+	}
 
-		return processedDebit;
+	public void setLockWaitPolicy(LockWaitPolicy lockWaitPolicy) {
+		this.lockWaitPolicy = lockWaitPolicy;
 	}
 
-	public IdempotentTransactionStore getRequestStore() {
-		return requestStore;
+	/**
+	 *
+	 * @return the operations waiting for locks and the operations shed.
+	 */
+	public LockWaitStats getLockWaitStats() {
+		return lockWaitPolicy.getStats(lockTable, lockWaitExecutor);
 	}
 
-	public void setRequestStore(IdempotentTransactionStore requestStore) {
-		this.requestStore = requestStore;
+	public RequestAuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(RequestAuditLog auditLog) {
+		this.auditLog = auditLog;
 	}
 }
@@ -0,0 +1,303 @@
+package com.netflix.billing.bank.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ *
+ * Bloom filter in front of an idempotency store. Almost every transaction is
+ * new, a key the filter has never seen is recorded in the store without the
+ * duplicate check, only the keys the filter may have seen go through the
+ * lookup of the store.
+ *
+ * The filter is split in shards picked by the hash of the key, a shard is a
+ * blocked bloom filter: the bits of a key are all set in one block of 512 bits
+ * so that a key touches one cache line. A key is checked and recorded under
+ * the monitor of its shard, so the same key arriving twice is never taken for
+ * new twice.
+ *
+ * The filter is not persisted, it is filled again while the store is restored
+ * from the snapshot and the write-ahead log on restart, both record the keys
+ * through this store. Keys are never removed from the filter, keys dropped by
+ * the store only add to the false positives until the next restart.
+ *
+ * @author rkata
+ *
+ */
+public class BloomFilteredIdempotentTransactionStore implements GlobalIdempotentTransactionStore {
+
+	private static final int BLOCK_LONGS = 8;
+	private static final int BLOCK_BITS = BLOCK_LONGS * Long.SIZE;
+
+	private final GlobalIdempotentTransactionStore delegate;
+	private final Shard[] shards;
+	private final int shardMask;
+	private final int hashFunctions;
+
+	// new keys the filter had not seen.
+	private final LongAdder definiteMisses = new LongAdder();
+	// keys the filter may have seen, that were looked up in the store.
+	private final LongAdder probableDuplicates = new LongAdder();
+	// probable duplicates that turned out to be new keys.
+	private final LongAdder falsePositives = new LongAdder();
+
+	/**
+	 *
+	 * @param delegate     store holding the keys.
+	 * @param shardCount   number of shards, rounded up to a power of two.
+	 * @param expectedKeys number of keys the filter is sized for, the false
+	 *                     positive rate goes up past it.
+	 * @param bitsPerKey   bits of the filter per expected key.
+	 */
+	public BloomFilteredIdempotentTransactionStore(GlobalIdempotentTransactionStore delegate, int shardCount,
+			long expectedKeys, int bitsPerKey) {
+		if (shardCount < 1 || expectedKeys < 1 || bitsPerKey < 1) {
+			throw new IllegalArgumentException("shardCount, expectedKeys and bitsPerKey should be at least 1");
+		}
+		this.delegate = delegate;
+		this.shards = new Shard[Math.max(1, Integer.highestOneBit(shardCount - 1) << 1)];
+		this.shardMask = shards.length - 1;
+		this.hashFunctions = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+
+		long blocksPerShard = (expectedKeys * bitsPerKey / shards.length + BLOCK_BITS - 1) / BLOCK_BITS;
+		if (blocksPerShard * BLOCK_LONGS > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Bloom filter shards of " + blocksPerShard + " blocks are too large");
+		}
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard((int) Math.max(1, blocksPerShard));
+		}
+	}
+
+	public GlobalIdempotentTransactionStore getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public BankingTransaction getCurTransaction(TransactionKey id, TransactionType transactionType) {
+		long hash = hash(id);
+		Shard shard = shardOf(hash);
+		synchronized (shard) {
+			if (!shard.mightContain(hash, hashFunctions)) {
+				return null;
+			}
+		}
+		return delegate.getCurTransaction(id, transactionType);
+	}
+
+	@Override
+	public boolean recordTransactionIfNotAvailable(BankingTransaction curTransaction) {
+		long hash = hash(curTransaction.getId());
+		Shard shard = shardOf(hash);
+		synchronized (shard) {
+			if (!shard.mightContain(hash, hashFunctions)) {
+				shard.add(hash, hashFunctions);
+				delegate.recordNewTransaction(curTransaction);
+				definiteMisses.increment();
+				return true;
+			}
+			probableDuplicates.increment();
+			boolean recorded = delegate.recordTransactionIfNotAvailable(curTransaction);
+			if (recorded) {
+				falsePositives.increment();
+			}
+			return recorded;
+		}
+	}
+
+	@Override
+	public void recordNewTransaction(BankingTransaction curTransaction) {
+		long hash = hash(curTransaction.getId());
+		Shard shard = shardOf(hash);
+		synchronized (shard) {
+			shard.add(hash, hashFunctions);
+			delegate.recordNewTransaction(curTransaction);
+		}
+	}
+
+	@Override
+	public void updateStatus(BankingTransaction curTransaction) {
+		delegate.updateStatus(curTransaction);
+	}
+
+	@Override
+	public void clearAllRequests() {
+		delegate.clearAllRequests();
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.clear();
+			}
+		}
+		definiteMisses.reset();
+		probableDuplicates.reset();
+		falsePositives.reset();
+	}
+
+	@Override
+	public void forEachTransaction(Consumer<BankingTransaction> action) {
+		delegate.forEachTransaction(action);
+	}
+
+	public FilterStats getStats() {
+		long bitsSet = 0l;
+		long bits = 0l;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				bitsSet += shard.bitsSet;
+				bits += (long) shard.words.length * Long.SIZE;
+			}
+		}
+		return new FilterStats(bits, bitsSet, hashFunctions, definiteMisses.sum(), probableDuplicates.sum(),
+				falsePositives.sum());
+	}
+
+	private Shard shardOf(long hash) {
+		return shards[(int) (hash >>> 48) & shardMask];
+	}
+
+	private static long hash(TransactionKey id) {
+		long h = 0x9E3779B97F4A7C15L ^ id.getType();
+		h = hashChars(h, id.getCustomerId());
+		h = hashChars(h, id.getExternalId());
+		return fmix(h);
+	}
+
+	private static long hashChars(long h, String value) {
+		if (value == null) {
+			return Long.rotateLeft((h ^ -1) * 0x100000001B3L, 31) * 0x9E3779B97F4A7C15L;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			h = Long.rotateLeft((h ^ value.charAt(i)) * 0x100000001B3L, 31) * 0x9E3779B97F4A7C15L;
+		}
+		return h;
+	}
+
+	private static long fmix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Shard {
+		private final long[] words;
+		private final int blocks;
+		private long bitsSet;
+
+		private Shard(int blocks) {
+			this.blocks = blocks;
+			this.words = new long[blocks * BLOCK_LONGS];
+		}
+
+		// the low half of the hash picks the block, the bits in the block are
+		// picked by double hashing on a remix of the hash.
+		private int blockOffset(long hash) {
+			return (int) (((hash & 0xFFFFFFFFL) * blocks) >>> 32) * BLOCK_LONGS;
+		}
+
+		private boolean mightContain(long hash, int hashFunctions) {
+			int offset = blockOffset(hash);
+			long bitHash = fmix(hash ^ 0xC2B2AE3D27D4EB4FL);
+			int first = (int) bitHash;
+			int step = (int) (bitHash >>> 32) | 1;
+			for (int i = 0; i < hashFunctions; i++) {
+				int bit = (first + i * step) & (BLOCK_BITS - 1);
+				if ((words[offset + (bit >>> 6)] & (1l << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void add(long hash, int hashFunctions) {
+			int offset = blockOffset(hash);
+			long bitHash = fmix(hash ^ 0xC2B2AE3D27D4EB4FL);
+			int first = (int) bitHash;
+			int step = (int) (bitHash >>> 32) | 1;
+			for (int i = 0; i < hashFunctions; i++) {
+				int bit = (first + i * step) & (BLOCK_BITS - 1);
+				long word = words[offset + (bit >>> 6)];
+				if ((word & (1l << bit)) == 0) {
+					words[offset + (bit >>> 6)] = word | (1l << bit);
+					bitsSet++;
+				}
+			}
+		}
+
+		private void clear() {
+			Arrays.fill(words, 0l);
+			bitsSet = 0l;
+		}
+	}
+
+	/**
+	 * Counters of the filter, the false positive rate is the share of the new
+	 * keys the filter took for probable duplicates.
+	 */
+	public static class FilterStats {
+		private final long bits;
+		private final long bitsSet;
+		private final int hashFunctions;
+		private final long definiteMisses;
+		private final long probableDuplicates;
+		private final long falsePositives;
+
+		public FilterStats(long bits, long bitsSet, int hashFunctions, long definiteMisses, long probableDuplicates,
+				long falsePositives) {
+			this.bits = bits;
+			this.bitsSet = bitsSet;
+			this.hashFunctions = hashFunctions;
+			this.definiteMisses = definiteMisses;
+			this.probableDuplicates = probableDuplicates;
+			this.falsePositives = falsePositives;
+		}
+
+		public long getBits() {
+			return bits;
+		}
+
+		public long getBitsSet() {
+			return bitsSet;
+		}
+
+		public int getHashFunctions() {
+			return hashFunctions;
+		}
+
+		public long getDefiniteMisses() {
+			return definiteMisses;
+		}
+
+		public long getProbableDuplicates() {
+			return probableDuplicates;
+		}
+
+		public long getFalsePositives() {
+			return falsePositives;
+		}
+
+		/**
+		 *
+		 * @return false positives over the new keys seen.
+		 */
+		public double getFalsePositiveRate() {
+			long newKeys = definiteMisses + falsePositives;
+			return newKeys == 0 ? 0d : (double) falsePositives / newKeys;
+		}
+
+		/**
+		 *
+		 * @return false positive rate expected from the bits set, the blocks are
+		 *         taken as evenly filled.
+		 */
+		public double getExpectedFalsePositiveRate() {
+			return bits == 0 ? 0d : Math.pow((double) bitsSet / bits, hashFunctions);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.netflix.billing.bank.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.netflix.billing.bank.controller.wire.BatchItemResult;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
+import com.netflix.billing.bank.controller.wire.BulkImportReport;
+
+/**
+ *
+ * Imports credits and debits from newline delimited json, one BatchOperation
+ * per line. The input is parsed record by record with a streaming parser and
+ * cut into batches, the batches are handed over through a bounded queue to an
+ * applier thread which runs them through BillingBankStore.processBatch in the
+ * order they are read. Parsing and applying overlap and at most a few batches
+ * are held in memory whatever the size of the input.
+ *
+ * Records that do not map to a BatchOperation are counted as failed and
+ * skipped, the import is aborted if the input is not valid json or if the
+ * applier stops taking batches.
+ *
+ * @author rkata
+ *
+ */
+@Service
+public class BulkImportService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BulkImportService.class);
+
+	private static final ObjectReader OPERATION_READER = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).readerFor(BatchOperation.class);
+
+	private static final int MAX_REPORTED_ERRORS = 10;
+
+	// how often a reader blocked on a full queue checks that the applier is alive.
+	private static final long ENQUEUE_CHECK_MILLIS = 100l;
+
+	// marks the end of the input for the applier.
+	private static final List<BatchOperation> END_OF_INPUT = Collections.emptyList();
+
+	@Autowired
+	private BillingBankStore billingBankStore;
+
+	@Value("${billingbank.import.batch-size:1000}")
+	private int batchSize = 1000;
+
+	@Value("${billingbank.import.queued-batches:4}")
+	private int queuedBatches = 4;
+
+	@Value("${billingbank.import.progress-interval:100000}")
+	private long progressInterval = 100000;
+
+	public BulkImportReport importFile(Path path) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+			return importNdjson(in);
+		}
+	}
+
+	/**
+	 * Imports the operations of the stream, the stream is read till the end but
+	 * is not closed.
+	 *
+	 * @param in newline delimited json of BatchOperations
+	 * @return the summary of the import
+	 * @throws IOException if the stream could not be read
+	 */
+	public BulkImportReport importNdjson(InputStream in) throws IOException {
+		ImportProgress progress = new ImportProgress();
+		BlockingQueue<List<BatchOperation>> queue = new ArrayBlockingQueue<>(queuedBatches);
+		Thread applier = new Thread(() -> applyBatches(queue, progress), "billingbank-import-applier");
+		applier.setDaemon(true);
+		applier.start();
+
+		try (MappingIterator<BatchOperation> operations = OPERATION_READER.readValues(in)) {
+			List<BatchOperation> batch = new ArrayList<>(batchSize);
+			boolean applierStopped = false;
+			while (true) {
+				BatchOperation operation;
+				try {
+					if (!operations.hasNextValue()) {
+						break;
+					}
+					operation = operations.nextValue();
+				} catch (JsonMappingException e) {
+					// the parser skips the rest of the record, go on with the next one.
+					progress.operations.incrementAndGet();
+					progress.failed.incrementAndGet();
+					progress.error("record " + progress.operations.get() + ": " + e.getOriginalMessage());
+					continue;
+				} catch (JsonProcessingException e) {
+					LOGGER.error("Aborting import, input is not valid json.", e);
+					progress.aborted = true;
+					progress.error(
+							"aborted after " + progress.operations.get() + " records: " + e.getOriginalMessage());
+					break;
+				}
+
+				progress.operations.incrementAndGet();
+				batch.add(operation);
+				if (batch.size() == batchSize) {
+					if (!enqueue(queue, batch, applier)) {
+						applierStopped = true;
+						abortWithoutApplier(progress);
+						break;
+					}
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+
+			if (!batch.isEmpty() && !applierStopped && !enqueue(queue, batch, applier)) {
+				abortWithoutApplier(progress);
+			}
+		} finally {
+			try {
+				enqueue(queue, END_OF_INPUT, applier);
+			} catch (InterruptedIOException e) {
+				// the applier would wait for the end of the input forever.
+				applier.interrupt();
+				throw e;
+			}
+			awaitApplier(applier);
+		}
+
+		return progress.toReport();
+	}
+
+	/**
+	 * Waits for room in the queue as long as the applier is alive.
+	 *
+	 * @return false if the applier stopped before the batch could be queued.
+	 */
+	private boolean enqueue(BlockingQueue<List<BatchOperation>> queue, List<BatchOperation> batch, Thread applier)
+			throws IOException {
+		try {
+			while (!queue.offer(batch, ENQUEUE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (!applier.isAlive()) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing a batch of the import");
+		}
+	}
+
+	private static void abortWithoutApplier(ImportProgress progress) {
+		LOGGER.error("Aborting import, the applier stopped.");
+		progress.aborted = true;
+		progress.error("aborted after " + progress.operations.get() + " records: the applier stopped");
+	}
+
+	private void awaitApplier(Thread applier) throws IOException {
+		try {
+			applier.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting on the import to complete");
+		}
+	}
+
+	private void applyBatches(BlockingQueue<List<BatchOperation>> queue, ImportProgress progress) {
+		while (true) {
+			List<BatchOperation> batch;
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (batch == END_OF_INPUT) {
+				return;
+			}
+
+			try {
+				BatchResult batchResult = billingBankStore.processBatch(batch);
+				for (BatchItemResult itemResult : batchResult.getResults()) {
+					switch (itemResult.getStatus()) {
+					case APPLIED:
+						progress.applied.incrementAndGet();
+						break;
+					case DUPLICATE:
+						progress.duplicates.incrementAndGet();
+						break;
+					default:
+						progress.failed.incrementAndGet();
+						progress.error(itemResult.getCustomerId() + ": " + itemResult.getMessage());
+					}
+				}
+			} catch (RuntimeException e) {
+				LOGGER.error("Failed to apply a batch of the import.", e);
+				progress.failed.addAndGet(batch.size());
+				progress.error(e.getMessage());
+			}
+
+			long batches = progress.batches.incrementAndGet();
+			progress.logProgress(batches, progressInterval);
+		}
+	}
+
+	/**
+	 * Counters of an import, shared by the reader and the applier. Records that
+	 * could not be parsed are counted as failed by the reader.
+	 */
+	private static class ImportProgress {
+		private final long startNanos = System.nanoTime();
+		private final AtomicLong operations = new AtomicLong();
+		private final AtomicLong applied = new AtomicLong();
+		private final AtomicLong duplicates = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final List<String> errors = new ArrayList<>();
+		private long processedAtLastLog = 0l;
+		private volatile boolean aborted = false;
+
+		private synchronized void error(String message) {
+			if (errors.size() < MAX_REPORTED_ERRORS) {
+				errors.add(message);
+			}
+		}
+
+		private void logProgress(long batches, long progressInterval) {
+			long processed = applied.get() + duplicates.get() + failed.get();
+			if (processed - processedAtLastLog >= progressInterval) {
+				processedAtLastLog = processed;
+				LOGGER.info("Imported {} operations in {} batches, {} operations/s.", processed, batches,
+						operationsPerSecond(processed));
+			}
+		}
+
+		private long elapsedMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		}
+
+		private long operationsPerSecond(long processed) {
+			long elapsedMillis = Math.max(1l, elapsedMillis());
+			return processed * 1000l / elapsedMillis;
+		}
+
+		private synchronized BulkImportReport toReport() {
+			BulkImportReport report = new BulkImportReport();
+			report.setOperations(operations.get());
+			report.setApplied(applied.get());
+			report.setDuplicates(duplicates.get());
+			report.setFailed(failed.get());
+			report.setBatches(batches.get());
+			report.setElapsedMillis(elapsedMillis());
+			report.setOperationsPerSecond(operationsPerSecond(operations.get()));
+			report.setAborted(aborted);
+			report.setErrors(new ArrayList<>(errors));
+			LOGGER.info("Import completed, {} operations, {} applied, {} duplicates, {} failed in {} ms.",
+					report.getOperations(), report.getApplied(), report.getDuplicates(), report.getFailed(),
+					report.getElapsedMillis());
+			return report;
+		}
+	}
+
+	public BillingBankStore getBillingBankStore() {
+		return billingBankStore;
+	}
+
+	public void setBillingBankStore(BillingBankStore billingBankStore) {
+		this.billingBankStore = billingBankStore;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setQueuedBatches(int queuedBatches) {
+		this.queuedBatches = queuedBatches;
+	}
+
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+}
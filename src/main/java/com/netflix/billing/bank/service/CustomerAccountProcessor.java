@@ -0,0 +1,746 @@
+package com.netflix.billing.bank.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.billing.bank.controller.wire.BatchItemResult;
+import com.netflix.billing.bank.controller.wire.BatchItemStatus;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.CreditAmount;
+import com.netflix.billing.bank.controller.wire.DebitAmount;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.controller.wire.DebitLineItem;
+import com.netflix.billing.bank.controller.wire.Money;
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.exception.ApiStatusException;
+import com.netflix.billing.bank.model.BalanceSnapshot;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CreditConsumptionBuffer;
+import com.netflix.billing.bank.model.CreditLedger;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.model.CustomerAccountByCurrency;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+import com.netflix.billing.bank.model.DebitIndex;
+import com.netflix.billing.bank.model.ProcessedCredit;
+import com.netflix.billing.bank.model.TransactionStatus;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.wal.WalRecord;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+/**
+ * 
+ * Applies credits and debits to a CustomerAccount. The processor does not
+ * synchronize anything, the bank stores make sure that only one thread at a
+ * time works on an account, either by holding the write lock of the account
+ * or by running every operation of the account on the shard it belongs to.
+ * 
+ * @author rkata
+ *
+ */
+public class CustomerAccountProcessor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CustomerAccountProcessor.class);
+
+	private final IdempotentTransactionStore requestStore;
+
+	private final WriteAheadLog writeAheadLog;
+
+	public CustomerAccountProcessor(IdempotentTransactionStore requestStore) {
+		this(requestStore, WriteAheadLog.DISABLED);
+	}
+
+	public CustomerAccountProcessor(IdempotentTransactionStore requestStore, WriteAheadLog writeAheadLog) {
+		this.requestStore = requestStore;
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * Records the credit on the account unless it was processed before,
+	 * publishes the new balance of the account and logs the credit.
+	 * 
+	 * @return the lsn of the log record of the credit, the last lsn of the
+	 *         account for a duplicate, WriteAheadLog.NO_LSN if nothing was
+	 *         logged.
+	 */
+	public long processCredit(CustomerAccount custAccount, CreditAmount creditReq) {
+		return processCredit(custAccount, creditReq, true);
+	}
+
+	/**
+	 * Records the credit on the account unless it was processed before and logs
+	 * the credit.
+	 * 
+	 * @param publish publishes the new balance of the account, a caller applying
+	 *                several operations in a row publishes it once after the last.
+	 * @return the lsn of the log record of the credit, the last lsn of the
+	 *         account for a duplicate, WriteAheadLog.NO_LSN if nothing was
+	 *         logged.
+	 */
+	public long processCredit(CustomerAccount custAccount, CreditAmount creditReq, boolean publish) {
+		BankingTransaction creditTransaction = Util.buildBankingTransaction(creditReq, custAccount.getCustomerId());
+		BatchItemStatus status = applyCredit(custAccount, creditReq, creditTransaction);
+		if (status == BatchItemStatus.DUPLICATE) {
+			return custAccount.getAppliedLsn();
+		}
+		if (status != BatchItemStatus.APPLIED) {
+			return WriteAheadLog.NO_LSN;
+		}
+		if (publish) {
+			custAccount.publishBalanceSnapshot();
+		}
+		return logCredit(custAccount, creditTransaction, creditReq);
+	}
+
+	/**
+	 * Debits the account unless the invoice was processed before, publishes the
+	 * new balance of the account and logs the debit. The account is left
+	 * untouched if the debit fails.
+	 * 
+	 * @return the lsn of the log record of the debit, the last lsn of the account
+	 *         for a duplicate, WriteAheadLog.NO_LSN if nothing was logged.
+	 */
+	public long processDebit(CustomerAccount custAccount, DebitAmount debitAmount) {
+		return processDebit(custAccount, debitAmount, true);
+	}
+
+	/**
+	 * Debits the account unless the invoice was processed before and logs the
+	 * debit. The account is left untouched if the debit fails.
+	 * 
+	 * @param publish publishes the new balance of the account, a caller applying
+	 *                several operations in a row publishes it once after the last.
+	 * @return the lsn of the log record of the debit, the last lsn of the account
+	 *         for a duplicate, WriteAheadLog.NO_LSN if nothing was logged.
+	 */
+	public long processDebit(CustomerAccount custAccount, DebitAmount debitAmount, boolean publish) {
+		BankingTransaction debitTransaction = Util.buildBankingTransaction(debitAmount, custAccount.getCustomerId());
+		if (!applyDebit(custAccount, debitAmount, debitTransaction)) {
+			return custAccount.getAppliedLsn();
+		}
+		if (publish) {
+			custAccount.publishBalanceSnapshot();
+		}
+		return logDebit(custAccount, debitTransaction, debitAmount);
+	}
+
+	/**
+	 * Logs the deletion of the account of the customer.
+	 * 
+	 * @return the lsn of the log record, WriteAheadLog.NO_LSN if the log is
+	 *         disabled.
+	 */
+	public long logDelete(String customerId) {
+		return writeAheadLog.append(WalRecord.delete(customerId));
+	}
+
+	/**
+	 * Applies the operations of one customer in the given order and publishes the
+	 * balance of the account once at the end. An operation that fails is reported
+	 * as FAILED and does not stop the operations following it.
+	 * 
+	 * @param custAccount account of the customer of the operations
+	 * @param operations  all the operations of the batch
+	 * @param indexes     indexes of the operations of this customer
+	 * @param results     results of the batch, filled at the given indexes
+	 * @return the lsn of the last log record of the operations, at least the last
+	 *         lsn of the account if an operation was a duplicate,
+	 *         WriteAheadLog.NO_LSN if nothing was logged.
+	 */
+	public long processBatchGroup(CustomerAccount custAccount, List<BatchOperation> operations,
+			List<Integer> indexes, BatchItemResult[] results) {
+		boolean balanceChanged = false;
+		long lastLsn = WriteAheadLog.NO_LSN;
+		for (Integer index : indexes) {
+			BatchOperation operation = operations.get(index);
+			BatchItemStatus status;
+			String message = null;
+			try {
+				if (operation.getCredit() != null) {
+					CreditAmount creditReq = operation.getCredit();
+					BankingTransaction creditTransaction = Util.buildBankingTransaction(creditReq,
+							custAccount.getCustomerId());
+					status = applyCredit(custAccount, creditReq, creditTransaction);
+					if (status == BatchItemStatus.APPLIED) {
+						lastLsn = Math.max(lastLsn, logCredit(custAccount, creditTransaction, creditReq));
+					}
+				} else {
+					DebitAmount debitAmount = operation.getDebit();
+					BankingTransaction debitTransaction = Util.buildBankingTransaction(debitAmount,
+							custAccount.getCustomerId());
+					status = applyDebit(custAccount, debitAmount, debitTransaction) ? BatchItemStatus.APPLIED
+							: BatchItemStatus.DUPLICATE;
+					if (status == BatchItemStatus.APPLIED) {
+						lastLsn = Math.max(lastLsn, logDebit(custAccount, debitTransaction, debitAmount));
+					}
+				}
+				if (status == BatchItemStatus.DUPLICATE) {
+					// the original may not be durable yet.
+					lastLsn = Math.max(lastLsn, custAccount.getAppliedLsn());
+				}
+			} catch (RuntimeException e) {
+				status = BatchItemStatus.FAILED;
+				message = e.getMessage();
+			}
+			balanceChanged |= status == BatchItemStatus.APPLIED;
+			results[index] = new BatchItemResult(index, custAccount.getCustomerId(), status, message);
+		}
+
+		if (balanceChanged) {
+			custAccount.publishBalanceSnapshot();
+		}
+		return lastLsn;
+	}
+
+	/**
+	 * Groups the operations of a batch by customer, customers are listed in the
+	 * order of their first operation and the operations of a customer keep their
+	 * order. Invalid operations are failed right away and left out of the groups.
+	 * 
+	 * @param operations
+	 * @param results    results of the batch, filled for the invalid operations
+	 * @return the indexes of the operations by customer id
+	 */
+	public static Map<String, List<Integer>> groupByCustomer(List<BatchOperation> operations,
+			BatchItemResult[] results) {
+		Map<String, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < operations.size(); i++) {
+			BatchOperation operation = operations.get(i);
+			String invalidReason = validate(operation);
+			if (invalidReason != null) {
+				results[i] = new BatchItemResult(i, operation == null ? null : operation.getCustomerId(),
+						BatchItemStatus.FAILED, invalidReason);
+				continue;
+			}
+
+			List<Integer> indexes = groups.get(operation.getCustomerId());
+			if (indexes == null) {
+				indexes = new ArrayList<>();
+				groups.put(operation.getCustomerId(), indexes);
+			}
+			indexes.add(i);
+		}
+		return groups;
+	}
+
+	private static String validate(BatchOperation operation) {
+		if (operation == null || operation.getCustomerId() == null) {
+			return "customerId is required";
+		}
+		if ((operation.getCredit() == null) == (operation.getDebit() == null)) {
+			return "exactly one of credit and debit is required";
+		}
+		return null;
+	}
+
+	private BatchItemStatus applyCredit(CustomerAccount custAccount, CreditAmount creditReq,
+			BankingTransaction creditTransaction) {
+		boolean canProcess = requestStore.recordTransactionIfNotAvailable(custAccount, creditTransaction);
+
+		// if the credit request key is not seen before only then process the process
+		// the request
+		if (canProcess) {
+			LOGGER.info("Processing credit request with key {}.", creditTransaction.getId());
+			// go ahead and process the credit and update all indexes.
+			processCreditInternal(custAccount, creditReq, creditTransaction);
+			return creditTransaction.getStatus() == TransactionStatus.SUCESS ? BatchItemStatus.APPLIED
+					: BatchItemStatus.FAILED;
+		} else {
+			// duplicate request log and leave it.
+			LOGGER.info("Ignoring process credit request with key {} as it is already processed.",
+					creditTransaction.getId());
+			return BatchItemStatus.DUPLICATE;
+		}
+	}
+
+	private boolean applyDebit(CustomerAccount custAccount, DebitAmount debitAmount,
+			BankingTransaction debitTransaction) {
+		boolean canProcess = requestStore.recordTransactionIfNotAvailable(custAccount, debitTransaction);
+		// if debit request key is not seen before only then process the request
+		if (canProcess) {
+			LOGGER.info("Processing Debit request with key {}.", debitTransaction.getId());
+			// go ahead and process the debit transaction and update all indexes.
+			try {
+				processDebitInternal(custAccount, debitAmount, debitTransaction);
+			} catch (RuntimeException e) {
+				// the invoice id stays recorded, it is logged so that it does too after a
+				// restart.
+				logRejectedDebit(custAccount, debitTransaction, debitAmount);
+				throw e;
+			}
+		} else {
+			// duplicate request log and leave it.
+			LOGGER.info("Ignoring process Debit request with key {} as it is already processed.",
+					debitTransaction.getId());
+		}
+		return canProcess;
+	}
+
+	private long logCredit(CustomerAccount custAccount, BankingTransaction creditTransaction,
+			CreditAmount creditReq) {
+		if (writeAheadLog == WriteAheadLog.DISABLED) {
+			return WriteAheadLog.NO_LSN;
+		}
+		long lsn = writeAheadLog.append(WalRecord.credit(creditTransaction, creditReq.getCreditType(),
+				creditReq.getMoney().getCurrency(), creditReq.getMoney().getAmount()));
+		custAccount.setAppliedLsn(lsn);
+		return lsn;
+	}
+
+	private long logDebit(CustomerAccount custAccount, BankingTransaction debitTransaction,
+			DebitAmount debitAmount) {
+		if (writeAheadLog == WriteAheadLog.DISABLED) {
+			return WriteAheadLog.NO_LSN;
+		}
+		long lsn = writeAheadLog.append(
+				WalRecord.debit(debitTransaction, debitAmount.getMoney().getCurrency(), debitAmount.getMoney().getAmount()));
+		custAccount.setAppliedLsn(lsn);
+		return lsn;
+	}
+
+	private void logRejectedDebit(CustomerAccount custAccount, BankingTransaction debitTransaction,
+			DebitAmount debitAmount) {
+		if (writeAheadLog == WriteAheadLog.DISABLED) {
+			return;
+		}
+		String currency = debitAmount.getMoney() == null ? null : debitAmount.getMoney().getCurrency();
+		long amount = debitAmount.getMoney() == null ? 0l : debitAmount.getMoney().getAmount();
+		custAccount.setAppliedLsn(
+				writeAheadLog.append(WalRecord.rejectedDebit(debitTransaction, currency, amount)));
+	}
+
+	/**
+	 * Rebuilds the accounts and their idempotency keys from the write-ahead log
+	 * and publishes the balance of every account once at the end, needs to be
+	 * done before the store serves any request. The accounts can be restored
+	 * from a snapshot beforehand, records already applied to an account are
+	 * skipped.
+	 * 
+	 * @param customers registry the accounts are rebuilt in
+	 * @param fromLsn   records before this lsn are skipped
+	 * @return the number of records replayed
+	 */
+	public long recover(CustomerAccountRegistry customers, long fromLsn) {
+		long replayed = writeAheadLog.replay(fromLsn, record -> {
+			try {
+				replay(customers, record);
+			} catch (RuntimeException e) {
+				LOGGER.error("Failed to replay " + record, e);
+			}
+		});
+		if (replayed > 0) {
+			customers.forEach(CustomerAccount::publishBalanceSnapshot);
+		}
+		// the keys of the accounts restored from a snapshot are recorded after the
+		// accounts are put.
+		customers.forEach(customers::updateEstimatedBytes);
+		return replayed;
+	}
+
+	/**
+	 * Applies a record of the write-ahead log with the time it was originally
+	 * applied at, the record is not logged again. Only applied operations are
+	 * logged, so a record newer than the account is applied even if its
+	 * idempotency key was restored from a snapshot taken meanwhile.
+	 */
+	private void replay(CustomerAccountRegistry customers, WalRecord record) {
+		String customerId = record.getCustomerId();
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount != null && record.getLsn() <= custAccount.getAppliedLsn()) {
+			return;
+		}
+
+		Instant transactionTime = DebitHistoryStore.ofEpochNanos(record.getTransactionTimeNanos());
+		switch (record.getType()) {
+		case CREDIT: {
+			BankingTransaction creditTransaction = new BankingTransaction(
+					Util.buildCreditTransId(customerId, record.getCreditType(), record.getExternalId()),
+					TransactionType.CREDIT, transactionTime);
+			custAccount = customers.getOrCreate(customerId);
+			requestStore.recordTransactionIfNotAvailable(custAccount, creditTransaction);
+			processCreditInternal(custAccount, Util.buildCreditAmount(record.getExternalId(),
+					record.getCreditType(), record.getCurrency(), record.getAmount()), creditTransaction);
+			custAccount.setAppliedLsn(record.getLsn());
+			break;
+		}
+		case DEBIT: {
+			BankingTransaction debitTransaction = new BankingTransaction(
+					Util.buildDebitTransId(customerId, record.getExternalId()), TransactionType.DEBIT,
+					transactionTime);
+			custAccount = customers.getOrCreate(customerId);
+			requestStore.recordTransactionIfNotAvailable(custAccount, debitTransaction);
+			processDebitInternal(custAccount,
+					Util.buildDebitAmount(record.getExternalId(), record.getCurrency(), record.getAmount()),
+					debitTransaction);
+			custAccount.setAppliedLsn(record.getLsn());
+			break;
+		}
+		case DEBIT_REJECTED: {
+			// only the invoice id of the debit was kept.
+			BankingTransaction debitTransaction = new BankingTransaction(
+					Util.buildDebitTransId(customerId, record.getExternalId()), TransactionType.DEBIT,
+					transactionTime);
+			debitTransaction.setStatus(TransactionStatus.FAILURE);
+			custAccount = customers.getOrCreate(customerId);
+			requestStore.recordTransactionIfNotAvailable(custAccount, debitTransaction);
+			custAccount.setAppliedLsn(record.getLsn());
+			break;
+		}
+		case DELETE:
+			customers.remove(customerId);
+			break;
+		}
+	}
+
+	/**
+	 * 
+	 * gets the json of the latest balance of the account, the json is serialized
+	 * once per balance snapshot and served from the snapshot after that.
+	 * 
+	 */
+	public static byte[] getBalanceJson(CustomerAccount custAccount) {
+		BalanceSnapshot snapshot = custAccount.getBalanceSnapshot();
+		byte[] json = snapshot.getJson();
+		if (json == null) {
+			json = JsonUtils.writeValueAsBytes(snapshot.getBalance());
+			snapshot.setJson(json);
+		}
+		return json;
+	}
+
+	public List<DebitLineItem> getProcessedDebits(CustomerAccount custAccount) {
+		List<DebitLineItem> debitLineItems = new ArrayList<DebitLineItem>();
+		Collection<CustomerAccountByCurrency> custActByCurrencies = custAccount.getCustAccountByCurrency();
+
+		for (CustomerAccountByCurrency custActByCurrency : custActByCurrencies) {
+			String currency = custActByCurrency.getCurrency();
+			DebitHistoryStore processedDebits = custActByCurrency.getProcessedDebits();
+			for (int row = 0; row < processedDebits.size(); row++) {
+				debitLineItems.add(toDebitLineItem(processedDebits, row, currency));
+			}
+		}
+
+		return debitLineItems;
+	}
+
+	/**
+	 * Reads one page of the debit history, only the rows of the page are turned
+	 * into DebitLineItems. The cursor of the next page is the currency and the
+	 * row the next page starts from, currencies are walked in the order of their
+	 * codes so the cursor stays valid when the customer starts using a new
+	 * currency.
+	 * 
+	 * @param custAccount
+	 * @param query
+	 * @return the page, nextCursor is null on the last page.
+	 */
+	public DebitHistoryPage getProcessedDebitsPage(CustomerAccount custAccount, DebitHistoryQuery query) {
+		return getProcessedDebitsPage(custAccount, query, DebitHistoryQuery.MAX_LIMIT);
+	}
+
+	private DebitHistoryPage getProcessedDebitsPage(CustomerAccount custAccount, DebitHistoryQuery query,
+			int maxLimit) {
+		int limit = Math.min(Math.max(query.getLimit(), 1), maxLimit);
+		long fromNanos = query.getFrom() == null ? Long.MIN_VALUE : DebitHistoryStore.toEpochNanos(query.getFrom());
+		long toNanos = query.getTo() == null ? Long.MAX_VALUE : DebitHistoryStore.toEpochNanos(query.getTo());
+
+		String cursorCurrency = null;
+		int cursorRow = 0;
+		if (query.getAfter() != null) {
+			int separator = query.getAfter().lastIndexOf(':');
+			try {
+				cursorCurrency = query.getAfter().substring(0, separator);
+				cursorRow = Integer.parseInt(query.getAfter().substring(separator + 1));
+			} catch (RuntimeException e) {
+				throw new ApiStatusException("invalid_cursor", "Invalid debit history cursor " + query.getAfter(), 400);
+			}
+		}
+
+		List<String> currencies = new ArrayList<>();
+		if (query.getCurrency() != null) {
+			currencies.add(query.getCurrency());
+		} else {
+			for (CustomerAccountByCurrency custActByCurrency : custAccount.getCustAccountByCurrency()) {
+				currencies.add(custActByCurrency.getCurrency());
+			}
+			Collections.sort(currencies);
+		}
+
+		List<DebitLineItem> debitLineItems = new ArrayList<>(Math.min(limit, 64));
+		for (String currency : currencies) {
+			int startRow = 0;
+			if (cursorCurrency != null) {
+				int order = currency.compareTo(cursorCurrency);
+				if (order < 0) {
+					continue;
+				}
+				startRow = order == 0 ? cursorRow : 0;
+			}
+
+			CustomerAccountByCurrency custActByCurrency = custAccount.getCustAccountByCurrency(currency);
+			if (custActByCurrency == null) {
+				continue;
+			}
+			DebitHistoryStore processedDebits = custActByCurrency.getProcessedDebits();
+			DebitIndex debitIndex = custActByCurrency.getDebitIndex();
+			// rows outside of the time range are skipped through the time index.
+			startRow = Math.max(startRow, debitIndex.firstRowFrom(fromNanos));
+			int endRow = Math.min(processedDebits.size(), debitIndex.endRowBefore(toNanos));
+			for (int row = startRow; row < endRow; row++) {
+				long transactionTime = processedDebits.getTransactionTimeNanos(row);
+				if (transactionTime < fromNanos || transactionTime >= toNanos) {
+					continue;
+				}
+				if (debitLineItems.size() == limit) {
+					return new DebitHistoryPage(debitLineItems, currency + ":" + row);
+				}
+				debitLineItems.add(toDebitLineItem(processedDebits, row, currency));
+			}
+		}
+
+		return new DebitHistoryPage(debitLineItems, null);
+	}
+
+	/**
+	 * Looks up the debit lineitems of the invoice through the invoice index of
+	 * every currency of the account.
+	 * 
+	 * @param custAccount
+	 * @param invoiceId
+	 * @return the lineitems of the invoice, empty if it was not debited.
+	 */
+	public List<DebitLineItem> getProcessedDebitsOfInvoice(CustomerAccount custAccount, String invoiceId) {
+		List<DebitLineItem> debitLineItems = new ArrayList<>();
+		for (CustomerAccountByCurrency custActByCurrency : custAccount.getCustAccountByCurrency()) {
+			DebitHistoryStore processedDebits = custActByCurrency.getProcessedDebits();
+			for (int row : custActByCurrency.getDebitIndex().rowsOfInvoice(invoiceId)) {
+				debitLineItems.add(toDebitLineItem(processedDebits, row, custActByCurrency.getCurrency()));
+			}
+		}
+		return debitLineItems;
+	}
+
+	/**
+	 * Reads the debit lineitems applied in the time range, only the rows of the
+	 * time buckets covering the range are read.
+	 * 
+	 * @param custAccount
+	 * @param from        start of the range, inclusive.
+	 * @param to          end of the range, exclusive.
+	 * @return the lineitems of the range, currency by currency.
+	 */
+	public List<DebitLineItem> getProcessedDebitsBetween(CustomerAccount custAccount, Instant from, Instant to) {
+		DebitHistoryQuery query = new DebitHistoryQuery();
+		query.setLimit(Integer.MAX_VALUE);
+		query.setFrom(from);
+		query.setTo(to);
+		return getProcessedDebitsPage(custAccount, query, Integer.MAX_VALUE).getDebits();
+	}
+
+	private static DebitLineItem toDebitLineItem(DebitHistoryStore processedDebits, int row, String currency) {
+		DebitLineItem dli = new DebitLineItem();
+		dli.setCreditType(processedDebits.getCreditType(row));
+		dli.setInvoiceId(processedDebits.getInvoiceId(row));
+		dli.setTransactionId(processedDebits.getTransactionId(row));
+		dli.setTransactionDate(processedDebits.getTransactionDate(row));
+		dli.setAmount(new Money(processedDebits.getAmount(row), currency));
+		return dli;
+	}
+
+	/**
+	 * Need to be called in a thread safe manner by the owner of the account.
+	 * 
+	 * @param creditReq
+	 */
+	private void processCreditInternal(CustomerAccount custAct, CreditAmount creditReq,
+			BankingTransaction curTransaction) {
+
+		TransactionStatus status = TransactionStatus.RECEIVED;
+		try {
+			if (creditReq != null) {
+				CustomerAccountByCurrency custActBalByCur = custAct
+						.getOrCreateCustomerAccountBalance(creditReq.getMoney().getCurrency());
+
+				ProcessedCredit procCredit = new ProcessedCredit(creditReq.getCreditType(), curTransaction);
+				procCredit.setAmount(creditReq.getMoney().getAmount());
+				procCredit.setCreditType(creditReq.getCreditType());
+				procCredit.setCurrency(creditReq.getMoney().getCurrency());
+
+				custActBalByCur.recordCredit(procCredit);
+			}
+			status = TransactionStatus.SUCESS;
+		} catch (Exception e) {
+			status = TransactionStatus.FAILURE;
+		} finally {
+			curTransaction.setStatus(status);
+			requestStore.updateStatus(curTransaction);
+		}
+	}
+
+	/**
+	 * Need to be called in a thread safe manner by the owner of the account.
+	 * 
+	 * @param creditReq
+	 */
+	private void processDebitInternal(CustomerAccount custAccount, DebitAmount debitAmount,
+			BankingTransaction debitTransaction) {
+		TransactionStatus status = TransactionStatus.RECEIVED;
+		try {
+			if (debitAmount != null && debitAmount.getMoney() != null) {
+				CustomerAccountByCurrency custActBalByCur = custAccount
+						.getOrCreateCustomerAccountBalance(debitAmount.getMoney().getCurrency());
+
+				if (custActBalByCur != null) {
+					processDebitTransaction(custActBalByCur, debitAmount, debitTransaction);
+					status = TransactionStatus.SUCESS;
+				} else {
+					status = TransactionStatus.FAILURE;
+					String errorMsg = String.format(
+							"No credits avialble to process debit request with currency  for customer %s, currency %s",
+							custAccount.getCustomerId(), debitAmount.getMoney().getCurrency());
+					LOGGER.error(errorMsg);
+					throw new ApiException(errorMsg);
+				}
+			}
+		} catch (Exception e) {
+			status = TransactionStatus.FAILURE;
+			throw e;
+		} finally {
+			debitTransaction.setStatus(status);
+			requestStore.updateStatus(debitTransaction);
+		}
+	}
+
+	/**
+	 * 
+	 * Process debit amount request for the customer.
+	 * 
+	 * @param custActBalByCur
+	 * @param debitAmount
+	 * @param curTransaction
+	 */
+	private void processDebitTransaction(CustomerAccountByCurrency custActBalByCur, DebitAmount debitAmount,
+			BankingTransaction curTransaction) {
+		long amtToDebit = debitAmount.getMoney().getAmount();
+
+		long totalCreditsAvail = custActBalByCur.totalCreditsAvailable();
+		// if the total credit is less than the debit amount that is requested the call
+		// would fail.
+		if (totalCreditsAvail < amtToDebit) {
+			String errorMsg = String.format(
+					"Not enough credit amount is avialble for customer %s to process debit request, totalCreditsAvail %s, amtToDebit %s, currency %s ",
+					custActBalByCur.getCustomerId(), totalCreditsAvail, amtToDebit,
+					debitAmount.getMoney().getCurrency());
+			throw new ApiException(errorMsg);
+		}
+
+		// recording the credits and the amounts that are used to full fill the
+		// BankingTransaction, the buffer is reused across the debits of the account.
+		CreditConsumptionBuffer creditsUsed = custActBalByCur.getConsumptionBuffer();
+		CreditLedger creditLedger = custActBalByCur.getCreditLedger();
+		try {
+			while (amtToDebit > 0) {
+				// credits are walked bucket by bucket in the priority order of the credit
+				// types, oldest credit first.
+				ProcessedCredit availCredit = creditLedger.peekFirst();
+
+				// safety check to make sure th
+				if (availCredit == null) {
+					throw new ApiException("No more credits avialble to process debit request with currency ");
+				}
+
+				long remainingCreditAmt = availCredit.getAmount() - amtToDebit;
+
+				// Left over credit to use, update the amount on the available credit amount.
+				if (remainingCreditAmt > 0) {
+					creditsUsed.add(availCredit, amtToDebit);
+
+					// adjust the leftover amount in place, the credit stays at the head of its
+					// bucket.
+					availCredit.setAmount(remainingCreditAmt);
+
+					// Debit request is fullfilled completely.
+					amtToDebit = 0l;
+				} else if (remainingCreditAmt <= 0) {
+
+					// Debit request amount is higher than the credit amount that is used.
+					creditsUsed.add(availCredit, availCredit.getAmount());
+					// remove the credit, its amount is left as is.
+					creditLedger.pollFirst();
+					amtToDebit = Math.abs(remainingCreditAmt);
+				}
+			}
+
+			postProcessOnCompletion(custActBalByCur, creditsUsed, curTransaction);
+		} catch (ApiException e) {
+			LOGGER.error("Exception while processing debit request", e);
+			// handle the case by rollbacking the credits that were removed/adjusted.
+			// Not needed - this is just a buffer
+			rollbackDebitTransaction(custActBalByCur, creditsUsed);
+			throw e;
+		} finally {
+			creditsUsed.clear();
+		}
+	}
+
+	/**
+	 * 
+	 * Implementation of rollback of creditsUsed if it is not fullfilled completely.
+	 * 
+	 * @param custActBalByCur
+	 * @param creditsUsed
+	 */
+	private void rollbackDebitTransaction(CustomerAccountByCurrency custActBalByCur,
+			CreditConsumptionBuffer creditsUsed) {
+		// credits are rollbacked here by putting them back to the head of their
+		// bucket, walking the used credits backwards keeps the original order.
+		// No debit lineitems are built as the transaction has failed.
+		CreditLedger creditLedger = custActBalByCur.getCreditLedger();
+		for (int i = creditsUsed.size() - 1; i >= 0; i--) {
+			ProcessedCredit creditUsed = creditsUsed.getCredit(i);
+
+			if (creditLedger.peekFirst(creditUsed.getCreditType()) == creditUsed) {
+				// partially used credit is still in the ledger, put the amount back.
+				creditUsed.setAmount(creditUsed.getAmount() + creditsUsed.getAmount(i));
+			} else {
+				// fully used credit still carries its original amount, put it back to the
+				// ledger.
+				creditLedger.pushFirst(creditUsed);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Record the debit lineitems in the processedDebits store
+	 * update the credit balance by deducting the credit amounts that are used.
+	 * 
+	 * @param custActBalByCur
+	 * @param creditsUsed
+	 * @param curTransaction
+	 */
+	private void postProcessOnCompletion(CustomerAccountByCurrency custActBalByCur,
+			CreditConsumptionBuffer creditsUsed, BankingTransaction curTransaction) {
+		for (int i = 0; i < creditsUsed.size(); i++) {
+			ProcessedCredit creditUsed = creditsUsed.getCredit(i);
+			long amtDebitted = creditsUsed.getAmount(i);
+			// record the debit lineitem for the credit amount that was used.
+			DebitHistoryStore processedDebits = custActBalByCur.getProcessedDebits();
+			processedDebits.append(curTransaction.getTransactionId(), creditUsed.getTransactionId(),
+					creditUsed.getCreditType(), amtDebitted, curTransaction.getTransactionTime());
+			int row = processedDebits.size() - 1;
+			custActBalByCur.getDebitIndex().add(row, curTransaction.getTransactionId(),
+					processedDebits.getTransactionTimeNanos(row));
+			custActBalByCur.updateBalance(creditUsed.getCreditType(), -amtDebitted);
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package com.netflix.billing.bank.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.model.CustomerAccount;
+
+/**
+ * Registry of the CustomerAccounts known to a bank store. Lookups are thread
+ * safe, the accounts themselves are not and are only modified by the owner of
+ * the account, i.e the thread holding its write lock or the shard it is
+ * assigned to.
+ *
+ * The accounts are split over a fixed number of shards by the hash of their
+ * customer id, every shard has a map of its own presized for its share of the
+ * expected customers, so that a resize or a contended bin only stalls the
+ * customers of one shard. A shard keeps the estimated bytes of its accounts and
+ * counts their writes, so that hot and oversized slices of the customers can
+ * be told apart. The shard of a customer only depends on its id.
+ *
+ * The writers report their writes with recordWrite while they still own the
+ * account, the estimate of the account is counted again then.
+ *
+ * @author rkata
+ *
+ */
+public class CustomerAccountRegistry {
+
+	public static final int DEFAULT_SHARDS = 64;
+
+	public static final int DEFAULT_EXPECTED_CUSTOMERS = 100_000;
+
+	private static final int MAX_SHARDS = 1 << 16;
+
+	// a shard is reported hot or oversized past this many times the shard mean.
+	private static final double OUTLIER_FACTOR = 2d;
+
+	private final Shard[] shards;
+	private final int mask;
+
+	public CustomerAccountRegistry() {
+		this(DEFAULT_SHARDS, DEFAULT_EXPECTED_CUSTOMERS);
+	}
+
+	/**
+	 *
+	 * @param shardCount        number of shards, rounded up to a power of two.
+	 * @param expectedCustomers customers the maps of the shards are presized
+	 *                          for, 0 for the default size.
+	 */
+	public CustomerAccountRegistry(int shardCount, int expectedCustomers) {
+		if (shardCount < 1 || shardCount > MAX_SHARDS) {
+			throw new IllegalArgumentException("shardCount should be between 1 and " + MAX_SHARDS);
+		}
+		if (expectedCustomers < 0) {
+			throw new IllegalArgumentException("expectedCustomers should not be negative");
+		}
+		int size = shardCount == 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+		int perShard = (int) Math.min(Integer.MAX_VALUE / 2, (expectedCustomers + (long) size - 1) / size);
+
+		this.shards = new Shard[size];
+		for (int i = 0; i < size; i++) {
+			shards[i] = new Shard(perShard);
+		}
+		this.mask = size - 1;
+	}
+
+	public CustomerAccount getOrCreate(String customerId) {
+		Shard shard = shardFor(customerId);
+		CustomerAccount custAcct = shard.customers.get(customerId);
+		if (custAcct != null) {
+			return custAcct;
+		}
+
+		custAcct = new CustomerAccount(customerId);
+		CustomerAccount custAcctInMap = shard.customers.putIfAbsent(customerId, custAcct);
+		if (custAcctInMap != null) {
+			return custAcctInMap;
+		}
+		account(shard, custAcct);
+		return custAcct;
+	}
+
+	public CustomerAccount get(String customerId) {
+		return shardFor(customerId).customers.get(customerId);
+	}
+
+	/**
+	 * Puts an account rebuilt from a snapshot, replacing any account of the
+	 * customer.
+	 */
+	public void restore(CustomerAccount custAccount) {
+		Shard shard = shardFor(custAccount.getCustomerId());
+		CustomerAccount replaced = shard.customers.put(custAccount.getCustomerId(), custAccount);
+		if (replaced != null) {
+			shard.estimatedBytes.add(-replaced.getAccountedBytes());
+		}
+		account(shard, custAccount);
+	}
+
+	public CustomerAccount remove(String customerId) {
+		Shard shard = shardFor(customerId);
+		CustomerAccount custAccount = shard.customers.remove(customerId);
+		if (custAccount != null) {
+			shard.estimatedBytes.add(-custAccount.getAccountedBytes());
+		}
+		return custAccount;
+	}
+
+	/**
+	 * Counts a write on the account and its estimated bytes again, to be called
+	 * by the owner of the account after changing it.
+	 */
+	public void recordWrite(CustomerAccount custAccount) {
+		recordWrites(custAccount, 1);
+	}
+
+	/**
+	 * Counts writes on the account and its estimated bytes again, to be called by
+	 * the owner of the account after changing it.
+	 */
+	public void recordWrites(CustomerAccount custAccount, int writes) {
+		Shard shard = shardFor(custAccount.getCustomerId());
+		shard.writes.add(writes);
+		account(shard, custAccount);
+	}
+
+	/**
+	 * Counts the estimated bytes of the account again without counting a write,
+	 * to be called by the owner of the account.
+	 */
+	public void updateEstimatedBytes(CustomerAccount custAccount) {
+		account(shardFor(custAccount.getCustomerId()), custAccount);
+	}
+
+	private static void account(Shard shard, CustomerAccount custAccount) {
+		long bytes = custAccount.estimateBytes();
+		long delta = bytes - custAccount.getAccountedBytes();
+		if (delta != 0l) {
+			custAccount.setAccountedBytes(bytes);
+			shard.estimatedBytes.add(delta);
+		}
+	}
+
+	public void forEach(Consumer<CustomerAccount> action) {
+		for (Shard shard : shards) {
+			shard.customers.values().forEach(action);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			size += shard.customers.size();
+		}
+		return size;
+	}
+
+	public int shardIndex(String customerId) {
+		int h = customerId.hashCode();
+		// spread the high bits, String hashes of similar ids differ mostly in the low
+		// bits.
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	private Shard shardFor(String customerId) {
+		return shards[shardIndex(customerId)];
+	}
+
+	/**
+	 *
+	 * @return the accounts, estimated bytes and writes of every shard, the shards
+	 *         past twice the mean of the shards in writes or in bytes are listed
+	 *         as hot or oversized.
+	 */
+	public RegistryStats getStats() {
+		List<ShardStats> shardStats = new ArrayList<>(shards.length);
+		long accounts = 0l;
+		long estimatedBytes = 0l;
+		long writes = 0l;
+		for (int i = 0; i < shards.length; i++) {
+			ShardStats stats = new ShardStats(i, shards[i].customers.size(), shards[i].estimatedBytes.sum(),
+					shards[i].writes.sum());
+			shardStats.add(stats);
+			accounts += stats.getAccounts();
+			estimatedBytes += stats.getEstimatedBytes();
+			writes += stats.getWrites();
+		}
+
+		double hotWrites = OUTLIER_FACTOR * writes / shards.length;
+		double oversizedBytes = OUTLIER_FACTOR * estimatedBytes / shards.length;
+		List<Integer> hotShards = new ArrayList<>();
+		List<Integer> oversizedShards = new ArrayList<>();
+		for (ShardStats stats : shardStats) {
+			if (stats.getWrites() > 0 && stats.getWrites() > hotWrites) {
+				hotShards.add(stats.getShard());
+			}
+			if (stats.getEstimatedBytes() > 0 && stats.getEstimatedBytes() > oversizedBytes) {
+				oversizedShards.add(stats.getShard());
+			}
+		}
+		return new RegistryStats(accounts, estimatedBytes, writes, hotShards, oversizedShards, shardStats);
+	}
+
+	private static final class Shard {
+		private final ConcurrentHashMap<String, CustomerAccount> customers;
+		private final LongAdder estimatedBytes = new LongAdder();
+		private final LongAdder writes = new LongAdder();
+
+		private Shard(int expectedCustomers) {
+			// sized so that the expected customers fit without a resize.
+			this.customers = expectedCustomers == 0 ? new ConcurrentHashMap<>()
+					: new ConcurrentHashMap<>(expectedCustomers, 0.75f);
+		}
+	}
+
+	/**
+	 * Accounts, estimated bytes and writes since the start of one shard.
+	 */
+	public static class ShardStats {
+		private final int shard;
+		private final int accounts;
+		private final long estimatedBytes;
+		private final long writes;
+
+		public ShardStats(int shard, int accounts, long estimatedBytes, long writes) {
+			this.shard = shard;
+			this.accounts = accounts;
+			this.estimatedBytes = estimatedBytes;
+			this.writes = writes;
+		}
+
+		public int getShard() {
+			return shard;
+		}
+
+		public int getAccounts() {
+			return accounts;
+		}
+
+		/**
+		 *
+		 * @return the estimated heap used by the credits, debits and idempotency
+		 *         keys of the accounts of the shard.
+		 */
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		public long getWrites() {
+			return writes;
+		}
+	}
+
+	/**
+	 * Totals of the registry, the hot and oversized shards, and the stats of
+	 * every shard.
+	 */
+	public static class RegistryStats {
+		private final long accounts;
+		private final long estimatedBytes;
+		private final long writes;
+		private final List<Integer> hotShards;
+		private final List<Integer> oversizedShards;
+		private final List<ShardStats> shards;
+
+		public RegistryStats(long accounts, long estimatedBytes, long writes, List<Integer> hotShards,
+				List<Integer> oversizedShards, List<ShardStats> shards) {
+			this.accounts = accounts;
+			this.estimatedBytes = estimatedBytes;
+			this.writes = writes;
+			this.hotShards = hotShards;
+			this.oversizedShards = oversizedShards;
+			this.shards = shards;
+		}
+
+		public long getAccounts() {
+			return accounts;
+		}
+
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		public long getWrites() {
+			return writes;
+		}
+
+		/**
+		 *
+		 * @return the shards with more than twice the mean writes of the shards.
+		 */
+		public List<Integer> getHotShards() {
+			return hotShards;
+		}
+
+		/**
+		 *
+		 * @return the shards with more than twice the mean estimated bytes of the
+		 *         shards.
+		 */
+		public List<Integer> getOversizedShards() {
+			return oversizedShards;
+		}
+
+		public List<ShardStats> getShards() {
+			return shards;
+		}
+	}
+}
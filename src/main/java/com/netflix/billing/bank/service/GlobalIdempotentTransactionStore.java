@@ -0,0 +1,35 @@
+package com.netflix.billing.bank.service;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ * Idempotency store holding the keys of every account itself, keys can be
+ * looked up and recorded without their account.
+ */
+public interface GlobalIdempotentTransactionStore extends IdempotentTransactionStore {
+
+	BankingTransaction getCurTransaction(TransactionKey id, TransactionType transactionType);
+
+	boolean recordTransactionIfNotAvailable(BankingTransaction curTransaction);
+
+	@Override
+	default boolean recordTransactionIfNotAvailable(CustomerAccount custAccount, BankingTransaction curTransaction) {
+		return recordTransactionIfNotAvailable(curTransaction);
+	}
+
+	@Override
+	default void restoreTransaction(BankingTransaction curTransaction) {
+		recordTransactionIfNotAvailable(curTransaction);
+	}
+
+	/**
+	 * Records a transaction known not to be recorded yet, stores can skip the
+	 * duplicate check.
+	 */
+	default void recordNewTransaction(BankingTransaction curTransaction) {
+		recordTransactionIfNotAvailable(curTransaction);
+	}
+}
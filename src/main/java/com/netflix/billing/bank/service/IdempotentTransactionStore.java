@@ -1,13 +1,41 @@
 package com.netflix.billing.bank.service;
 
+import java.util.function.Consumer;
+
 import com.netflix.billing.bank.model.BankingTransaction;
-import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.model.CustomerAccount;
 
+/**
+ * Idempotency keys as seen by the bank stores, a key is always checked and
+ * recorded with the account it belongs to. Stores able to look keys up
+ * without their account implement GlobalIdempotentTransactionStore.
+ */
 public interface IdempotentTransactionStore {
 
-	BankingTransaction getCurTransaction(String id, TransactionType transactionType);
+	/**
+	 * Records a transaction of the account unless it was recorded before, called
+	 * by the owner of the account while it processes the transaction.
+	 */
+	boolean recordTransactionIfNotAvailable(CustomerAccount custAccount, BankingTransaction curTransaction);
 
-	boolean recordTransactionIfNotAvailable(BankingTransaction curTransaction);
+	/**
+	 * Records a transaction read back from a snapshot, before the log is
+	 * replayed.
+	 */
+	void restoreTransaction(BankingTransaction curTransaction);
 
 	void clearAllRequests();
+
+	/**
+	 * Called once the transaction is processed, stores keeping the transaction
+	 * itself see its status already.
+	 */
+	default void updateStatus(BankingTransaction curTransaction) {
+	}
+
+	/**
+	 * Walks the recorded transactions, transactions recorded while walking may or
+	 * may not be visited.
+	 */
+	void forEachTransaction(Consumer<BankingTransaction> action);
 }
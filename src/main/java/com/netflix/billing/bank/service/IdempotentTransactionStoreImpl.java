@@ -1,25 +1,37 @@
 package com.netflix.billing.bank.service;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
 import com.netflix.billing.bank.model.TransactionType;
 
+/**
+ * 
+ * Idempotency store remembering every transaction for the lifetime of the
+ * bank in maps shared by all the accounts.
+ * 
+ * @author rkata
+ *
+ */
 @Service
-public class IdempotentTransactionStoreImpl implements IdempotentTransactionStore {
+@ConditionalOnProperty(name = "billingbank.idempotency.store", havingValue = "unbounded")
+public class IdempotentTransactionStoreImpl implements GlobalIdempotentTransactionStore {
 
 	// Recording a key of customerid+credittype+transactionid ---> CreditRequest to
 	// store the CreditAmount request that is tied to a request.
-	private final ConcurrentHashMap<String, BankingTransaction> processedCredits = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<TransactionKey, BankingTransaction> processedCredits = new ConcurrentHashMap<>();
 
 	// Recording a key of customerid+invoiceid ---> DebitAmount to store all debits
 	// that are processed.
 	// store the DebitAmount request that is tied to the request.
-	private final ConcurrentHashMap<String, BankingTransaction> processedDebits = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<TransactionKey, BankingTransaction> processedDebits = new ConcurrentHashMap<>();
 
-	public BankingTransaction getCurTransaction(String id, TransactionType transactionType) {
+	public BankingTransaction getCurTransaction(TransactionKey id, TransactionType transactionType) {
 		if (TransactionType.CREDIT.equals(transactionType)) {
 			return processedCredits.get(id);
 		} else {
@@ -37,8 +49,22 @@ public class IdempotentTransactionStoreImpl implements IdempotentTransactionStor
 		return (custTransInMap == null) ? true : false;
 	}
 
+	@Override
+	public void recordNewTransaction(BankingTransaction curTransaction) {
+		if (TransactionType.CREDIT.equals(curTransaction.getTransactionType())) {
+			processedCredits.put(curTransaction.getId(), curTransaction);
+		} else {
+			processedDebits.put(curTransaction.getId(), curTransaction);
+		}
+	}
+
 	public void clearAllRequests() {
 		processedCredits.clear();
 		processedDebits.clear();
 	}
+
+	public void forEachTransaction(Consumer<BankingTransaction> action) {
+		processedCredits.values().forEach(action);
+		processedDebits.values().forEach(action);
+	}
 }
@@ -0,0 +1,147 @@
+package com.netflix.billing.bank.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.billing.bank.exception.AccountBusyException;
+
+/**
+ *
+ * Threads the locking engine hands an operation to when the lock of its
+ * customer is held, so that the request thread goes back to the server
+ * instead of being parked on the lock. Operations of customers whose lock is
+ * free never come here.
+ *
+ * The queue is bounded, operations are rejected with a 503 once it is full.
+ * The threads are daemon threads created on demand and let go once idle.
+ *
+ * With virtual threads every operation gets a virtual thread of its own, at
+ * most threads plus queueCapacity operations wait at a time, the others are
+ * rejected the same way. The jvm falls back to the pool when it has no virtual
+ * threads.
+ *
+ * @author rkata
+ *
+ */
+public class LockWaitExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LockWaitExecutor.class);
+
+	public static final int DEFAULT_THREADS = 64;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	private static final String THREAD_NAME_PREFIX = "billingbank-lock-wait-";
+
+	private final ExecutorService executor;
+
+	// operations allowed to wait at a time on virtual threads, null on the pool.
+	private final Semaphore virtualPermits;
+
+	private final LongAdder rejected = new LongAdder();
+
+	public LockWaitExecutor(int threads, int queueCapacity) {
+		this(threads, queueCapacity, false);
+	}
+
+	/**
+	 *
+	 * @param virtualThreads runs every operation on a virtual thread of its own
+	 *                       when the jvm has them.
+	 */
+	public LockWaitExecutor(int threads, int queueCapacity, boolean virtualThreads) {
+		if (threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("threads and queueCapacity should be at least 1");
+		}
+		ExecutorService virtualExecutor = virtualThreads
+				? VirtualThreads.newThreadPerTaskExecutor(THREAD_NAME_PREFIX)
+				: null;
+		if (virtualExecutor != null) {
+			this.executor = virtualExecutor;
+			this.virtualPermits = new Semaphore(threads + queueCapacity);
+			return;
+		}
+		if (virtualThreads) {
+			LOGGER.warn("Virtual threads are not available on this jvm, waiting for locks on {} threads.", threads);
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30l, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread thread = new Thread(r, THREAD_NAME_PREFIX + threadCount.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+		this.virtualPermits = null;
+	}
+
+	/**
+	 * Runs the task on one of the threads, the future completes with the
+	 * exception thrown by the task if it fails.
+	 */
+	public <T> CompletableFuture<T> submit(String customerId, Supplier<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try {
+			if (virtualPermits != null && !virtualPermits.tryAcquire()) {
+				throw new RejectedExecutionException("Too many operations waiting on locks");
+			}
+			executor.execute(() -> {
+				try {
+					result.complete(task.get());
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				} finally {
+					if (virtualPermits != null) {
+						virtualPermits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("Rejecting request for customer {}, too many requests are waiting on locks.", customerId);
+			rejected.increment();
+			result.completeExceptionally(AccountBusyException.tooManyPending(e, customerId));
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return true if the operations run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return virtualPermits != null;
+	}
+
+	/**
+	 *
+	 * @return the number of operations waiting for a thread, none wait for one
+	 *         on virtual threads.
+	 */
+	public int getQueuedCount() {
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+	}
+
+	/**
+	 *
+	 * @return the number of operations rejected as too many were waiting.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
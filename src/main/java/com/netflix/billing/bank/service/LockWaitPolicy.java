@@ -0,0 +1,281 @@
+package com.netflix.billing.bank.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.netflix.billing.bank.exception.AccountBusyException;
+
+/**
+ *
+ * How long the operations of the locking engine wait for the lock of their
+ * customer, and how many of them may wait for one customer. An operation
+ * finding maxWaiters operations of its customer waiting already is rejected with a 429 without waiting,
+ * an operation still waiting past the timeout of its kind gives up with a 503,
+ * so that a flood of requests on a hot account is shed instead of piling up
+ * threads. The deadline counts from the start of the wait, time spent queued
+ * for a lock wait thread included.
+ *
+ * Waiters are counted per customer, a hot customer does not take the waiter
+ * slots of the customers sharing its lock stripe. A timeout of 0 waits without
+ * a deadline, a maxWaiters of 0 lets any number of operations wait.
+ *
+ * Async credits and debits finding the lock held are queued on it and applied
+ * by the thread holding it, at most maxCombinedWrites of them per hold so that
+ * the holder does not keep the lock for too long. They wait as waiters of the
+ * lock and time out the same way. A maxCombinedWrites of 0 disables combining,
+ * every waiting operation takes the lock for itself.
+ *
+ * @author rkata
+ *
+ */
+public class LockWaitPolicy {
+
+	public static final long DEFAULT_TIMEOUT_MILLIS = 2000l;
+
+	public static final long DEFAULT_BULK_TIMEOUT_MILLIS = 5000l;
+
+	public static final int DEFAULT_MAX_WAITERS = 128;
+
+	public static final int DEFAULT_MAX_COMBINED_WRITES = 64;
+
+	public enum Operation {
+		CREDIT, DEBIT, DELETE, BATCH
+	}
+
+	private final Map<Operation, Long> timeoutMillis = new EnumMap<>(Operation.class);
+	private final int maxWaiters;
+	private final int maxCombinedWrites;
+
+	private final Map<Operation, LongAdder> rejected = new EnumMap<>(Operation.class);
+	private final Map<Operation, LongAdder> timedOut = new EnumMap<>(Operation.class);
+	private final LongAdder combinedRounds = new LongAdder();
+	private final LongAdder combinedWrites = new LongAdder();
+
+	public LockWaitPolicy() {
+		this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, DEFAULT_BULK_TIMEOUT_MILLIS, DEFAULT_BULK_TIMEOUT_MILLIS,
+				DEFAULT_MAX_WAITERS);
+	}
+
+	public LockWaitPolicy(long creditTimeoutMillis, long debitTimeoutMillis, long deleteTimeoutMillis,
+			long batchTimeoutMillis, int maxWaiters) {
+		this(creditTimeoutMillis, debitTimeoutMillis, deleteTimeoutMillis, batchTimeoutMillis, maxWaiters,
+				DEFAULT_MAX_COMBINED_WRITES);
+	}
+
+	public LockWaitPolicy(long creditTimeoutMillis, long debitTimeoutMillis, long deleteTimeoutMillis,
+			long batchTimeoutMillis, int maxWaiters, int maxCombinedWrites) {
+		if (creditTimeoutMillis < 0 || debitTimeoutMillis < 0 || deleteTimeoutMillis < 0 || batchTimeoutMillis < 0
+				|| maxWaiters < 0 || maxCombinedWrites < 0) {
+			throw new IllegalArgumentException("timeouts, maxWaiters and maxCombinedWrites should not be negative");
+		}
+		timeoutMillis.put(Operation.CREDIT, creditTimeoutMillis);
+		timeoutMillis.put(Operation.DEBIT, debitTimeoutMillis);
+		timeoutMillis.put(Operation.DELETE, deleteTimeoutMillis);
+		timeoutMillis.put(Operation.BATCH, batchTimeoutMillis);
+		this.maxWaiters = maxWaiters;
+		this.maxCombinedWrites = maxCombinedWrites;
+		for (Operation operation : Operation.values()) {
+			rejected.put(operation, new LongAdder());
+			timedOut.put(operation, new LongAdder());
+		}
+	}
+
+	/**
+	 * Takes the write lock right away if it is free, waits for it as one of the
+	 * waiters of the lock otherwise.
+	 *
+	 * @throws AccountBusyException if there are too many waiters already or the
+	 *                              lock is not acquired in time.
+	 */
+	public void acquireWriteLock(AccountSynchronizer custActSync, String customerId, Operation operation) {
+		if (custActSync.tryAcquireWriteLock()) {
+			return;
+		}
+		enterWaiters(custActSync, customerId, operation);
+		try {
+			awaitWriteLock(custActSync, customerId, operation, System.nanoTime());
+		} finally {
+			custActSync.leaveWaiters(customerId);
+		}
+	}
+
+	/**
+	 * Registers the caller as a waiter of the customer on its lock, it should
+	 * call leaveWaiters on the synchronizer once done waiting.
+	 *
+	 * @throws AccountBusyException if there are too many waiters already.
+	 */
+	public void enterWaiters(AccountSynchronizer custActSync, String customerId, Operation operation) {
+		if (!custActSync.tryEnterWaiters(customerId, maxWaiters)) {
+			rejected.get(operation).increment();
+			throw AccountBusyException.tooManyWaiters(customerId, maxWaiters);
+		}
+	}
+
+	/**
+	 * Waits for the write lock until the timeout of the operation, counted from
+	 * startNanos.
+	 *
+	 * @throws AccountBusyException if the lock is not acquired in time.
+	 */
+	public void awaitWriteLock(AccountSynchronizer custActSync, String customerId, Operation operation,
+			long startNanos) {
+		long timeout = timeoutMillis.get(operation);
+		if (timeout == 0) {
+			custActSync.acquireWriteLock();
+			return;
+		}
+		try {
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - startNanos);
+			if (custActSync.tryAcquireWriteLock(Math.max(0l, remainingNanos), TimeUnit.NANOSECONDS)) {
+				return;
+			}
+			throw lockTimeout(null, customerId, operation);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw lockTimeout(e, customerId, operation);
+		}
+	}
+
+	/**
+	 *
+	 * @return the System.nanoTime() past which an operation that started waiting
+	 *         at startNanos times out, Long.MAX_VALUE if it has no deadline.
+	 */
+	public long deadlineNanos(Operation operation, long startNanos) {
+		long timeout = timeoutMillis.get(operation);
+		return timeout == 0 ? Long.MAX_VALUE : startNanos + TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	/**
+	 * Counts an operation that did not get its lock in time.
+	 *
+	 * @return the exception to fail the operation with.
+	 */
+	public AccountBusyException lockTimeout(Throwable cause, String customerId, Operation operation) {
+		timedOut.get(operation).increment();
+		return AccountBusyException.lockTimeout(cause, customerId, timeoutMillis.get(operation));
+	}
+
+	/**
+	 * Counts one hold of a lock that applied queued writes.
+	 *
+	 * @param writes queued writes applied during the hold.
+	 */
+	public void recordCombined(int writes) {
+		combinedRounds.increment();
+		combinedWrites.add(writes);
+	}
+
+	public long getTimeoutMillis(Operation operation) {
+		return timeoutMillis.get(operation);
+	}
+
+	public int getMaxWaiters() {
+		return maxWaiters;
+	}
+
+	public int getMaxCombinedWrites() {
+		return maxCombinedWrites;
+	}
+
+	public boolean isCombining() {
+		return maxCombinedWrites > 0;
+	}
+
+	public LockWaitStats getStats(AccountLockTable lockTable, LockWaitExecutor lockWaitExecutor) {
+		Map<Operation, Long> rejectedCounts = new EnumMap<>(Operation.class);
+		Map<Operation, Long> timedOutCounts = new EnumMap<>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			rejectedCounts.put(operation, rejected.get(operation).sum());
+			timedOutCounts.put(operation, timedOut.get(operation).sum());
+		}
+		return new LockWaitStats(lockTable.getWaiterCount(), lockWaitExecutor.getQueuedCount(), rejectedCounts,
+				timedOutCounts, lockWaitExecutor.getRejectedCount(), combinedRounds.sum(), combinedWrites.sum());
+	}
+
+	/**
+	 * Operations waiting for locks at the time of the call, operations shed since
+	 * the start by kind, and queued writes applied by the holders of the locks.
+	 */
+	public static class LockWaitStats {
+		private final int waiting;
+		private final int queued;
+		private final Map<Operation, Long> rejected;
+		private final Map<Operation, Long> timedOut;
+		private final long queueRejected;
+		private final long combinedRounds;
+		private final long combinedWrites;
+
+		public LockWaitStats(int waiting, int queued, Map<Operation, Long> rejected, Map<Operation, Long> timedOut,
+				long queueRejected, long combinedRounds, long combinedWrites) {
+			this.waiting = waiting;
+			this.queued = queued;
+			this.rejected = rejected;
+			this.timedOut = timedOut;
+			this.queueRejected = queueRejected;
+			this.combinedRounds = combinedRounds;
+			this.combinedWrites = combinedWrites;
+		}
+
+		/**
+		 *
+		 * @return operations waiting for a lock, queued ones included.
+		 */
+		public int getWaiting() {
+			return waiting;
+		}
+
+		/**
+		 *
+		 * @return operations queued for a lock wait thread.
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 *
+		 * @return operations rejected as too many were waiting for their lock.
+		 */
+		public Map<Operation, Long> getRejected() {
+			return rejected;
+		}
+
+		/**
+		 *
+		 * @return operations that did not get their lock before their deadline.
+		 */
+		public Map<Operation, Long> getTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 *
+		 * @return operations rejected as the queue of the lock wait threads was
+		 *         full.
+		 */
+		public long getQueueRejected() {
+			return queueRejected;
+		}
+
+		/**
+		 *
+		 * @return holds of a lock that applied queued writes.
+		 */
+		public long getCombinedRounds() {
+			return combinedRounds;
+		}
+
+		/**
+		 *
+		 * @return queued writes applied by the holders of the locks, an average of
+		 *         combinedWrites / combinedRounds writes per hold.
+		 */
+		public long getCombinedWrites() {
+			return combinedWrites;
+		}
+	}
+}
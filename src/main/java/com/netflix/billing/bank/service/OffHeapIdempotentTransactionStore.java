@@ -0,0 +1,413 @@
+package com.netflix.billing.bank.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionStatus;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ *
+ * Idempotency store keeping the keys out of the java heap, so that tens of
+ * millions of keys do not add to the old generation the gc has to walk.
+ *
+ * Keys are split across segments, each segment is an open addressing hash
+ * table with linear probing in a direct ByteBuffer. An entry of the table is
+ * fixed width: the 128 bit fingerprint of the key, the status of the
+ * transaction and the reference of the key in the ledger of the segment. The
+ * ledger is an append only log of the encoded keys and their time, kept in
+ * direct ByteBuffer chunks, it is only read back when a duplicate is looked up
+ * or the keys are walked for a snapshot. Lookups only compare fingerprints, two
+ * keys are taken for the same key when their 128 bit fingerprints collide.
+ *
+ * A segment is guarded by its monitor, the table of a segment is doubled once
+ * it is three quarters full.
+ *
+ * @author rkata
+ *
+ */
+public class OffHeapIdempotentTransactionStore implements GlobalIdempotentTransactionStore {
+
+	private static final TransactionStatus[] STATUSES = TransactionStatus.values();
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	// fingerprint (16), ledger reference (8), status (1), padding.
+	private static final int ENTRY_BYTES = 32;
+	private static final int FINGERPRINT_LO = 8;
+	private static final int LEDGER_REF = 16;
+	private static final int STATUS = 24;
+
+	private static final int MIN_CAPACITY = 4;
+	private static final int MAX_CAPACITY = 1 << 25;
+
+	private static final int FIRST_CHUNK_BYTES = 1 << 16;
+	private static final int MAX_CHUNK_BYTES = 1 << 24;
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final int initialCapacity;
+
+	/**
+	 *
+	 * @param segmentCount    number of segments, rounded up to a power of two.
+	 * @param initialCapacity entries of the table of a segment before it grows,
+	 *                        rounded up to a power of two.
+	 */
+	public OffHeapIdempotentTransactionStore(int segmentCount, int initialCapacity) {
+		if (segmentCount < 1 || initialCapacity < 1) {
+			throw new IllegalArgumentException("segmentCount and initialCapacity should be at least 1");
+		}
+		this.segments = new Segment[Math.max(1, Integer.highestOneBit(segmentCount - 1) << 1)];
+		this.segmentMask = segments.length - 1;
+		// at least a quarter of a table is empty, so a probe always ends.
+		this.initialCapacity = Math.min(MAX_CAPACITY,
+				Math.max(MIN_CAPACITY, Integer.highestOneBit(initialCapacity - 1) << 1));
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(this.initialCapacity);
+		}
+	}
+
+	@Override
+	public BankingTransaction getCurTransaction(TransactionKey id, TransactionType transactionType) {
+		long hi = fingerprintHi(id);
+		long lo = fingerprintLo(id);
+		Segment segment = segmentOf(hi);
+		synchronized (segment) {
+			int entry = segment.find(hi, lo);
+			if (entry < 0) {
+				return null;
+			}
+			long transactionTimeNanos = segment.ledgerTimeNanos(segment.table.getLong(entry + LEDGER_REF));
+			BankingTransaction transaction = new BankingTransaction(id,
+					id.isDebit() ? TransactionType.DEBIT : TransactionType.CREDIT,
+					DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+			transaction.setStatus(STATUSES[segment.table.get(entry + STATUS)]);
+			return transaction;
+		}
+	}
+
+	@Override
+	public boolean recordTransactionIfNotAvailable(BankingTransaction curTransaction) {
+		TransactionKey id = curTransaction.getId();
+		long hi = fingerprintHi(id);
+		long lo = fingerprintLo(id);
+		Segment segment = segmentOf(hi);
+		synchronized (segment) {
+			if (segment.find(hi, lo) >= 0) {
+				return false;
+			}
+			long ledgerRef = segment.appendToLedger(curTransaction);
+			segment.insert(hi, lo, ledgerRef, (byte) curTransaction.getStatus().ordinal());
+			return true;
+		}
+	}
+
+	@Override
+	public void recordNewTransaction(BankingTransaction curTransaction) {
+		TransactionKey id = curTransaction.getId();
+		long hi = fingerprintHi(id);
+		long lo = fingerprintLo(id);
+		Segment segment = segmentOf(hi);
+		synchronized (segment) {
+			long ledgerRef = segment.appendToLedger(curTransaction);
+			segment.insert(hi, lo, ledgerRef, (byte) curTransaction.getStatus().ordinal());
+		}
+	}
+
+	/**
+	 * Saves the status the transaction got once it was processed.
+	 */
+	@Override
+	public void updateStatus(BankingTransaction curTransaction) {
+		TransactionKey id = curTransaction.getId();
+		long hi = fingerprintHi(id);
+		long lo = fingerprintLo(id);
+		Segment segment = segmentOf(hi);
+		synchronized (segment) {
+			int entry = segment.find(hi, lo);
+			if (entry >= 0) {
+				segment.table.put(entry + STATUS, (byte) curTransaction.getStatus().ordinal());
+			}
+		}
+	}
+
+	@Override
+	public void clearAllRequests() {
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				segments[i].clear(initialCapacity);
+			}
+		}
+	}
+
+	/**
+	 * Walks the keys segment by segment, in the order they were recorded in the
+	 * segment, the action is called while holding the segment.
+	 */
+	@Override
+	public void forEachTransaction(Consumer<BankingTransaction> action) {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.forEach(action);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of keys.
+	 */
+	public long size() {
+		long size = 0l;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the bytes of off-heap memory held by the tables and the ledgers.
+	 */
+	public long getOffHeapBytes() {
+		long bytes = 0l;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				bytes += segment.table.capacity();
+				for (int i = 0; i < segment.chunkCount; i++) {
+					bytes += segment.chunks[i].capacity();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	private Segment segmentOf(long hi) {
+		return segments[(int) (hi >>> 32) & segmentMask];
+	}
+
+	// two independent 64 bit hashes of the parts of the key, never 0 so that 0
+	// marks an empty entry.
+	private static long fingerprintHi(TransactionKey id) {
+		long h = mix(0x9E3779B97F4A7C15L, id.getType());
+		h = hashChars(h, id.getCustomerId());
+		h = hashChars(h, id.getExternalId());
+		h = fmix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	private static long fingerprintLo(TransactionKey id) {
+		long h = mix(0xC2B2AE3D27D4EB4FL, id.getType());
+		h = hashChars(h, id.getExternalId());
+		h = hashChars(h, id.getCustomerId());
+		return fmix(h);
+	}
+
+	private static long hashChars(long h, String value) {
+		if (value == null) {
+			return mix(h, -1);
+		}
+		for (int i = 0; i < value.length(); i++) {
+			h = mix(h, value.charAt(i));
+		}
+		return mix(h, value.length());
+	}
+
+	private static long mix(long h, long value) {
+		h ^= value;
+		h *= 0x100000001B3L;
+		return Long.rotateLeft(h, 31) * 0x9E3779B97F4A7C15L;
+	}
+
+	private static long fmix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Segment {
+		private ByteBuffer table;
+		private int mask;
+		private int size;
+
+		// ledger of the encoded keys, a reference is the chunk index in the high
+		// int and the offset in the chunk in the low int.
+		private ByteBuffer[] chunks = new ByteBuffer[4];
+		private int chunkCount;
+
+		private Segment(int capacity) {
+			clear(capacity);
+		}
+
+		private void clear(int capacity) {
+			table = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+			mask = capacity - 1;
+			size = 0;
+			chunks = new ByteBuffer[4];
+			chunkCount = 0;
+		}
+
+		/**
+		 *
+		 * @return offset of the entry of the fingerprint, -1 if it is not found.
+		 */
+		private int find(long hi, long lo) {
+			int index = (int) lo & mask;
+			while (true) {
+				int entry = index * ENTRY_BYTES;
+				long entryHi = table.getLong(entry);
+				if (entryHi == 0) {
+					return -1;
+				}
+				if (entryHi == hi && table.getLong(entry + FINGERPRINT_LO) == lo) {
+					return entry;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+
+		private void insert(long hi, long lo, long ledgerRef, byte status) {
+			if (size + 1 > (mask + 1) - ((mask + 1) >>> 2)) {
+				grow();
+			}
+			put(table, mask, hi, lo, ledgerRef, status);
+			size++;
+		}
+
+		private static void put(ByteBuffer table, int mask, long hi, long lo, long ledgerRef, byte status) {
+			int index = (int) lo & mask;
+			while (table.getLong(index * ENTRY_BYTES) != 0) {
+				index = (index + 1) & mask;
+			}
+			int entry = index * ENTRY_BYTES;
+			table.putLong(entry, hi);
+			table.putLong(entry + FINGERPRINT_LO, lo);
+			table.putLong(entry + LEDGER_REF, ledgerRef);
+			table.put(entry + STATUS, status);
+		}
+
+		private void grow() {
+			int capacity = mask + 1;
+			if (capacity >= MAX_CAPACITY) {
+				throw new IllegalStateException("Idempotency store segment is full with " + size + " keys");
+			}
+			int newCapacity = capacity << 1;
+			ByteBuffer newTable = ByteBuffer.allocateDirect(newCapacity * ENTRY_BYTES);
+			int newMask = newCapacity - 1;
+			for (int index = 0; index < capacity; index++) {
+				int entry = index * ENTRY_BYTES;
+				long hi = table.getLong(entry);
+				if (hi != 0) {
+					put(newTable, newMask, hi, table.getLong(entry + FINGERPRINT_LO),
+							table.getLong(entry + LEDGER_REF), table.get(entry + STATUS));
+				}
+			}
+			table = newTable;
+			mask = newMask;
+		}
+
+		/**
+		 * Appends the key and the time of the transaction to the ledger: time,
+		 * type, customer id and external id.
+		 *
+		 * @return reference of the key in the ledger.
+		 */
+		private long appendToLedger(BankingTransaction transaction) {
+			TransactionKey id = transaction.getId();
+			byte[] customerId = bytes(id.getCustomerId());
+			byte[] externalId = bytes(id.getExternalId());
+			int needed = 8 + 4 + 4 + 4 + length(customerId) + length(externalId);
+
+			ByteBuffer chunk = chunkCount == 0 ? null : chunks[chunkCount - 1];
+			if (chunk == null || chunk.remaining() < needed) {
+				int chunkBytes = chunk == null ? FIRST_CHUNK_BYTES : Math.min(chunk.capacity() << 1, MAX_CHUNK_BYTES);
+				chunk = ByteBuffer.allocateDirect(Math.max(chunkBytes, needed));
+				if (chunkCount == chunks.length) {
+					chunks = Arrays.copyOf(chunks, chunkCount << 1);
+				}
+				chunks[chunkCount++] = chunk;
+			}
+
+			long ledgerRef = ((long) (chunkCount - 1) << 32) | chunk.position();
+			chunk.putLong(DebitHistoryStore.toEpochNanos(transaction.getTransactionTime()));
+			chunk.putInt(id.getType());
+			putBytes(chunk, customerId);
+			putBytes(chunk, externalId);
+			return ledgerRef;
+		}
+
+		private long ledgerTimeNanos(long ledgerRef) {
+			return chunks[(int) (ledgerRef >>> 32)].getLong((int) ledgerRef);
+		}
+
+		private void forEach(Consumer<BankingTransaction> action) {
+			for (int index = 0; index <= mask; index++) {
+				int entry = index * ENTRY_BYTES;
+				if (table.getLong(entry) == 0) {
+					continue;
+				}
+				long ledgerRef = table.getLong(entry + LEDGER_REF);
+				ByteBuffer in = chunks[(int) (ledgerRef >>> 32)].duplicate();
+				in.position((int) ledgerRef);
+				long transactionTimeNanos = in.getLong();
+				int type = in.getInt();
+				String customerId = getString(in);
+				String externalId = getString(in);
+
+				BankingTransaction transaction;
+				if (type == TransactionKey.DEBIT_TYPE) {
+					transaction = new BankingTransaction(TransactionKey.forDebit(customerId, externalId),
+							TransactionType.DEBIT, DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+				} else {
+					transaction = new BankingTransaction(
+							TransactionKey.forCredit(customerId, CREDIT_TYPES[type], externalId),
+							TransactionType.CREDIT, DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+				}
+				transaction.setStatus(STATUSES[table.get(entry + STATUS)]);
+				action.accept(transaction);
+			}
+		}
+
+		private static byte[] bytes(String value) {
+			return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		private static int length(byte[] bytes) {
+			return bytes == null ? 0 : bytes.length;
+		}
+
+		private static void putBytes(ByteBuffer out, byte[] bytes) {
+			if (bytes == null) {
+				out.putInt(-1);
+				return;
+			}
+			out.putInt(bytes.length);
+			out.put(bytes);
+		}
+
+		private static String getString(ByteBuffer in) {
+			int length = in.getInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
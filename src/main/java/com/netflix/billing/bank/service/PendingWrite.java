@@ -0,0 +1,79 @@
+package com.netflix.billing.bank.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.service.LockWaitPolicy.Operation;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+/**
+ *
+ * A credit or a debit queued on the lock of its customer, applied by whichever
+ * thread holds the lock next. The write is claimed once, either by the thread
+ * applying it or by the thread timing it out, and its future completes with
+ * the lsn of the write once the lock is released.
+ *
+ * @author rkata
+ *
+ */
+final class PendingWrite {
+
+	/**
+	 * Applies the write on the account, the balance is published by the caller
+	 * when publish is false.
+	 */
+	interface AccountWrite {
+		long apply(CustomerAccount custAccount, boolean publish);
+	}
+
+	final String customerId;
+	final Operation kind;
+	final AccountWrite operation;
+	final long startNanos;
+	final CompletableFuture<Long> logged = new CompletableFuture<>();
+
+	// arrival order on the lock, set when queued.
+	long sequence;
+
+	private final AtomicBoolean claimed = new AtomicBoolean();
+
+	// set by the thread that claimed the write, read once the lock is released.
+	private long lsn = WriteAheadLog.NO_LSN;
+	private RuntimeException error;
+
+	PendingWrite(String customerId, Operation kind, AccountWrite operation, long startNanos) {
+		this.customerId = customerId;
+		this.kind = kind;
+		this.operation = operation;
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 *
+	 * @return true if the caller is the one applying or failing the write.
+	 */
+	boolean claim() {
+		return !claimed.get() && claimed.compareAndSet(false, true);
+	}
+
+	void apply(CustomerAccount custAccount) {
+		try {
+			lsn = operation.apply(custAccount, false);
+		} catch (RuntimeException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Completes the future with the outcome of apply, to be called after the lock
+	 * is released.
+	 */
+	void complete() {
+		if (error != null) {
+			logged.completeExceptionally(error);
+		} else {
+			logged.complete(lsn);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.netflix.billing.bank.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ *
+ * Opt-in audit of the raw credit and debit requests. Banking transactions do
+ * not keep the request they are built from, when auditing is enabled one in
+ * every sampleRate requests is serialized and kept in a bounded ring buffer,
+ * the oldest captured requests are overwritten once the buffer is full.
+ *
+ * When auditing is disabled recording a request is a no-op and nothing is
+ * serialized.
+ *
+ * @author rkata
+ *
+ */
+public class RequestAuditLog {
+
+	public static final RequestAuditLog DISABLED = new RequestAuditLog(false, 1, 1);
+
+	private final boolean enabled;
+	private final int sampleRate;
+	private final AtomicReferenceArray<AuditedRequest> capturedRequests;
+
+	// number of requests seen, used for sampling.
+	private final AtomicLong requestsSeen = new AtomicLong();
+
+	// number of requests captured, used as the write position in the buffer.
+	private final AtomicLong requestsCaptured = new AtomicLong();
+
+	public RequestAuditLog(boolean enabled, int sampleRate, int capacity) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("sampleRate needs to be at least 1, found " + sampleRate);
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity needs to be at least 1, found " + capacity);
+		}
+		this.enabled = enabled;
+		this.sampleRate = sampleRate;
+		this.capturedRequests = new AtomicReferenceArray<>(enabled ? capacity : 1);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Captures the request if auditing is enabled and the request is sampled.
+	 *
+	 * @param customerId
+	 * @param transactionType
+	 * @param request         CreditAmount or DebitAmount wire object
+	 */
+	public void record(String customerId, TransactionType transactionType, Object request) {
+		if (!enabled) {
+			return;
+		}
+		if (requestsSeen.getAndIncrement() % sampleRate != 0) {
+			return;
+		}
+
+		AuditedRequest auditedRequest = new AuditedRequest(customerId, transactionType,
+				JsonUtils.writeValueAsString(request), Instant.now());
+		long position = requestsCaptured.getAndIncrement();
+		capturedRequests.set((int) (position % capturedRequests.length()), auditedRequest);
+	}
+
+	/**
+	 * Records the credit or the debit of a batch operation, sampled the same way
+	 * as the single requests.
+	 *
+	 * @param operation
+	 */
+	public void record(BatchOperation operation) {
+		if (!enabled) {
+			return;
+		}
+		if (operation.getCredit() != null) {
+			record(operation.getCustomerId(), TransactionType.CREDIT, operation.getCredit());
+		} else {
+			record(operation.getCustomerId(), TransactionType.DEBIT, operation.getDebit());
+		}
+	}
+
+	/**
+	 *
+	 * @return the captured requests that are still in the buffer, oldest first.
+	 */
+	public List<AuditedRequest> getCapturedRequests() {
+		List<AuditedRequest> auditedRequests = new ArrayList<>();
+		if (!enabled) {
+			return auditedRequests;
+		}
+
+		long captured = requestsCaptured.get();
+		int capacity = capturedRequests.length();
+		for (long position = Math.max(0, captured - capacity); position < captured; position++) {
+			AuditedRequest auditedRequest = capturedRequests.get((int) (position % capacity));
+			if (auditedRequest != null) {
+				auditedRequests.add(auditedRequest);
+			}
+		}
+		return auditedRequests;
+	}
+
+	public static class AuditedRequest {
+		private final String customerId;
+		private final TransactionType transactionType;
+		private final String request;
+		private final Instant capturedAt;
+
+		public AuditedRequest(String customerId, TransactionType transactionType, String request,
+				Instant capturedAt) {
+			this.customerId = customerId;
+			this.transactionType = transactionType;
+			this.request = request;
+			this.capturedAt = capturedAt;
+		}
+
+		public String getCustomerId() {
+			return customerId;
+		}
+
+		public TransactionType getTransactionType() {
+			return transactionType;
+		}
+
+		public String getRequest() {
+			return request;
+		}
+
+		public Instant getCapturedAt() {
+			return capturedAt;
+		}
+	}
+}
@@ -0,0 +1,445 @@
+package com.netflix.billing.bank.service;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.netflix.billing.bank.controller.wire.BatchItemResult;
+import com.netflix.billing.bank.controller.wire.BatchItemStatus;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
+import com.netflix.billing.bank.controller.wire.CreditAmount;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.DebitAmount;
+import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.controller.wire.DebitLineItem;
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.exception.ApiStatusException;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.RegistryStats;
+import com.netflix.billing.bank.snapshot.AccountSnapshotStore;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+/**
+ *
+ * Bank store which assigns every customer to one of N shards by the hash of
+ * the customer id. A shard is a single threaded executor with a bounded queue,
+ * all the operations that touch the state of an account run on the shard that
+ * owns it so no account locks are needed. Balances are read from the balance
+ * snapshot of the account without going through the shard.
+ *
+ * A request is failed with an ApiException carrying a 503 status when the
+ * queue of its shard is full.
+ *
+ * @author rkata
+ *
+ */
+@Service
+@ConditionalOnProperty(name = "billingbank.store.engine", havingValue = "sharded")
+public class ShardedBillingBankStore implements BillingBankStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ShardedBillingBankStore.class);
+
+	private final ThreadPoolExecutor[] shards;
+
+	private IdempotentTransactionStore requestStore;
+
+	private CustomerAccountProcessor accountProcessor;
+
+	@Autowired(required = false)
+	private RequestAuditLog auditLog = RequestAuditLog.DISABLED;
+
+	// customers are split over the shards of the registry by their id, apart from
+	// the shards the operations run on.
+	@Autowired(required = false)
+	private CustomerAccountRegistry customers = new CustomerAccountRegistry();
+
+	private WriteAheadLog writeAheadLog = WriteAheadLog.DISABLED;
+
+	private AccountSnapshotStore snapshotStore;
+
+	/**
+	 *
+	 * @param shardCount    number of shards, the number of available processors
+	 *                      when it is not positive.
+	 * @param queueCapacity maximum number of pending operations per shard.
+	 */
+	@Autowired
+	public ShardedBillingBankStore(@Value("${billingbank.store.shards:0}") int shardCount,
+			@Value("${billingbank.store.shard-queue-capacity:10000}") int queueCapacity) {
+		if (shardCount <= 0) {
+			shardCount = Runtime.getRuntime().availableProcessors();
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity should be at least 1");
+		}
+
+		this.shards = new ThreadPoolExecutor[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			String threadName = "billingbank-shard-" + i;
+			shards[i] = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(queueCapacity), r -> {
+						Thread thread = new Thread(r, threadName);
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+		LOGGER.info("Started {} shards with a queue capacity of {}.", shardCount, queueCapacity);
+	}
+
+	@Override
+	public CustomerBalance processCredit(String customerId, CreditAmount creditReq) {
+		return await(processCreditAsync(customerId, creditReq));
+	}
+
+	@Override
+	public CustomerBalance processDebit(String customerId, DebitAmount debitAmount) {
+		return await(processDebitAsync(customerId, debitAmount));
+	}
+
+	@Override
+	public CompletableFuture<CustomerBalance> processCreditAsync(String customerId, CreditAmount creditReq) {
+		auditLog.record(customerId, TransactionType.CREDIT, creditReq);
+
+		return whenDurable(customerId, runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.getOrCreate(customerId);
+			long lsn = accountProcessor.processCredit(custAccount, creditReq);
+			customers.recordWrite(custAccount);
+			return lsn;
+		}));
+	}
+
+	@Override
+	public CompletableFuture<CustomerBalance> processDebitAsync(String customerId, DebitAmount debitAmount) {
+		auditLog.record(customerId, TransactionType.DEBIT, debitAmount);
+
+		return whenDurable(customerId, runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.getOrCreate(customerId);
+			long lsn = accountProcessor.processDebit(custAccount, debitAmount);
+			customers.recordWrite(custAccount);
+			return lsn;
+		}));
+	}
+
+	/**
+	 * The shard moves on to its next operation once the operation is logged, the
+	 * balance is read once the operation is durable.
+	 */
+	private CompletableFuture<CustomerBalance> whenDurable(String customerId, CompletableFuture<Long> logged) {
+		return logged.thenCompose(writeAheadLog::whenDurable)
+				.thenApply(durable -> getCustomerAccountBalance(customerId));
+	}
+
+	@Override
+	public CustomerBalance getCustomerAccountBalance(String customerId) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			LOGGER.info("No CustomerAccount found with id {} to get CustomerAccountBalance.", customerId);
+			return null;
+		}
+		return custAccount.getBalanceSnapshot().getBalance();
+	}
+
+	@Override
+	public byte[] getCustomerAccountBalanceJson(String customerId) {
+		CustomerAccount custAccount = customers.get(customerId);
+		if (custAccount == null) {
+			return null;
+		}
+		return CustomerAccountProcessor.getBalanceJson(custAccount);
+	}
+
+	/**
+	 * The debit history is read on the shard of the customer as the history is
+	 * only safe to read by the owner of the account.
+	 */
+	@Override
+	public DebitHistory debitHistory(String customerId) {
+		return await(debitHistoryAsync(customerId));
+	}
+
+	@Override
+	public CompletableFuture<DebitHistory> debitHistoryAsync(String customerId) {
+		return runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.get(customerId);
+			if (custAccount == null) {
+				LOGGER.info("No CustomerAccount found with id {} to get debitHistory.", customerId);
+				return null;
+			}
+			return new DebitHistory(accountProcessor.getProcessedDebits(custAccount));
+		});
+	}
+
+	@Override
+	public DebitHistoryPage debitHistoryPage(String customerId, DebitHistoryQuery query) {
+		return await(debitHistoryPageAsync(customerId, query));
+	}
+
+	@Override
+	public CompletableFuture<DebitHistoryPage> debitHistoryPageAsync(String customerId, DebitHistoryQuery query) {
+		return runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.get(customerId);
+			if (custAccount == null) {
+				return null;
+			}
+			return accountProcessor.getProcessedDebitsPage(custAccount, query);
+		});
+	}
+
+	@Override
+	public DebitHistory debitHistoryOfInvoice(String customerId, String invoiceId) {
+		return readDebitHistory(customerId,
+				custAccount -> accountProcessor.getProcessedDebitsOfInvoice(custAccount, invoiceId));
+	}
+
+	@Override
+	public DebitHistory debitHistoryBetween(String customerId, Instant from, Instant to) {
+		return readDebitHistory(customerId,
+				custAccount -> accountProcessor.getProcessedDebitsBetween(custAccount, from, to));
+	}
+
+	private DebitHistory readDebitHistory(String customerId, Function<CustomerAccount, List<DebitLineItem>> reader) {
+		return await(runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.get(customerId);
+			if (custAccount == null) {
+				return null;
+			}
+			return new DebitHistory(reader.apply(custAccount));
+		}));
+	}
+
+	@Override
+	public CustomerBalance delete(String customerId) {
+		AtomicLong lsn = new AtomicLong(WriteAheadLog.NO_LSN);
+		CustomerBalance custBal = await(runOnShard(customerId, () -> {
+			CustomerAccount custAccount = customers.remove(customerId);
+			if (custAccount == null) {
+				return null;
+			}
+			LOGGER.info("Removed customer with {} id.", customerId);
+			lsn.set(accountProcessor.logDelete(customerId));
+			return custAccount.getBalanceSnapshot().getBalance();
+		}));
+		writeAheadLog.awaitDurable(lsn.get());
+		return custBal;
+	}
+
+	/**
+	 * The operations of every customer are queued as one task on the shard of the
+	 * customer, the shards work on their customers in parallel.
+	 */
+	@Override
+	public BatchResult processBatch(List<BatchOperation> operations) {
+		BatchItemResult[] results = new BatchItemResult[operations.size()];
+		Map<String, List<Integer>> groups = CustomerAccountProcessor.groupByCustomer(operations, results);
+		Map<String, CompletableFuture<CustomerBalance>> pending = new LinkedHashMap<>();
+		AtomicLong lastLsn = new AtomicLong(WriteAheadLog.NO_LSN);
+
+		for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+			String customerId = group.getKey();
+			for (Integer index : group.getValue()) {
+				auditLog.record(operations.get(index));
+			}
+
+			pending.put(customerId, runOnShard(customerId, () -> {
+				CustomerAccount custAccount = customers.getOrCreate(customerId);
+				long lsn = accountProcessor.processBatchGroup(custAccount, operations, group.getValue(), results);
+				customers.recordWrites(custAccount, group.getValue().size());
+				lastLsn.accumulateAndGet(lsn, Math::max);
+				return custAccount.getBalanceSnapshot().getBalance();
+			}));
+		}
+
+		Map<String, CustomerBalance> balances = new LinkedHashMap<>();
+		for (Map.Entry<String, CompletableFuture<CustomerBalance>> entry : pending.entrySet()) {
+			try {
+				balances.put(entry.getKey(), await(entry.getValue()));
+			} catch (ApiException e) {
+				// the shard did not take the operations of the customer.
+				for (Integer index : groups.get(entry.getKey())) {
+					results[index] = new BatchItemResult(index, entry.getKey(), BatchItemStatus.FAILED,
+							e.getMessage());
+				}
+			}
+		}
+
+		writeAheadLog.awaitDurable(lastLsn.get());
+		return new BatchResult(Arrays.asList(results), balances);
+	}
+
+	int shardIndex(String customerId) {
+		int h = customerId.hashCode();
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % shards.length;
+	}
+
+	/**
+	 * Visits every account on its shard, one task per account so the shard runs
+	 * the operations queued meanwhile in between the visits. A visit is retried
+	 * while the queue of the shard is full.
+	 */
+	@Override
+	public void forEachAccount(Consumer<CustomerAccount> visitor) {
+		customers.forEach(custAccount -> {
+			String customerId = custAccount.getCustomerId();
+			while (true) {
+				try {
+					await(runOnShard(customerId, () -> {
+						// skips the account if it got deleted meanwhile.
+						if (customers.get(customerId) == custAccount) {
+							visitor.accept(custAccount);
+						}
+						return null;
+					}));
+					return;
+				} catch (ApiException e) {
+					if (e.getHttpStatus() != 503 || Thread.currentThread().isInterrupted()) {
+						throw e;
+					}
+					ThreadUtil.gotoSleep(1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues the task on the shard owning the customer, the future completes with
+	 * the exception thrown by the task if it fails.
+	 */
+	private <T> CompletableFuture<T> runOnShard(String customerId, Supplier<T> task) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try {
+			shards[shardIndex(customerId)].execute(() -> {
+				try {
+					result.complete(task.get());
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOGGER.warn("Rejecting request for customer {}, shard queue is full.", customerId);
+			result.completeExceptionally(new ApiStatusException(e, "shard_busy",
+					"Too many pending requests, try again later for customer " + customerId, 503));
+		}
+		return result;
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApiException("Interrupted while waiting on the shard", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ApiException("Failure while processing request on the shard", cause);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		for (ThreadPoolExecutor shard : shards) {
+			shard.shutdown();
+		}
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public CustomerAccountRegistry getCustomers() {
+		return customers;
+	}
+
+	public void setCustomers(CustomerAccountRegistry customers) {
+		this.customers = customers;
+	}
+
+	@Override
+	public RegistryStats getCustomerShardStats() {
+		return customers.getStats();
+	}
+
+	public IdempotentTransactionStore getRequestStore() {
+		return requestStore;
+	}
+
+	@Autowired
+	public void setRequestStore(IdempotentTransactionStore requestStore) {
+		this.requestStore = requestStore;
+		this.accountProcessor = new CustomerAccountProcessor(requestStore, writeAheadLog);
+	}
+
+	public WriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	@Autowired(required = false)
+	public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		if (requestStore != null) {
+			this.accountProcessor = new CustomerAccountProcessor(requestStore, writeAheadLog);
+		}
+	}
+
+	public AccountSnapshotStore getSnapshotStore() {
+		return snapshotStore;
+	}
+
+	@Autowired(required = false)
+	public void setSnapshotStore(AccountSnapshotStore snapshotStore) {
+		this.snapshotStore = snapshotStore;
+	}
+
+	/**
+	 * Rebuilds the customer accounts from the latest snapshot and the tail of the
+	 * write-ahead log before the shards get any operation.
+	 */
+	@PostConstruct
+	public void recover() {
+		long snapshotLsn = WriteAheadLog.NO_LSN;
+		if (snapshotStore != null) {
+			snapshotLsn = snapshotStore.load(customers::restore, requestStore::restoreTransaction);
+		}
+		accountProcessor.recover(customers, snapshotLsn + 1);
+	}
+
+	public RequestAuditLog getAuditLog() {
+		return auditLog;
+	}
+
+	public void setAuditLog(RequestAuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+}
@@ -0,0 +1,126 @@
+package com.netflix.billing.bank.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.netflix.billing.bank.snapshot.AccountSnapshotStore;
+import com.netflix.billing.bank.snapshot.SnapshotWriter;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+/**
+ *
+ * Takes a snapshot of the accounts and the idempotency keys every interval
+ * and once more on shutdown, then drops the segments of the write-ahead log
+ * covered by the snapshot so that a restart only replays the tail of the log.
+ *
+ * The snapshot is started at the durable lsn of the log and the accounts are
+ * written before the idempotency keys. The key of a write is recorded before
+ * the write is applied, so every write reflected in a written account has its
+ * key in the snapshot too, while a write landing after its account was visited
+ * is replayed from the log on top of the snapshot.
+ *
+ * @author rkata
+ *
+ */
+@Service
+@ConditionalOnProperty(name = "billingbank.snapshot.enabled", havingValue = "true")
+public class SnapshotService {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotService.class);
+
+	private final BillingBankStore bankStore;
+	private final IdempotentTransactionStore requestStore;
+	private final WriteAheadLog writeAheadLog;
+	private final AccountSnapshotStore snapshotStore;
+	private final long intervalSeconds;
+	private final boolean onShutdown;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 *
+	 * @param intervalSeconds seconds between two snapshots, no periodic snapshot
+	 *                        when it is not positive.
+	 * @param onShutdown      whether a snapshot is taken on shutdown.
+	 */
+	@Autowired
+	public SnapshotService(BillingBankStore bankStore, IdempotentTransactionStore requestStore,
+			WriteAheadLog writeAheadLog, AccountSnapshotStore snapshotStore,
+			@Value("${billingbank.snapshot.interval-seconds:300}") long intervalSeconds,
+			@Value("${billingbank.snapshot.on-shutdown:true}") boolean onShutdown) {
+		this.bankStore = bankStore;
+		this.requestStore = requestStore;
+		this.writeAheadLog = writeAheadLog;
+		this.snapshotStore = snapshotStore;
+		this.intervalSeconds = intervalSeconds;
+		this.onShutdown = onShutdown;
+	}
+
+	@PostConstruct
+	public void start() {
+		if (intervalSeconds <= 0) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "billingbank-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				takeSnapshot();
+			} catch (RuntimeException e) {
+				LOGGER.error("Failed to take a snapshot.", e);
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			try {
+				scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (onShutdown) {
+			takeSnapshot();
+		}
+	}
+
+	/**
+	 * Writes a snapshot and truncates the write-ahead log up to it.
+	 *
+	 * @return lsn of the snapshot.
+	 */
+	public synchronized long takeSnapshot() {
+		long startTime = System.currentTimeMillis();
+		long lsn = writeAheadLog.getDurableLsn();
+		try (SnapshotWriter writer = snapshotStore.begin(lsn)) {
+			// accounts first, see the class comment.
+			bankStore.forEachAccount(writer::writeAccount);
+			requestStore.forEachTransaction(writer::writeTransaction);
+			writer.commit();
+		}
+		writeAheadLog.truncateBefore(lsn + 1);
+		LOGGER.info("Took snapshot at lsn {} in {} ms.", lsn, System.currentTimeMillis() - startTime);
+		return lsn;
+	}
+
+	public AccountSnapshotStore getSnapshotStore() {
+		return snapshotStore;
+	}
+}
@@ -0,0 +1,89 @@
+package com.netflix.billing.bank.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Virtual threads of the jvm the bank runs on, looked up by reflection as the
+ * bank is built for java 8. They are available from java 21 on, on older jvms
+ * the factory methods return null and callers keep their platform threads.
+ *
+ * Virtual threads park on the java.util.concurrent locks without holding on to
+ * their carrier, the account locks are StampedLocks and the write-ahead log
+ * waits on a ReentrantLock and on futures. Blocking while holding a monitor
+ * pins the carrier, keep synchronized sections of the request path free of
+ * blocking calls.
+ *
+ * @author rkata
+ *
+ */
+public final class VirtualThreads {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+	// Thread.ofVirtual(), Thread.Builder.name(String, long) and
+	// Thread.Builder.factory(), null when the jvm has no virtual threads.
+	private static final Method[] BUILDER_METHODS = lookupBuilderMethods();
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return BUILDER_METHODS != null;
+	}
+
+	/**
+	 *
+	 * @param namePrefix threads are named namePrefix followed by a counter.
+	 * @return a factory of virtual threads, null if the jvm has none.
+	 */
+	public static ThreadFactory newThreadFactory(String namePrefix) {
+		if (BUILDER_METHODS == null) {
+			return null;
+		}
+		try {
+			Object builder = BUILDER_METHODS[0].invoke(null);
+			builder = BUILDER_METHODS[1].invoke(builder, namePrefix, 0l);
+			return (ThreadFactory) BUILDER_METHODS[2].invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.warn("Virtual threads are not available, staying on platform threads.", e);
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param namePrefix threads are named namePrefix followed by a counter.
+	 * @return an executor running every task on a new virtual thread, null if
+	 *         the jvm has no virtual threads.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+		ThreadFactory threadFactory = newThreadFactory(namePrefix);
+		if (threadFactory == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, threadFactory);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.warn("Virtual threads are not available, staying on platform threads.", e);
+			return null;
+		}
+	}
+
+	private static Method[] lookupBuilderMethods() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return new Method[] { Thread.class.getMethod("ofVirtual"),
+					builderClass.getMethod("name", String.class, long.class), builderClass.getMethod("factory") };
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.netflix.billing.bank.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ *
+ * Idempotency store remembering the transactions of a retention window only.
+ * Transactions are kept in generations, a generation holds the transactions
+ * of one slice of time, retention / generations long, by the time they were
+ * applied at. Once the newest generation moves past the window the oldest
+ * generation is dropped as a whole, no key is scanned to expire it.
+ *
+ * A transaction is remembered for at least the retention, duplicates are
+ * detected exactly within the window. When a maximum number of keys is set
+ * the oldest generations are also dropped once the store holds more keys than
+ * that, the newest generation is never dropped.
+ *
+ * Lookups go through the live generations, newest first. A transaction is
+ * checked and recorded under one of a fixed set of lock stripes picked by its
+ * key, so the same key is never recorded twice in two generations.
+ *
+ * @author rkata
+ *
+ */
+@Service
+@ConditionalOnProperty(name = "billingbank.idempotency.store", havingValue = "windowed")
+public class WindowedIdempotentTransactionStore implements GlobalIdempotentTransactionStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WindowedIdempotentTransactionStore.class);
+
+	private static final int LOCK_STRIPES = 256;
+
+	private static final long NO_GENERATION = Long.MIN_VALUE;
+
+	private final long generationNanos;
+	private final int generations;
+	private final long maxKeys;
+
+	// generations by number modulo the length, one slot more than the number of
+	// generations of the window for the one being filled.
+	private final AtomicReferenceArray<Generation> ring;
+
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final AtomicLong keyCount = new AtomicLong();
+
+	// number of the newest generation, generations before the floor are dropped.
+	private volatile long newestGeneration = NO_GENERATION;
+	private volatile long floorGeneration = NO_GENERATION;
+
+	/**
+	 *
+	 * @param retentionSeconds how long a transaction is remembered.
+	 * @param generations      number of generations the retention is split in.
+	 * @param maxKeys          maximum number of keys kept, unbounded when it is
+	 *                         not positive.
+	 */
+	@Autowired
+	public WindowedIdempotentTransactionStore(
+			@Value("${billingbank.idempotency.retention-seconds:2592000}") long retentionSeconds,
+			@Value("${billingbank.idempotency.generations:8}") int generations,
+			@Value("${billingbank.idempotency.max-keys:0}") long maxKeys) {
+		if (retentionSeconds < 1 || generations < 1) {
+			throw new IllegalArgumentException("retentionSeconds and generations should be at least 1");
+		}
+		this.generationNanos = Math.max(1l, TimeUnit.SECONDS.toNanos(retentionSeconds) / generations);
+		this.generations = generations;
+		this.maxKeys = maxKeys;
+		this.ring = new AtomicReferenceArray<>(generations + 1);
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		LOGGER.info("Remembering transactions for {} seconds in {} generations, at most {} keys.", retentionSeconds,
+				generations, maxKeys > 0 ? maxKeys : "unbounded");
+	}
+
+	@Override
+	public BankingTransaction getCurTransaction(TransactionKey id, TransactionType transactionType) {
+		// credit and debit keys never collide, one lookup per generation.
+		long floor = floorGeneration;
+		long newest = newestGeneration;
+		for (long number = newest; number >= floor && number > newest - ring.length(); number--) {
+			Generation generation = ring.get(slot(number));
+			if (generation != null && generation.number == number) {
+				BankingTransaction transaction = generation.transactions.get(id);
+				if (transaction != null) {
+					return transaction;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean recordTransactionIfNotAvailable(BankingTransaction curTransaction) {
+		long number = Math.floorDiv(DebitHistoryStore.toEpochNanos(curTransaction.getTransactionTime()),
+				generationNanos);
+		if (number > newestGeneration) {
+			advanceTo(number);
+		}
+
+		TransactionKey id = curTransaction.getId();
+		synchronized (locks[id.hashCode() & (LOCK_STRIPES - 1)]) {
+			if (getCurTransaction(id, curTransaction.getTransactionType()) != null) {
+				return false;
+			}
+			Generation generation = generationOf(number);
+			if (generation == null) {
+				// older than the window, it would be dropped right away.
+				return true;
+			}
+			generation.transactions.put(id, curTransaction);
+		}
+
+		if (keyCount.incrementAndGet() > maxKeys && maxKeys > 0) {
+			dropOldestOverLimit();
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void clearAllRequests() {
+		for (int i = 0; i < ring.length(); i++) {
+			ring.set(i, null);
+		}
+		keyCount.set(0l);
+		newestGeneration = NO_GENERATION;
+		floorGeneration = NO_GENERATION;
+	}
+
+	@Override
+	public void forEachTransaction(Consumer<BankingTransaction> action) {
+		long floor = floorGeneration;
+		for (int i = 0; i < ring.length(); i++) {
+			Generation generation = ring.get(i);
+			if (generation != null && generation.number >= floor) {
+				generation.transactions.values().forEach(action);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of transactions remembered.
+	 */
+	public long getKeyCount() {
+		return keyCount.get();
+	}
+
+	/**
+	 *
+	 * @return the number of generations holding transactions.
+	 */
+	public int getLiveGenerations() {
+		long floor = floorGeneration;
+		int live = 0;
+		for (int i = 0; i < ring.length(); i++) {
+			Generation generation = ring.get(i);
+			if (generation != null && generation.number >= floor) {
+				live++;
+			}
+		}
+		return live;
+	}
+
+	// moves the window forward and drops the generations falling out of it.
+	private synchronized void advanceTo(long number) {
+		if (number <= newestGeneration) {
+			return;
+		}
+		newestGeneration = number;
+		floorGeneration = Math.max(floorGeneration, number - generations);
+		dropBefore(floorGeneration);
+	}
+
+	/**
+	 *
+	 * @return the generation of the number, created if needed, null if it is
+	 *         before the floor.
+	 */
+	private Generation generationOf(long number) {
+		Generation generation = ring.get(slot(number));
+		if (generation != null && generation.number == number) {
+			return generation;
+		}
+		synchronized (this) {
+			if (number < floorGeneration || number <= newestGeneration - ring.length()) {
+				return null;
+			}
+			generation = ring.get(slot(number));
+			if (generation == null || generation.number != number) {
+				if (generation != null) {
+					keyCount.addAndGet(-generation.transactions.size());
+				}
+				generation = new Generation(number);
+				ring.set(slot(number), generation);
+			}
+			return generation;
+		}
+	}
+
+	private synchronized void dropOldestOverLimit() {
+		while (keyCount.get() > maxKeys && floorGeneration < newestGeneration) {
+			floorGeneration = Math.max(floorGeneration + 1, newestGeneration - generations);
+			dropBefore(floorGeneration);
+		}
+	}
+
+	private void dropBefore(long floor) {
+		for (int i = 0; i < ring.length(); i++) {
+			Generation generation = ring.get(i);
+			if (generation != null && generation.number < floor) {
+				ring.set(i, null);
+				keyCount.addAndGet(-generation.transactions.size());
+				LOGGER.info("Dropped generation {} with {} transactions.", generation.number,
+						generation.transactions.size());
+			}
+		}
+	}
+
+	private int slot(long number) {
+		return (int) Math.floorMod(number, (long) ring.length());
+	}
+
+	private static final class Generation {
+		private final long number;
+		private final ConcurrentHashMap<TransactionKey, BankingTransaction> transactions = new ConcurrentHashMap<>();
+
+		private Generation(long number) {
+			this.number = number;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.netflix.billing.bank.snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CreditBalanceTable;
+import com.netflix.billing.bank.model.CreditLedger;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.model.CustomerAccountByCurrency;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+import com.netflix.billing.bank.model.ProcessedCredit;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionKeySet;
+import com.netflix.billing.bank.model.TransactionStatus;
+import com.netflix.billing.bank.model.TransactionType;
+
+/**
+ *
+ * Binary encoding of the entries of a snapshot. An account is written with
+ * its applied lsn and, per currency, the balance by credit type, the credits
+ * still available in the order they are consumed and the debit lineitems in
+ * the order they were applied, followed by the idempotency keys kept in the
+ * account if any. Accounts of older snapshots end before the keys. An
+ * idempotency key is written with the type, status and time of its
+ * transaction.
+ *
+ * Fixed size fields come first, strings are length prefixed utf-8 like in the
+ * write-ahead log.
+ *
+ * @author rkata
+ *
+ */
+final class AccountSnapshotCodec {
+
+	static final byte ACCOUNT = 1;
+	static final byte TRANSACTION = 2;
+	static final byte END = 3;
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+	private static final TransactionStatus[] STATUSES = TransactionStatus.values();
+
+	private AccountSnapshotCodec() {
+	}
+
+	/**
+	 *
+	 * @return the maximum size of the encoded account, needs to be called by the
+	 *         owner of the account like encodeAccount.
+	 */
+	static int maxAccountSize(CustomerAccount custAccount) {
+		int size = 1 + 8 + 4 + maxStringSize(custAccount.getCustomerId());
+		for (CustomerAccountByCurrency custActBalByCur : custAccount.getCustAccountByCurrency()) {
+			size += maxStringSize(custActBalByCur.getCurrency()) + 8 * CREDIT_TYPES.length + 4 + 4;
+
+			int[] creditsSize = new int[1];
+			custActBalByCur.getCreditLedger().forEach(
+					credit -> creditsSize[0] += 1 + 8 + 8 + maxStringSize(credit.getTransactionId()));
+			size += creditsSize[0];
+
+			DebitHistoryStore processedDebits = custActBalByCur.getProcessedDebits();
+			for (int row = 0; row < processedDebits.size(); row++) {
+				size += 1 + 8 + 8 + maxStringSize(processedDebits.getInvoiceId(row))
+						+ maxStringSize(processedDebits.getTransactionId(row));
+			}
+		}
+
+		int[] keysSize = new int[] { 4 };
+		custAccount.getTransactionKeys().forEach((type, externalId) -> keysSize[0] += 4 + maxStringSize(externalId));
+		return size + keysSize[0];
+	}
+
+	static void encodeAccount(CustomerAccount custAccount, ByteBuffer out) {
+		out.put(ACCOUNT);
+		out.putLong(custAccount.getAppliedLsn());
+		putString(out, custAccount.getCustomerId());
+		out.putInt(custAccount.getCustAccountByCurrency().size());
+		for (CustomerAccountByCurrency custActBalByCur : custAccount.getCustAccountByCurrency()) {
+			putString(out, custActBalByCur.getCurrency());
+
+			CreditBalanceTable balance = custActBalByCur.getBalance();
+			for (CreditType creditType : CREDIT_TYPES) {
+				out.putLong(balance.get(creditType));
+			}
+
+			CreditLedger creditLedger = custActBalByCur.getCreditLedger();
+			out.putInt(creditLedger.size());
+			creditLedger.forEach(credit -> {
+				out.put((byte) credit.getCreditType().ordinal());
+				out.putLong(credit.getAmount());
+				out.putLong(DebitHistoryStore.toEpochNanos(credit.getTransactionDate()));
+				putString(out, credit.getTransactionId());
+			});
+
+			DebitHistoryStore processedDebits = custActBalByCur.getProcessedDebits();
+			out.putInt(processedDebits.size());
+			for (int row = 0; row < processedDebits.size(); row++) {
+				out.put((byte) processedDebits.getCreditType(row).ordinal());
+				out.putLong(processedDebits.getAmount(row));
+				out.putLong(processedDebits.getTransactionTimeNanos(row));
+				putString(out, processedDebits.getInvoiceId(row));
+				putString(out, processedDebits.getTransactionId(row));
+			}
+		}
+
+		TransactionKeySet transactionKeys = custAccount.getTransactionKeys();
+		out.putInt(transactionKeys.size());
+		transactionKeys.forEach((type, externalId) -> {
+			out.putInt(type);
+			putString(out, externalId);
+		});
+	}
+
+	/**
+	 * Rebuilds the account, the kind of the entry is already read. The balance
+	 * snapshot of the account is published.
+	 */
+	static CustomerAccount decodeAccount(ByteBuffer in) {
+		long appliedLsn = in.getLong();
+		String customerId = getString(in);
+		CustomerAccount custAccount = new CustomerAccount(customerId);
+		custAccount.setAppliedLsn(appliedLsn);
+
+		// ids of the credits and invoices are shared across the lineitems like
+		// they are when the debits are applied.
+		Map<String, String> ids = new HashMap<>();
+		int currencies = in.getInt();
+		for (int i = 0; i < currencies; i++) {
+			CustomerAccountByCurrency custActBalByCur = custAccount
+					.getOrCreateCustomerAccountBalance(getString(in));
+			for (CreditType creditType : CREDIT_TYPES) {
+				custActBalByCur.updateBalance(creditType, in.getLong());
+			}
+
+			CreditLedger creditLedger = custActBalByCur.getCreditLedger();
+			int credits = in.getInt();
+			for (int c = 0; c < credits; c++) {
+				CreditType creditType = CREDIT_TYPES[in.get()];
+				long amount = in.getLong();
+				long transactionTimeNanos = in.getLong();
+				String transactionId = intern(ids, getString(in));
+
+				BankingTransaction creditTransaction = new BankingTransaction(
+						TransactionKey.forCredit(customerId, creditType, transactionId), TransactionType.CREDIT,
+						DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+				creditTransaction.setStatus(TransactionStatus.SUCESS);
+				ProcessedCredit credit = new ProcessedCredit(creditType, creditTransaction);
+				credit.setAmount(amount);
+				credit.setCurrency(custActBalByCur.getCurrency());
+				creditLedger.append(credit);
+			}
+
+			DebitHistoryStore processedDebits = custActBalByCur.getProcessedDebits();
+			int rows = in.getInt();
+			for (int row = 0; row < rows; row++) {
+				CreditType creditType = CREDIT_TYPES[in.get()];
+				long amount = in.getLong();
+				long transactionTimeNanos = in.getLong();
+				String invoiceId = intern(ids, getString(in));
+				String transactionId = intern(ids, getString(in));
+				processedDebits.append(invoiceId, transactionId, creditType, amount,
+						DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+				custActBalByCur.getDebitIndex().add(row, invoiceId, transactionTimeNanos);
+			}
+		}
+
+		if (in.hasRemaining()) {
+			TransactionKeySet transactionKeys = custAccount.getTransactionKeys();
+			int keys = in.getInt();
+			for (int k = 0; k < keys; k++) {
+				int type = in.getInt();
+				transactionKeys.add(type, intern(ids, getString(in)));
+			}
+		}
+		custAccount.publishBalanceSnapshot();
+		return custAccount;
+	}
+
+	static int maxTransactionSize(BankingTransaction transaction) {
+		return 1 + 4 + 1 + 8 + maxStringSize(transaction.getCustomerId())
+				+ maxStringSize(transaction.getTransactionId());
+	}
+
+	static void encodeTransaction(BankingTransaction transaction, ByteBuffer out) {
+		out.put(TRANSACTION);
+		out.putInt(transaction.getId().getType());
+		out.put((byte) transaction.getStatus().ordinal());
+		out.putLong(DebitHistoryStore.toEpochNanos(transaction.getTransactionTime()));
+		putString(out, transaction.getCustomerId());
+		putString(out, transaction.getTransactionId());
+	}
+
+	/**
+	 * Rebuilds the transaction, the kind of the entry is already read.
+	 */
+	static BankingTransaction decodeTransaction(ByteBuffer in) {
+		int type = in.getInt();
+		TransactionStatus status = STATUSES[in.get()];
+		long transactionTimeNanos = in.getLong();
+		String customerId = getString(in);
+		String externalId = getString(in);
+
+		BankingTransaction transaction;
+		if (type == TransactionKey.DEBIT_TYPE) {
+			transaction = new BankingTransaction(TransactionKey.forDebit(customerId, externalId),
+					TransactionType.DEBIT, DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+		} else {
+			transaction = new BankingTransaction(TransactionKey.forCredit(customerId, CREDIT_TYPES[type], externalId),
+					TransactionType.CREDIT, DebitHistoryStore.ofEpochNanos(transactionTimeNanos));
+		}
+		transaction.setStatus(status);
+		return transaction;
+	}
+
+	private static String intern(Map<String, String> ids, String id) {
+		String shared = ids.putIfAbsent(id, id);
+		return shared == null ? id : shared;
+	}
+
+	private static void putString(ByteBuffer out, String value) {
+		if (value == null) {
+			out.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int maxStringSize(String value) {
+		// an utf-16 char never takes more than 3 bytes in utf-8.
+		return 4 + (value == null ? 0 : value.length() * 3);
+	}
+}
@@ -0,0 +1,272 @@
+package com.netflix.billing.bank.snapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+
+/**
+ *
+ * Point-in-time snapshots of the customer accounts and the idempotency keys
+ * kept in a directory, a snapshot is named after the lsn of the write-ahead
+ * log it was started at and only the latest one is kept.
+ *
+ * A snapshot is fuzzy, the accounts are written one at a time while writers
+ * keep going, so every account carries the lsn of the last record applied to
+ * it and the log is replayed from the lsn of the snapshot on top of it.
+ *
+ * Loading maps the file and walks the frames once to find where the entries
+ * start, the entries are then checked and decoded in parallel on the common
+ * fork join pool.
+ *
+ * @author rkata
+ *
+ */
+public class AccountSnapshotStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AccountSnapshotStore.class);
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int READ_WINDOW_BYTES = 1 << 30;
+
+	// entries decoded by one task of the parallel load.
+	private static final int DECODE_BATCH = 1024;
+
+	private final Path directory;
+
+	public AccountSnapshotStore(Path directory) {
+		this.directory = directory;
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to create the snapshot directory " + directory, e);
+		}
+	}
+
+	/**
+	 * Starts a snapshot, the caller writes the entries and commits it.
+	 *
+	 * @param lsn lsn of the write-ahead log the snapshot is started at, every
+	 *            record up to it is reflected in the snapshot.
+	 */
+	public SnapshotWriter begin(long lsn) {
+		Path file = directory.resolve(snapshotName(lsn));
+		Path tempFile = directory.resolve(snapshotName(lsn) + TEMP_SUFFIX);
+		try {
+			Files.deleteIfExists(tempFile);
+			return new SnapshotWriter(this, tempFile, file, lsn);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to start snapshot " + tempFile, e);
+		}
+	}
+
+	/**
+	 * Deletes the snapshots older than the one just committed.
+	 */
+	void committed(SnapshotWriter writer) {
+		syncDirectory();
+		try {
+			for (Path snapshot : listSnapshots()) {
+				if (!snapshot.equals(writer.getFile())) {
+					Files.delete(snapshot);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to delete the older snapshots in " + directory, e);
+		}
+		LOGGER.info("Wrote snapshot {} with {} accounts and {} idempotency keys.", writer.getFile(),
+				writer.getAccounts(), writer.getTransactions());
+	}
+
+	/**
+	 * Restores the accounts and the idempotency keys of the latest snapshot. The
+	 * consumers are called from several threads at once.
+	 *
+	 * @return lsn of the snapshot, 0 when there is no snapshot.
+	 * @throws IllegalStateException if the latest snapshot is corrupted.
+	 */
+	public long load(Consumer<CustomerAccount> accounts, Consumer<BankingTransaction> transactions) {
+		try {
+			deleteTempFiles();
+			List<Path> snapshots = listSnapshots();
+			if (snapshots.isEmpty()) {
+				LOGGER.info("No snapshot found in {}.", directory);
+				return 0l;
+			}
+			return load(snapshots.get(snapshots.size() - 1), accounts, transactions);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to load the snapshot in " + directory, e);
+		}
+	}
+
+	private long load(Path snapshot, Consumer<CustomerAccount> accounts, Consumer<BankingTransaction> transactions)
+			throws IOException {
+		long startTime = System.currentTimeMillis();
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < SnapshotWriter.HEADER_BYTES) {
+				throw corrupted(snapshot, "missing header");
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0l, SnapshotWriter.HEADER_BYTES);
+			if (header.getInt() != SnapshotWriter.MAGIC || header.getInt() != SnapshotWriter.VERSION) {
+				throw corrupted(snapshot, "unknown format");
+			}
+			long lsn = header.getLong();
+
+			long accountCount = 0l;
+			long transactionCount = 0l;
+			boolean ended = false;
+			long position = SnapshotWriter.HEADER_BYTES;
+			int[] offsets = new int[DECODE_BATCH];
+			while (!ended && position < size) {
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(size - position, READ_WINDOW_BYTES));
+
+				// walks the frames of the window, a frame that does not fit is left for
+				// the next window.
+				int frames = 0;
+				int next = 0;
+				while (window.limit() - next >= SnapshotWriter.FRAME_HEADER_BYTES) {
+					int length = window.getInt(next);
+					if (length <= 0 || length > window.limit() - next - SnapshotWriter.FRAME_HEADER_BYTES) {
+						break;
+					}
+					byte kind = window.get(next + SnapshotWriter.FRAME_HEADER_BYTES);
+					if (kind == AccountSnapshotCodec.END) {
+						checkFrame(snapshot, window, next);
+						ended = true;
+						if (window.getLong(next + SnapshotWriter.FRAME_HEADER_BYTES + 1) != accountCount
+								|| window.getLong(next + SnapshotWriter.FRAME_HEADER_BYTES + 9) != transactionCount) {
+							throw corrupted(snapshot, "missing entries");
+						}
+						break;
+					}
+
+					if (kind == AccountSnapshotCodec.ACCOUNT) {
+						accountCount++;
+					} else {
+						transactionCount++;
+					}
+					if (frames == offsets.length) {
+						offsets = Arrays.copyOf(offsets, frames << 1);
+					}
+					offsets[frames++] = next;
+					next += SnapshotWriter.FRAME_HEADER_BYTES + length;
+				}
+				if (next == 0 && !ended) {
+					throw corrupted(snapshot, "torn entry at " + position);
+				}
+
+				decode(snapshot, window, offsets, frames, accounts, transactions);
+				position += next;
+			}
+			if (!ended) {
+				throw corrupted(snapshot, "missing end");
+			}
+
+			LOGGER.info("Restored {} accounts and {} idempotency keys from snapshot {} at lsn {} in {} ms.",
+					accountCount, transactionCount, snapshot, lsn, System.currentTimeMillis() - startTime);
+			return lsn;
+		}
+	}
+
+	private static void decode(Path snapshot, MappedByteBuffer window, int[] offsets, int frames,
+			Consumer<CustomerAccount> accounts, Consumer<BankingTransaction> transactions) {
+		IntStream.range(0, (frames + DECODE_BATCH - 1) / DECODE_BATCH).parallel().forEach(batch -> {
+			ByteBuffer in = window.duplicate();
+			int end = Math.min(frames, (batch + 1) * DECODE_BATCH);
+			for (int i = batch * DECODE_BATCH; i < end; i++) {
+				ByteBuffer payload = checkFrame(snapshot, in, offsets[i]);
+				if (payload.get() == AccountSnapshotCodec.ACCOUNT) {
+					accounts.accept(AccountSnapshotCodec.decodeAccount(payload));
+				} else {
+					transactions.accept(AccountSnapshotCodec.decodeTransaction(payload));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Checks the crc32 of the frame starting at the offset.
+	 *
+	 * @return the payload of the frame.
+	 */
+	private static ByteBuffer checkFrame(Path snapshot, ByteBuffer window, int offset) {
+		int length = window.getInt(offset);
+		int checksum = window.getInt(offset + 4);
+		ByteBuffer payload = window.duplicate();
+		payload.limit(offset + SnapshotWriter.FRAME_HEADER_BYTES + length);
+		payload.position(offset + SnapshotWriter.FRAME_HEADER_BYTES);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.duplicate());
+		if ((int) crc.getValue() != checksum) {
+			throw corrupted(snapshot, "bad checksum at " + offset);
+		}
+		return payload;
+	}
+
+	private static IllegalStateException corrupted(Path snapshot, String reason) {
+		return new IllegalStateException("Snapshot " + snapshot + " is corrupted, " + reason);
+	}
+
+	private void deleteTempFiles() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+			for (Path path : stream) {
+				LOGGER.warn("Deleting snapshot {} that was not committed.", path);
+				Files.delete(path);
+			}
+		}
+	}
+
+	private List<Path> listSnapshots() throws IOException {
+		List<Path> snapshots = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			for (Path path : stream) {
+				snapshots.add(path);
+			}
+		}
+		// names are zero padded, the lexical order is the lsn order.
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+	private static String snapshotName(long lsn) {
+		return String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX);
+	}
+
+	// makes the renamed snapshot itself durable, not supported on every platform.
+	private void syncDirectory() {
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			LOGGER.debug("Could not sync the snapshot directory.", e);
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,176 @@
+package com.netflix.billing.bank.snapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+
+/**
+ *
+ * Writes one snapshot through a memory mapped window of the file, the window
+ * is moved forward once an entry does not fit in what is left of it. Entries
+ * are framed by their length and crc32 like the records of the write-ahead
+ * log, the snapshot is closed by an END entry carrying the number of entries
+ * written.
+ *
+ * The snapshot is written to a temporary file which replaces the previous
+ * snapshot on commit, a snapshot that is not committed is deleted on close.
+ * Not thread safe, the entries are written one at a time by the snapshot
+ * thread or the owner of the account.
+ *
+ * @author rkata
+ *
+ */
+public class SnapshotWriter implements AutoCloseable {
+
+	static final int MAGIC = 0x42425350;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int FRAME_HEADER_BYTES = 8;
+
+	private static final int WINDOW_BYTES = 64 << 20;
+
+	private final AccountSnapshotStore snapshotStore;
+	private final Path tempFile;
+	private final Path file;
+	private final long lsn;
+	private final FileChannel channel;
+	private final CRC32 crc = new CRC32();
+
+	private MappedByteBuffer window;
+	private long windowStart = 0l;
+
+	private long accounts = 0l;
+	private long transactions = 0l;
+	private boolean committed = false;
+
+	SnapshotWriter(AccountSnapshotStore snapshotStore, Path tempFile, Path file, long lsn) throws IOException {
+		this.snapshotStore = snapshotStore;
+		this.tempFile = tempFile;
+		this.file = file;
+		this.lsn = lsn;
+		this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0l, WINDOW_BYTES);
+		window.putInt(MAGIC);
+		window.putInt(VERSION);
+		window.putLong(lsn);
+	}
+
+	/**
+	 * Writes the account, needs to be called by the owner of the account, i.e
+	 * while holding its lock or on the shard it is assigned to.
+	 */
+	public void writeAccount(CustomerAccount custAccount) {
+		int start = beginFrame(AccountSnapshotCodec.maxAccountSize(custAccount));
+		AccountSnapshotCodec.encodeAccount(custAccount, window);
+		endFrame(start);
+		accounts++;
+	}
+
+	public void writeTransaction(BankingTransaction transaction) {
+		int start = beginFrame(AccountSnapshotCodec.maxTransactionSize(transaction));
+		AccountSnapshotCodec.encodeTransaction(transaction, window);
+		endFrame(start);
+		transactions++;
+	}
+
+	/**
+	 * Closes the snapshot with the END entry, forces it to the disk and makes it
+	 * the latest snapshot.
+	 */
+	public void commit() {
+		int start = beginFrame(1 + 8 + 8);
+		window.put(AccountSnapshotCodec.END);
+		window.putLong(accounts);
+		window.putLong(transactions);
+		endFrame(start);
+
+		try {
+			long size = windowStart + window.position();
+			window.force();
+			channel.truncate(size);
+			channel.force(true);
+			channel.close();
+			Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to commit snapshot " + file, e);
+		}
+		snapshotStore.committed(this);
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public long getAccounts() {
+		return accounts;
+	}
+
+	public long getTransactions() {
+		return transactions;
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Deletes the snapshot unless it is committed.
+	 */
+	@Override
+	public void close() {
+		if (committed) {
+			return;
+		}
+		try {
+			channel.close();
+			Files.deleteIfExists(tempFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to delete snapshot " + tempFile, e);
+		}
+	}
+
+	// leaves room for the frame header and returns where the frame starts.
+	private int beginFrame(int maxPayloadSize) {
+		int needed = FRAME_HEADER_BYTES + maxPayloadSize;
+		if (window.remaining() < needed) {
+			moveWindow(needed);
+		}
+		int start = window.position();
+		window.position(start + FRAME_HEADER_BYTES);
+		return start;
+	}
+
+	private void endFrame(int start) {
+		int end = window.position();
+		ByteBuffer payload = window.duplicate();
+		payload.limit(end);
+		payload.position(start + FRAME_HEADER_BYTES);
+		crc.reset();
+		crc.update(payload);
+		window.putInt(start, end - start - FRAME_HEADER_BYTES);
+		window.putInt(start + 4, (int) crc.getValue());
+	}
+
+	private void moveWindow(int needed) {
+		long position = windowStart + window.position();
+		window.force();
+		try {
+			window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW_BYTES, needed));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to extend snapshot " + tempFile, e);
+		}
+		windowStart = position;
+	}
+}
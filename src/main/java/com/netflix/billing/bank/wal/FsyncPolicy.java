@@ -0,0 +1,33 @@
+package com.netflix.billing.bank.wal;
+
+/**
+ * When the write-ahead log forces its records to the disk before a write is
+ * acknowledged.
+ *
+ * @author rkata
+ *
+ */
+public enum FsyncPolicy {
+
+	/**
+	 * Records are written and forced to the disk as soon as they are appended,
+	 * records appended while a force is in progress share the next one.
+	 */
+	ALWAYS,
+
+	/**
+	 * Records are grouped for up to the flush interval or the maximum number of
+	 * records of a flush and forced to the disk once per group.
+	 */
+	BATCHED,
+
+	/**
+	 * Records are grouped like BATCHED and handed over to the OS, writes are
+	 * acknowledged without forcing them to the disk.
+	 */
+	OS;
+
+	public static FsyncPolicy fromString(String policy) {
+		return valueOf(policy.trim().toUpperCase());
+	}
+}
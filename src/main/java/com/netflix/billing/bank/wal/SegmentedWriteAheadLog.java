@@ -0,0 +1,509 @@
+package com.netflix.billing.bank.wal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.billing.bank.exception.ApiStatusException;
+
+/**
+ *
+ * Write-ahead log kept in segment files of a directory, a segment is named
+ * after the lsn of its first record and a new one is started once the current
+ * one reaches the segment size. Every record is framed by the length and the
+ * crc32 of its payload, a torn record at the end of the last segment is
+ * truncated when the log is opened.
+ *
+ * Appends only encode the record into an in-memory buffer. A flusher thread
+ * implements the group commit, it swaps the buffer with an empty one, writes
+ * it out with a single write and forces it to the disk according to the
+ * FsyncPolicy, then completes the future of every record of the group. The
+ * flusher waits for up to the flush interval or the maximum number of records
+ * before flushing, except with FsyncPolicy.ALWAYS where it flushes right away.
+ *
+ * Once a write fails the log refuses any further appends, the records that
+ * were not written are failed and the bank needs to be restarted to recover
+ * its state from the log.
+ *
+ * @author rkata
+ *
+ */
+public class SegmentedWriteAheadLog implements WriteAheadLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SegmentedWriteAheadLog.class);
+
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// length and crc32 of the payload.
+	private static final int FRAME_HEADER_BYTES = 8;
+
+	private static final int INITIAL_BUFFER_BYTES = 1 << 20;
+
+	private static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+	private final Path directory;
+	private final FsyncPolicy fsyncPolicy;
+	private final long flushIntervalNanos;
+	private final int maxBatchRecords;
+	private final long segmentBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushNeeded = lock.newCondition();
+	private final CRC32 crc = new CRC32();
+
+	// records appended since the last flush, guarded by the lock.
+	private ByteBuffer pendingBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+	private Batch pendingBatch = new Batch();
+	// records being written by the flusher and the buffer of the previous flush,
+	// guarded by the lock.
+	private Batch flushingBatch;
+	private ByteBuffer spareBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+	private long nextLsn;
+	private boolean closed = false;
+	private IOException failure;
+
+	private volatile long durableLsn;
+
+	// current segment, only used by the flusher.
+	private FileChannel segment;
+	private long segmentSize;
+
+	private final Thread flusher;
+
+	/**
+	 *
+	 * @param directory           directory of the segments, created if missing.
+	 * @param fsyncPolicy
+	 * @param flushIntervalMicros maximum time the flusher waits for more records
+	 *                            before flushing.
+	 * @param maxBatchRecords     number of records flushed right away.
+	 * @param segmentBytes        size after which a new segment is started.
+	 */
+	public SegmentedWriteAheadLog(Path directory, FsyncPolicy fsyncPolicy, long flushIntervalMicros,
+			int maxBatchRecords, long segmentBytes) {
+		if (maxBatchRecords < 1) {
+			throw new IllegalArgumentException("maxBatchRecords should be at least 1");
+		}
+		if (segmentBytes < 1 || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("segmentBytes should be between 1 and " + Integer.MAX_VALUE);
+		}
+		this.directory = directory;
+		this.fsyncPolicy = fsyncPolicy;
+		this.flushIntervalNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0l, flushIntervalMicros));
+		this.maxBatchRecords = maxBatchRecords;
+		this.segmentBytes = segmentBytes;
+
+		try {
+			Files.createDirectories(directory);
+			this.durableLsn = recoverLastLsn();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to open the write-ahead log in " + directory, e);
+		}
+		this.nextLsn = durableLsn + 1;
+
+		this.flusher = new Thread(this::flushLoop, "billingbank-wal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		LOGGER.info("Opened write-ahead log in {} at lsn {}, fsync {}.", directory, durableLsn, fsyncPolicy);
+	}
+
+	@Override
+	public long append(WalRecord record) {
+		int maxFrameSize = FRAME_HEADER_BYTES + record.maxEncodedSize();
+		lock.lock();
+		try {
+			if (failure != null) {
+				throw logUnavailable(failure);
+			}
+			if (closed) {
+				throw new IllegalStateException("The write-ahead log is closed");
+			}
+			ensureCapacity(maxFrameSize);
+
+			long lsn = nextLsn++;
+			int start = pendingBuffer.position();
+			pendingBuffer.position(start + FRAME_HEADER_BYTES);
+			record.encode(lsn, pendingBuffer);
+			int end = pendingBuffer.position();
+
+			ByteBuffer payload = pendingBuffer.duplicate();
+			payload.position(start + FRAME_HEADER_BYTES);
+			payload.limit(end);
+			crc.reset();
+			crc.update(payload);
+			pendingBuffer.putInt(start, end - start - FRAME_HEADER_BYTES);
+			pendingBuffer.putInt(start + 4, (int) crc.getValue());
+
+			if (pendingBatch.records == 0) {
+				pendingBatch.firstLsn = lsn;
+			}
+			pendingBatch.lastLsn = lsn;
+			pendingBatch.records++;
+			if (pendingBatch.records == 1 || pendingBatch.records >= maxBatchRecords) {
+				flushNeeded.signal();
+			}
+			return lsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> whenDurable(long lsn) {
+		if (lsn <= durableLsn) {
+			return DURABLE;
+		}
+		lock.lock();
+		try {
+			if (lsn <= durableLsn) {
+				return DURABLE;
+			}
+			if (failure != null) {
+				CompletableFuture<Void> failed = new CompletableFuture<>();
+				failed.completeExceptionally(logUnavailable(failure));
+				return failed;
+			}
+			if (flushingBatch != null && lsn <= flushingBatch.lastLsn) {
+				return flushingBatch.durable;
+			}
+			return pendingBatch.durable;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long replay(long fromLsn, Consumer<WalRecord> consumer) {
+		try {
+			List<Path> segments = listSegments();
+			long replayed = 0l;
+			for (int i = 0; i < segments.size(); i++) {
+				// all the records of the segment are before the next segment.
+				if (i + 1 < segments.size() && firstLsnOf(segments.get(i + 1)) <= fromLsn) {
+					continue;
+				}
+				replayed += scanSegment(segments.get(i), fromLsn, consumer).records;
+			}
+			LOGGER.info("Replayed {} records of the write-ahead log from lsn {}.", replayed, fromLsn);
+			return replayed;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to replay the write-ahead log in " + directory, e);
+		}
+	}
+
+	@Override
+	public long getDurableLsn() {
+		return durableLsn;
+	}
+
+	/**
+	 * Deletes the segments whose records are all before the lsn. The last
+	 * segment is always kept, it carries the lsn the log resumes from when it is
+	 * opened again.
+	 */
+	@Override
+	public int truncateBefore(long lsn) {
+		try {
+			List<Path> segments = listSegments();
+			int deleted = 0;
+			for (int i = 0; i + 1 < segments.size(); i++) {
+				if (firstLsnOf(segments.get(i + 1)) > lsn) {
+					break;
+				}
+				Files.delete(segments.get(i));
+				deleted++;
+			}
+			if (deleted > 0) {
+				LOGGER.info("Deleted {} write-ahead log segments before lsn {}.", deleted, lsn);
+			}
+			return deleted;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to truncate the write-ahead log in " + directory, e);
+		}
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	/**
+	 * Flushes the pending records and closes the log, appending to a closed log
+	 * fails.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flushNeeded.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (segment != null) {
+				segment.force(false);
+				segment.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to close the write-ahead log segment.", e);
+		}
+		LOGGER.info("Closed write-ahead log at lsn {}.", durableLsn);
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (pendingBuffer.remaining() >= bytes) {
+			return;
+		}
+		ByteBuffer larger = ByteBuffer
+				.allocateDirect(Math.max(pendingBuffer.capacity() << 1, pendingBuffer.position() + bytes));
+		pendingBuffer.flip();
+		larger.put(pendingBuffer);
+		pendingBuffer = larger;
+	}
+
+	private void flushLoop() {
+		while (true) {
+			Batch batch;
+			ByteBuffer buffer;
+			lock.lock();
+			try {
+				while (pendingBatch.records == 0 && !closed) {
+					flushNeeded.awaitUninterruptibly();
+				}
+				if (fsyncPolicy != FsyncPolicy.ALWAYS) {
+					// give the other writers a chance to join the group.
+					long remaining = flushIntervalNanos;
+					while (pendingBatch.records < maxBatchRecords && !closed && remaining > 0) {
+						try {
+							remaining = flushNeeded.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							remaining = 0;
+						}
+					}
+				}
+				if (pendingBatch.records == 0) {
+					// closed and nothing left to flush.
+					return;
+				}
+
+				batch = pendingBatch;
+				buffer = pendingBuffer;
+				flushingBatch = batch;
+				pendingBatch = new Batch();
+				pendingBuffer = spareBuffer;
+				spareBuffer = null;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				buffer.flip();
+				write(batch, buffer);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+
+			lock.lock();
+			try {
+				durableLsn = batch.lastLsn;
+				flushingBatch = null;
+				buffer.clear();
+				spareBuffer = buffer;
+			} finally {
+				lock.unlock();
+			}
+			batch.durable.complete(null);
+		}
+	}
+
+	private void write(Batch batch, ByteBuffer buffer) throws IOException {
+		if (segment == null || (segmentSize > 0 && segmentSize + buffer.remaining() > segmentBytes)) {
+			rollSegment(batch.firstLsn);
+		}
+		while (buffer.hasRemaining()) {
+			segmentSize += segment.write(buffer);
+		}
+		if (fsyncPolicy != FsyncPolicy.OS) {
+			segment.force(false);
+		}
+	}
+
+	private void rollSegment(long firstLsn) throws IOException {
+		if (segment != null) {
+			segment.force(false);
+			segment.close();
+		}
+		segment = FileChannel.open(directory.resolve(segmentName(firstLsn)), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		segmentSize = 0l;
+		syncDirectory();
+	}
+
+	// makes the new segment file itself durable, not supported on every platform.
+	private void syncDirectory() {
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			LOGGER.debug("Could not sync the directory of the write-ahead log.", e);
+		}
+	}
+
+	private void fail(IOException e) {
+		LOGGER.error("Failed to write to the write-ahead log, refusing any further writes.", e);
+		Batch flushing;
+		Batch pending;
+		lock.lock();
+		try {
+			failure = e;
+			flushing = flushingBatch;
+			pending = pendingBatch;
+			flushingBatch = null;
+		} finally {
+			lock.unlock();
+		}
+		flushing.durable.completeExceptionally(logUnavailable(e));
+		pending.durable.completeExceptionally(logUnavailable(e));
+	}
+
+	private static ApiStatusException logUnavailable(IOException e) {
+		return new ApiStatusException(e, "log_unavailable", "The write-ahead log is not available", 503);
+	}
+
+	/**
+	 * Finds the lsn of the last record of the log. A torn record at the end of
+	 * the last segment is truncated and trailing segments without any complete
+	 * record are deleted, so that the next segment can be named after the next
+	 * lsn.
+	 */
+	private long recoverLastLsn() throws IOException {
+		List<Path> segments = listSegments();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Path path = segments.get(i);
+			SegmentScan scan = scanSegment(path, Long.MAX_VALUE, null);
+			if (scan.lastLsn == NO_LSN) {
+				LOGGER.warn("Deleting write-ahead log segment {} without any complete record.", path);
+				Files.delete(path);
+				continue;
+			}
+			if (scan.validBytes < scan.size) {
+				LOGGER.warn("Truncating torn write-ahead log segment {} from {} to {} bytes.", path, scan.size,
+						scan.validBytes);
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+					channel.truncate(scan.validBytes);
+					channel.force(true);
+				}
+			}
+			return scan.lastLsn;
+		}
+		return NO_LSN;
+	}
+
+	private List<Path> listSegments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				segments.add(path);
+			}
+		}
+		// names are zero padded, the lexical order is the lsn order.
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static String segmentName(long firstLsn) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX);
+	}
+
+	private static long firstLsnOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Reads the records of the segment up to the first torn or corrupted one.
+	 *
+	 * @param consumer gets the records from fromLsn on, can be null.
+	 */
+	private static SegmentScan scanSegment(Path path, long fromLsn, Consumer<WalRecord> consumer)
+			throws IOException {
+		SegmentScan scan = new SegmentScan();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			scan.size = channel.size();
+			if (scan.size == 0) {
+				return scan;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, scan.size);
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= FRAME_HEADER_BYTES) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) {
+					break;
+				}
+
+				ByteBuffer payload = buffer.slice();
+				payload.limit(length);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				WalRecord record = WalRecord.decode(payload);
+				buffer.position(start + FRAME_HEADER_BYTES + length);
+				scan.validBytes = buffer.position();
+				scan.lastLsn = record.getLsn();
+				if (consumer != null && record.getLsn() >= fromLsn) {
+					consumer.accept(record);
+					scan.records++;
+				}
+			}
+		}
+		return scan;
+	}
+
+	private static final class Batch {
+		private long firstLsn;
+		private long lastLsn;
+		private int records;
+		private final CompletableFuture<Void> durable = new CompletableFuture<>();
+	}
+
+	private static final class SegmentScan {
+		private long size;
+		private long validBytes;
+		private long lastLsn = NO_LSN;
+		private long records;
+	}
+}
@@ -0,0 +1,184 @@
+package com.netflix.billing.bank.wal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+
+/**
+ *
+ * Record of the write-ahead log, one per credit or debit applied to an account,
+ * one per debit rejected after its invoice id was recorded and one per deleted
+ * account. A record carries what is needed to apply the
+ * operation again on replay: the customer, the transaction id of a credit or
+ * the invoice id of a debit, the credit type of a credit, the money and the
+ * time the transaction was applied.
+ *
+ * Records are stored as a compact binary payload, fixed size fields first
+ * followed by the length prefixed utf-8 strings.
+ *
+ * @author rkata
+ *
+ */
+public final class WalRecord {
+
+	public enum Type {
+		// new types go last, the ordinal is stored.
+		CREDIT, DEBIT, DELETE, DEBIT_REJECTED;
+
+		private static final Type[] TYPES = values();
+	}
+
+	private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+	private static final byte NO_CREDIT_TYPE = -1;
+
+	private final long lsn;
+	private final Type type;
+	private final String customerId;
+	// transaction id for credits, invoice id for debits.
+	private final String externalId;
+	private final CreditType creditType;
+	private final String currency;
+	private final long amount;
+	private final long transactionTimeNanos;
+
+	private WalRecord(long lsn, Type type, String customerId, String externalId, CreditType creditType,
+			String currency, long amount, long transactionTimeNanos) {
+		this.lsn = lsn;
+		this.type = type;
+		this.customerId = customerId;
+		this.externalId = externalId;
+		this.creditType = creditType;
+		this.currency = currency;
+		this.amount = amount;
+		this.transactionTimeNanos = transactionTimeNanos;
+	}
+
+	public static WalRecord credit(BankingTransaction creditTransaction, CreditType creditType, String currency,
+			long amount) {
+		return new WalRecord(0l, Type.CREDIT, creditTransaction.getCustomerId(),
+				creditTransaction.getTransactionId(), creditType, currency, amount,
+				DebitHistoryStore.toEpochNanos(creditTransaction.getTransactionTime()));
+	}
+
+	public static WalRecord debit(BankingTransaction debitTransaction, String currency, long amount) {
+		return new WalRecord(0l, Type.DEBIT, debitTransaction.getCustomerId(), debitTransaction.getTransactionId(),
+				null, currency, amount, DebitHistoryStore.toEpochNanos(debitTransaction.getTransactionTime()));
+	}
+
+	/**
+	 * A debit that failed, only its invoice id is restored on replay so that it
+	 * stays a duplicate across restarts.
+	 */
+	public static WalRecord rejectedDebit(BankingTransaction debitTransaction, String currency, long amount) {
+		return new WalRecord(0l, Type.DEBIT_REJECTED, debitTransaction.getCustomerId(),
+				debitTransaction.getTransactionId(), null, currency, amount,
+				DebitHistoryStore.toEpochNanos(debitTransaction.getTransactionTime()));
+	}
+
+	public static WalRecord delete(String customerId) {
+		return new WalRecord(0l, Type.DELETE, customerId, null, null, null, 0l, 0l);
+	}
+
+	/**
+	 * Writes the payload of the record with the given lsn.
+	 */
+	void encode(long recordLsn, ByteBuffer out) {
+		out.putLong(recordLsn);
+		out.put((byte) type.ordinal());
+		out.put(creditType == null ? NO_CREDIT_TYPE : (byte) creditType.ordinal());
+		out.putLong(amount);
+		out.putLong(transactionTimeNanos);
+		putString(out, customerId);
+		putString(out, externalId);
+		putString(out, currency);
+	}
+
+	/**
+	 *
+	 * @return the maximum size of the payload of the record.
+	 */
+	int maxEncodedSize() {
+		return 8 + 1 + 1 + 8 + 8 + maxStringSize(customerId) + maxStringSize(externalId) + maxStringSize(currency);
+	}
+
+	static WalRecord decode(ByteBuffer in) {
+		long lsn = in.getLong();
+		Type type = Type.TYPES[in.get()];
+		byte creditTypeOrdinal = in.get();
+		long amount = in.getLong();
+		long transactionTimeNanos = in.getLong();
+		String customerId = getString(in);
+		String externalId = getString(in);
+		String currency = getString(in);
+		return new WalRecord(lsn, type, customerId, externalId,
+				creditTypeOrdinal == NO_CREDIT_TYPE ? null : CREDIT_TYPES[creditTypeOrdinal], currency, amount,
+				transactionTimeNanos);
+	}
+
+	private static void putString(ByteBuffer out, String value) {
+		if (value == null) {
+			out.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int maxStringSize(String value) {
+		// an utf-16 char never takes more than 3 bytes in utf-8.
+		return 4 + (value == null ? 0 : value.length() * 3);
+	}
+
+	public long getLsn() {
+		return lsn;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getCustomerId() {
+		return customerId;
+	}
+
+	public String getExternalId() {
+		return externalId;
+	}
+
+	public CreditType getCreditType() {
+		return creditType;
+	}
+
+	public String getCurrency() {
+		return currency;
+	}
+
+	public long getAmount() {
+		return amount;
+	}
+
+	public long getTransactionTimeNanos() {
+		return transactionTimeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "WalRecord [lsn=" + lsn + ", type=" + type + ", customerId=" + customerId + ", externalId="
+				+ externalId + "]";
+	}
+}
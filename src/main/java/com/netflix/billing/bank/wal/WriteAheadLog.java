@@ -0,0 +1,125 @@
+package com.netflix.billing.bank.wal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import com.netflix.billing.bank.exception.ApiException;
+
+/**
+ *
+ * Write-ahead log of the operations applied to the customer accounts. Records
+ * are appended by the owner of the account right after the operation got
+ * applied, so the records of an account are logged in the order they were
+ * applied, and the operation is acknowledged once its record is durable.
+ * Replaying the log rebuilds the accounts and the idempotency keys.
+ *
+ * @author rkata
+ *
+ */
+public interface WriteAheadLog extends AutoCloseable {
+
+	// log sequence number of the operations that were not logged.
+	long NO_LSN = 0l;
+
+	WriteAheadLog DISABLED = new WriteAheadLog() {
+		private final CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
+
+		@Override
+		public long append(WalRecord record) {
+			return NO_LSN;
+		}
+
+		@Override
+		public CompletableFuture<Void> whenDurable(long lsn) {
+			return durable;
+		}
+
+		@Override
+		public long replay(long fromLsn, Consumer<WalRecord> consumer) {
+			return 0l;
+		}
+
+		@Override
+		public long getDurableLsn() {
+			return NO_LSN;
+		}
+
+		@Override
+		public int truncateBefore(long lsn) {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	/**
+	 * Appends the record, the record is not durable before the future returned
+	 * by whenDurable for its lsn completes.
+	 *
+	 * @return the log sequence number of the record, NO_LSN if the log is
+	 *         disabled.
+	 */
+	long append(WalRecord record);
+
+	/**
+	 *
+	 * @return a future completing once the record with the lsn and all the
+	 *         records before it are durable, completing exceptionally if the log
+	 *         failed to write them.
+	 */
+	CompletableFuture<Void> whenDurable(long lsn);
+
+	/**
+	 * Blocks until the record with the lsn is durable, returns right away for
+	 * NO_LSN.
+	 *
+	 * @throws ApiException if the log failed to write the record or the thread
+	 *                      got interrupted.
+	 */
+	default void awaitDurable(long lsn) {
+		if (lsn == NO_LSN) {
+			return;
+		}
+		try {
+			whenDurable(lsn).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApiException("Interrupted while waiting on the write-ahead log", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ApiException("Failure while waiting on the write-ahead log", e.getCause());
+		}
+	}
+
+	/**
+	 * Reads back the records of the log in the order they were appended, needs
+	 * to be done before any record is appended.
+	 *
+	 * @param fromLsn  records before this lsn are skipped.
+	 * @param consumer
+	 * @return the number of records replayed.
+	 */
+	long replay(long fromLsn, Consumer<WalRecord> consumer);
+
+	/**
+	 *
+	 * @return lsn of the latest durable record.
+	 */
+	long getDurableLsn();
+
+	/**
+	 * Drops the records before the lsn once they are covered by a snapshot, the
+	 * log may keep some of them as it is truncated a segment at a time.
+	 *
+	 * @return the number of segments deleted.
+	 */
+	int truncateBefore(long lsn);
+
+	@Override
+	void close();
+}
@@ -0,0 +1,107 @@
+package com.netflix.billing.bank.controller.itest;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import javax.servlet.AsyncListener;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.web.util.NestedServletException;
+
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.service.AccountLockTable;
+import com.netflix.billing.bank.service.AccountSynchronizer;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class BankControllerIntTest {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private AccountLockTable lockTable;
+
+	@Test
+	public void invalidHistoryCursorIsABadRequest() throws Exception {
+		credit("controller-cust-1", "trans-1", 10);
+
+		performAsync(get("/customer/{customerId}/history", "controller-cust-1").param("after", "USD"))
+				.andExpect(status().isBadRequest()).andExpect(jsonPath("$.error").value("invalid_cursor"))
+				.andExpect(jsonPath("$.status").value("400"));
+	}
+
+	@Test
+	public void insufficientFundsKeepTheDefaultErrorHandling() throws Exception {
+		credit("controller-cust-2", "trans-1", 10);
+
+		try {
+			performAsync(post("/customer/{customerId}/debit", "controller-cust-2")
+					.contentType(MediaType.APPLICATION_JSON).content(debitJson("inv-1", 20)));
+			Assert.fail("Insufficient funds should not be answered by the exception handler.");
+		} catch (NestedServletException e) {
+			// left to the servlet container, which answers it with the default 500.
+			Assert.assertEquals(ApiException.class, e.getRootCause().getClass());
+		}
+	}
+
+	@Test
+	public void historyReadTimingOutIsServiceUnavailable() throws Exception {
+		credit("controller-cust-3", "trans-1", 10);
+
+		AccountSynchronizer custActSync = lockTable.lockFor("controller-cust-3");
+		custActSync.acquireWriteLock();
+		try {
+			// the read waits for the writer on the lock wait executor.
+			MvcResult result = mockMvc.perform(get("/customer/{customerId}/history", "controller-cust-3"))
+					.andExpect(request().asyncStarted()).andReturn();
+
+			// the container times the request out.
+			MockAsyncContext asyncContext = (MockAsyncContext) result.getRequest().getAsyncContext();
+			for (AsyncListener listener : asyncContext.getListeners()) {
+				listener.onTimeout(null);
+			}
+			mockMvc.perform(asyncDispatch(result)).andExpect(status().isServiceUnavailable())
+					.andExpect(jsonPath("$.error").value("timeout"));
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+	}
+
+	private ResultActions performAsync(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+		MvcResult result = mockMvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+		return mockMvc.perform(asyncDispatch(result));
+	}
+
+	private void credit(String customerId, String transactionId, long amount) throws Exception {
+		performAsync(post("/customer/{customerId}/credit", customerId).contentType(MediaType.APPLICATION_JSON)
+				.content(creditJson(transactionId, amount))).andExpect(status().isOk());
+	}
+
+	private static String creditJson(String transactionId, long amount) {
+		return "{\"transactionId\":\"" + transactionId + "\",\"creditType\":\"GIFTCARD\",\"money\":{\"amount\":"
+				+ amount + ",\"currency\":\"USD\"}}";
+	}
+
+	private static String debitJson(String invoiceId, long amount) {
+		return "{\"invoiceId\":\"" + invoiceId + "\",\"money\":{\"amount\":" + amount + ",\"currency\":\"USD\"}}";
+	}
+
+}
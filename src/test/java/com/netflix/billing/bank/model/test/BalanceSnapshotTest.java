@@ -0,0 +1,56 @@
+package com.netflix.billing.bank.model.test;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.Money;
+import com.netflix.billing.bank.model.BalanceSnapshot;
+import com.netflix.billing.bank.model.CustomerAccount;
+
+public class BalanceSnapshotTest {
+
+	private CustomerAccount customerAccount = null;
+
+	@Before
+	public void setupBeforeTest() {
+		customerAccount = new CustomerAccount("1234");
+	}
+
+	@Test
+	public void newAccountStartsWithEmptySnapshot() {
+		BalanceSnapshot snapshot = customerAccount.getBalanceSnapshot();
+		Assert.assertEquals(0, snapshot.getVersion());
+		Assert.assertTrue(snapshot.getBalance().getBalanceAmounts().isEmpty());
+	}
+
+	@Test
+	public void publishedSnapshotIsVersionedAndIsNotAffectedByLaterWrites() {
+		customerAccount.getOrCreateCustomerAccountBalance("USD").updateBalance(CreditType.GIFTCARD, 100);
+		BalanceSnapshot first = customerAccount.publishBalanceSnapshot();
+
+		customerAccount.getOrCreateCustomerAccountBalance("USD").updateBalance(CreditType.GIFTCARD, -100);
+		customerAccount.getOrCreateCustomerAccountBalance("USD").updateBalance(CreditType.CASH, 5);
+		BalanceSnapshot second = customerAccount.publishBalanceSnapshot();
+
+		Assert.assertEquals(1, first.getVersion());
+		Assert.assertEquals(2, second.getVersion());
+		Assert.assertSame(second, customerAccount.getBalanceSnapshot());
+
+		List<Money> giftCards = first.getBalance().getBalanceAmounts().get(CreditType.GIFTCARD);
+		Assert.assertEquals(new Long(100), giftCards.get(0).getAmount());
+		Assert.assertFalse(second.getBalance().getBalanceAmounts().containsKey(CreditType.GIFTCARD));
+		Assert.assertEquals(new Long(5),
+				second.getBalance().getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshotBalanceIsUnmodifiable() {
+		customerAccount.getOrCreateCustomerAccountBalance("USD").updateBalance(CreditType.CASH, 5);
+		customerAccount.publishBalanceSnapshot().getBalance().getBalanceAmounts().remove(CreditType.CASH);
+	}
+
+}
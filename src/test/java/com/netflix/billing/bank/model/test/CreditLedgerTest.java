@@ -0,0 +1,85 @@
+package com.netflix.billing.bank.model.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CreditLedger;
+import com.netflix.billing.bank.model.ProcessedCredit;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+
+public class CreditLedgerTest {
+
+	private CreditLedger creditLedger = null;
+
+	@Before
+	public void setupBeforeTest() {
+		creditLedger = new CreditLedger();
+	}
+
+	@Test
+	public void creditsAreConsumedByCreditTypeAndThenByArrivalOrder() {
+		ProcessedCredit cash1 = buildCredit("trans-1", CreditType.CASH, 10);
+		ProcessedCredit giftCard1 = buildCredit("trans-2", CreditType.GIFTCARD, 20);
+		ProcessedCredit promotion1 = buildCredit("trans-3", CreditType.PROMOTION, 30);
+		ProcessedCredit giftCard2 = buildCredit("trans-4", CreditType.GIFTCARD, 40);
+
+		creditLedger.append(cash1);
+		creditLedger.append(giftCard1);
+		creditLedger.append(promotion1);
+		creditLedger.append(giftCard2);
+
+		Assert.assertEquals(4, creditLedger.size());
+		Assert.assertEquals(2, creditLedger.size(CreditType.GIFTCARD));
+		Assert.assertSame(giftCard1, creditLedger.pollFirst());
+		Assert.assertSame(giftCard2, creditLedger.pollFirst());
+		Assert.assertSame(promotion1, creditLedger.pollFirst());
+		Assert.assertSame(cash1, creditLedger.pollFirst());
+		Assert.assertNull(creditLedger.pollFirst());
+		Assert.assertTrue(creditLedger.isEmpty());
+	}
+
+	@Test
+	public void partialConsumptionKeepsTheCreditAtTheHead() {
+		ProcessedCredit giftCard1 = buildCredit("trans-1", CreditType.GIFTCARD, 20);
+		ProcessedCredit giftCard2 = buildCredit("trans-2", CreditType.GIFTCARD, 40);
+		creditLedger.append(giftCard1);
+		creditLedger.append(giftCard2);
+
+		creditLedger.peekFirst().setAmount(5);
+
+		Assert.assertSame(giftCard1, creditLedger.peekFirst());
+		Assert.assertEquals(5, creditLedger.peekFirst().getAmount());
+		Assert.assertEquals(2, creditLedger.size());
+	}
+
+	@Test
+	public void pushFirstPutsTheCreditBackAtTheHeadOfItsBucket() {
+		ProcessedCredit giftCard1 = buildCredit("trans-1", CreditType.GIFTCARD, 20);
+		ProcessedCredit cash1 = buildCredit("trans-2", CreditType.CASH, 40);
+		creditLedger.append(giftCard1);
+		creditLedger.append(cash1);
+
+		Assert.assertSame(giftCard1, creditLedger.pollFirst());
+		Assert.assertSame(cash1, creditLedger.peekFirst());
+
+		creditLedger.pushFirst(giftCard1);
+		Assert.assertSame(giftCard1, creditLedger.peekFirst());
+		Assert.assertSame(cash1, creditLedger.peekFirst(CreditType.CASH));
+		Assert.assertNull(creditLedger.peekFirst(CreditType.PROMOTION));
+		Assert.assertEquals(2, creditLedger.size());
+	}
+
+	private ProcessedCredit buildCredit(String transactionId, CreditType creditType, long amount) {
+		BankingTransaction transaction = new BankingTransaction(
+				TransactionKey.forCredit("cust-123", creditType, transactionId), TransactionType.CREDIT);
+		ProcessedCredit credit = new ProcessedCredit(creditType, transaction);
+		credit.setCreditType(creditType);
+		credit.setCurrency("USD");
+		credit.setAmount(amount);
+		return credit;
+	}
+}
@@ -0,0 +1,51 @@
+package com.netflix.billing.bank.model.test;
+
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.DebitHistoryStore;
+
+public class DebitHistoryStoreTest {
+
+	private DebitHistoryStore debitHistory = null;
+
+	@Before
+	public void setupBeforeTest() {
+		debitHistory = new DebitHistoryStore();
+	}
+
+	@Test
+	public void emptyStoreHasNoRows() {
+		Assert.assertTrue(debitHistory.isEmpty());
+		Assert.assertEquals(0, debitHistory.size());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void readingPastTheLastRowFails() {
+		debitHistory.append("inv-1", "trans-1", CreditType.CASH, 10, Instant.now());
+		debitHistory.getAmount(1);
+	}
+
+	@Test
+	public void rowsAreReadBackInAppendOrderAcrossChunks() {
+		Instant start = Instant.parse("2021-03-01T22:38:19.603123456Z");
+		int rows = 5000;
+		for (int i = 0; i < rows; i++) {
+			debitHistory.append("inv-" + (i / 2), "trans-" + i, CreditType.values()[i % 3], i,
+					start.plusMillis(i));
+		}
+
+		Assert.assertEquals(rows, debitHistory.size());
+		for (int row = 0; row < rows; row++) {
+			Assert.assertEquals(row, debitHistory.getAmount(row));
+			Assert.assertEquals("inv-" + (row / 2), debitHistory.getInvoiceId(row));
+			Assert.assertEquals("trans-" + row, debitHistory.getTransactionId(row));
+			Assert.assertEquals(CreditType.values()[row % 3], debitHistory.getCreditType(row));
+			Assert.assertEquals(start.plusMillis(row), debitHistory.getTransactionDate(row));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.netflix.billing.bank.model.test;
+
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.model.DebitHistoryStore;
+import com.netflix.billing.bank.model.DebitIndex;
+
+public class DebitIndexTest {
+
+	private static final Instant START = Instant.parse("2021-03-01T22:38:19.603Z");
+
+	private DebitIndex debitIndex = null;
+
+	@Before
+	public void setupBeforeTest() {
+		debitIndex = new DebitIndex();
+	}
+
+	@Test
+	public void rowsOfAnInvoiceAreKeptInOrder() {
+		debitIndex.add(0, "inv-1", nanos(START));
+		debitIndex.add(1, "inv-2", nanos(START));
+		debitIndex.add(2, "inv-1", nanos(START));
+
+		Assert.assertArrayEquals(new int[] { 0, 2 }, debitIndex.rowsOfInvoice("inv-1"));
+		Assert.assertArrayEquals(new int[] { 1 }, debitIndex.rowsOfInvoice("inv-2"));
+		Assert.assertEquals(0, debitIndex.rowsOfInvoice("inv-3").length);
+		Assert.assertEquals(2, debitIndex.getInvoiceCount());
+	}
+
+	@Test
+	public void timeRangeSkipsTheBucketsOutsideOfIt() {
+		// one debit every 10 seconds for an hour.
+		for (int row = 0; row < 360; row++) {
+			debitIndex.add(row, "inv-" + row, nanos(START.plusSeconds(row * 10)));
+		}
+		Assert.assertEquals(61, debitIndex.getBucketCount());
+
+		Instant from = START.plusSeconds(1200);
+		Instant to = START.plusSeconds(1800);
+		int firstRow = debitIndex.firstRowFrom(nanos(from));
+		int endRow = debitIndex.endRowBefore(nanos(to));
+		Assert.assertTrue(firstRow <= 120 && firstRow > 100);
+		Assert.assertTrue(endRow >= 180 && endRow < 200);
+
+		Assert.assertEquals(0, debitIndex.firstRowFrom(Long.MIN_VALUE));
+		Assert.assertEquals(Integer.MAX_VALUE, debitIndex.firstRowFrom(nanos(START.plusSeconds(7200))));
+		Assert.assertEquals(Integer.MAX_VALUE, debitIndex.endRowBefore(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void rowsAppliedWhenTheClockWentBackStayInTheRange() {
+		debitIndex.add(0, "inv-0", nanos(START));
+		debitIndex.add(1, "inv-1", nanos(START.plusSeconds(600)));
+		// the clock went back by 9 minutes.
+		debitIndex.add(2, "inv-2", nanos(START.plusSeconds(60)));
+		debitIndex.add(3, "inv-3", nanos(START.plusSeconds(1200)));
+
+		int endRow = debitIndex.endRowBefore(nanos(START.plusSeconds(90)));
+		Assert.assertTrue(endRow > 2);
+		Assert.assertTrue(debitIndex.firstRowFrom(nanos(START.plusSeconds(60))) <= 2);
+	}
+
+	private static long nanos(Instant instant) {
+		return DebitHistoryStore.toEpochNanos(instant);
+	}
+}
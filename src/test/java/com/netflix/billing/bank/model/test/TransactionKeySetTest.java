@@ -0,0 +1,50 @@
+package com.netflix.billing.bank.model.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionKeySet;
+
+public class TransactionKeySetTest {
+
+	@Test
+	public void keysAreFoundAfterTheSetGrows() {
+		TransactionKeySet keys = new TransactionKeySet();
+		Assert.assertFalse(keys.contains(TransactionKey.DEBIT_TYPE, "inv-0"));
+		for (int i = 0; i < 1_000; i++) {
+			Assert.assertTrue(keys.add(TransactionKey.forDebit("cust-1", "inv-" + i)));
+		}
+		for (int i = 0; i < 1_000; i++) {
+			Assert.assertFalse(keys.add(TransactionKey.forDebit("cust-1", "inv-" + i)));
+			Assert.assertTrue(keys.contains(TransactionKey.DEBIT_TYPE, "inv-" + i));
+		}
+		Assert.assertEquals(1_000, keys.size());
+
+		Set<String> walked = new HashSet<>();
+		keys.forEach((type, externalId) -> {
+			Assert.assertEquals(TransactionKey.DEBIT_TYPE, type);
+			walked.add(externalId);
+		});
+		Assert.assertEquals(1_000, walked.size());
+	}
+
+	@Test
+	public void keysOfDifferentTypesAreDifferent() {
+		TransactionKeySet keys = new TransactionKeySet();
+		Assert.assertTrue(keys.add(TransactionKey.forCredit("cust-1", CreditType.CASH, "trans-1")));
+		Assert.assertTrue(keys.add(TransactionKey.forCredit("cust-1", CreditType.GIFTCARD, "trans-1")));
+		Assert.assertTrue(keys.add(TransactionKey.forDebit("cust-1", "trans-1")));
+		Assert.assertFalse(keys.add(TransactionKey.forCredit("cust-1", CreditType.CASH, "trans-1")));
+
+		// null ids are keys of their own.
+		Assert.assertTrue(keys.add(TransactionKey.DEBIT_TYPE, null));
+		Assert.assertFalse(keys.add(TransactionKey.DEBIT_TYPE, null));
+		Assert.assertTrue(keys.add(TransactionKey.DEBIT_TYPE, ""));
+		Assert.assertEquals(5, keys.size());
+	}
+}
@@ -1,6 +1,8 @@
 package com.netflix.billing.bank.service.itest;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -18,11 +20,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import com.netflix.billing.bank.controller.wire.BatchItemStatus;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
 import com.netflix.billing.bank.controller.wire.CreditAmount;
 import com.netflix.billing.bank.controller.wire.CreditType;
 import com.netflix.billing.bank.controller.wire.CustomerBalance;
 import com.netflix.billing.bank.controller.wire.DebitAmount;
 import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.controller.wire.DebitLineItem;
 import com.netflix.billing.bank.controller.wire.Money;
 import com.netflix.billing.bank.exception.ApiException;
 import com.netflix.billing.bank.service.BillingBankStore;
@@ -52,6 +60,7 @@ public class BillingBankStoreIntTest {
 	@After
 	public void tearDownAfterTest() {
 		billingBankStoreService.delete("cust-123");
+		billingBankStoreService.delete("cust-batch");
 		requestStore.clearAllRequests();
 	}
 
@@ -393,6 +402,104 @@ public class BillingBankStoreIntTest {
 		Assert.assertEquals(225l, (long) cust125Bal.getBalanceAmounts().get(CreditType.GIFTCARD).get(0).getAmount());
 	}
 
+	@Test
+	public void postBatchOfCreditsAndDebitsAcrossCustomers() {
+		List<BatchOperation> operations = new ArrayList<>();
+		operations.add(BatchOperation.credit("cust-123",
+				buildCreditAmount("trans-123", CreditType.GIFTCARD, "USD", 15l)));
+		operations.add(BatchOperation.credit("cust-batch",
+				buildCreditAmount("trans-123", CreditType.CASH, "USD", 40l)));
+		operations.add(BatchOperation.debit("cust-123", buildDebitAmount("inv-123", "USD", 10l)));
+		// duplicate of the first credit.
+		operations.add(BatchOperation.credit("cust-123",
+				buildCreditAmount("trans-123", CreditType.GIFTCARD, "USD", 15l)));
+		// not enough credits left, should not have any impact on the balance.
+		operations.add(BatchOperation.debit("cust-123", buildDebitAmount("inv-124", "USD", 50l)));
+		operations.add(BatchOperation.debit("cust-batch", buildDebitAmount("inv-123", "USD", 25l)));
+		operations.add(new BatchOperation());
+
+		BatchResult batchResult = billingBankStoreService.processBatch(operations);
+
+		Assert.assertEquals(7, batchResult.getResults().size());
+		Assert.assertEquals(BatchItemStatus.APPLIED, batchResult.getResults().get(0).getStatus());
+		Assert.assertEquals(BatchItemStatus.APPLIED, batchResult.getResults().get(1).getStatus());
+		Assert.assertEquals(BatchItemStatus.APPLIED, batchResult.getResults().get(2).getStatus());
+		Assert.assertEquals(BatchItemStatus.DUPLICATE, batchResult.getResults().get(3).getStatus());
+		Assert.assertEquals(BatchItemStatus.FAILED, batchResult.getResults().get(4).getStatus());
+		Assert.assertNotNull(batchResult.getResults().get(4).getMessage());
+		Assert.assertEquals(BatchItemStatus.APPLIED, batchResult.getResults().get(5).getStatus());
+		Assert.assertEquals(BatchItemStatus.FAILED, batchResult.getResults().get(6).getStatus());
+
+		Assert.assertEquals(2, batchResult.getBalances().size());
+		Assert.assertEquals(5l, (long) batchResult.getBalances().get("cust-123").getBalanceAmounts()
+				.get(CreditType.GIFTCARD).get(0).getAmount());
+		Assert.assertEquals(15l, (long) batchResult.getBalances().get("cust-batch").getBalanceAmounts()
+				.get(CreditType.CASH).get(0).getAmount());
+
+		// single calls see the same idempotency keys as the batch.
+		CustomerBalance custBal = billingBankStoreService.processDebit("cust-123",
+				buildDebitAmount("inv-123", "USD", 5l));
+		Assert.assertEquals(5l, (long) custBal.getBalanceAmounts().get(CreditType.GIFTCARD).get(0).getAmount());
+	}
+
+	@Test
+	public void readDebitHistoryPageByPage() {
+		billingBankStoreService.processCredit("cust-123", buildCreditAmount("trans-123", CreditType.CASH, "USD", 100l));
+		billingBankStoreService.processCredit("cust-123", buildCreditAmount("trans-124", CreditType.CASH, "EUR", 100l));
+		for (int i = 0; i < 3; i++) {
+			billingBankStoreService.processDebit("cust-123", buildDebitAmount("inv-usd-" + i, "USD", 10l));
+		}
+		for (int i = 0; i < 2; i++) {
+			billingBankStoreService.processDebit("cust-123", buildDebitAmount("inv-eur-" + i, "EUR", 10l));
+		}
+
+		DebitHistoryQuery query = new DebitHistoryQuery();
+		query.setLimit(2);
+		List<String> invoiceIds = new ArrayList<>();
+		int pages = 0;
+		do {
+			DebitHistoryPage page = billingBankStoreService.debitHistoryPage("cust-123", query);
+			for (DebitLineItem debitLineItem : page.getDebits()) {
+				invoiceIds.add(debitLineItem.getInvoiceId());
+			}
+			query.setAfter(page.getNextCursor());
+			pages++;
+		} while (query.getAfter() != null);
+
+		Assert.assertEquals(3, pages);
+		Assert.assertEquals(Arrays.asList("inv-eur-0", "inv-eur-1", "inv-usd-0", "inv-usd-1", "inv-usd-2"), invoiceIds);
+
+		DebitHistoryQuery usdQuery = new DebitHistoryQuery();
+		usdQuery.setCurrency("USD");
+		DebitHistoryPage usdPage = billingBankStoreService.debitHistoryPage("cust-123", usdQuery);
+		Assert.assertEquals(3, usdPage.getDebits().size());
+		Assert.assertNull(usdPage.getNextCursor());
+
+		Assert.assertNull(billingBankStoreService.debitHistoryPage("cust-unknown", new DebitHistoryQuery()));
+	}
+
+	@Test
+	public void lookUpDebitsByInvoiceAndTimeRange() {
+		Instant start = Instant.now();
+		billingBankStoreService.processCredit("cust-123", buildCreditAmount("trans-123", CreditType.GIFTCARD, "USD", 10l));
+		billingBankStoreService.processCredit("cust-123", buildCreditAmount("trans-124", CreditType.CASH, "USD", 50l));
+		// charged against both credits.
+		billingBankStoreService.processDebit("cust-123", buildDebitAmount("inv-123", "USD", 15l));
+		billingBankStoreService.processDebit("cust-123", buildDebitAmount("inv-124", "USD", 5l));
+		Instant end = Instant.now().plusMillis(1);
+
+		DebitHistory invoiceDebits = billingBankStoreService.debitHistoryOfInvoice("cust-123", "inv-123");
+		Assert.assertEquals(2, invoiceDebits.getDebits().size());
+		Assert.assertEquals(10l, (long) invoiceDebits.getDebits().get(0).getAmount().getAmount());
+		Assert.assertEquals(5l, (long) invoiceDebits.getDebits().get(1).getAmount().getAmount());
+		Assert.assertTrue(billingBankStoreService.debitHistoryOfInvoice("cust-123", "inv-125").getDebits().isEmpty());
+
+		Assert.assertEquals(3, billingBankStoreService.debitHistoryBetween("cust-123", start, end).getDebits().size());
+		Assert.assertTrue(billingBankStoreService.debitHistoryBetween("cust-123", end, end.plusSeconds(60)).getDebits()
+				.isEmpty());
+		Assert.assertNull(billingBankStoreService.debitHistoryOfInvoice("cust-unknown", "inv-123"));
+	}
+
 	private void waitOnFutures(List<Future<?>> tasks) {
 		for (Future<?> f : tasks) {
 			try {
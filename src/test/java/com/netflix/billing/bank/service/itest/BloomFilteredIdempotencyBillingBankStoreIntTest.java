@@ -0,0 +1,31 @@
+package com.netflix.billing.bank.service.itest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore;
+import com.netflix.billing.bank.service.IdempotentTransactionStore;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+
+/**
+ * Runs the BillingBankStoreIntTest suite with the bloom filter in front of the
+ * idempotency store, sized small enough to give false positives.
+ */
+@TestPropertySource(properties = { "billingbank.idempotency.store=unbounded", "billingbank.idempotency.bloom.enabled=true",
+		"billingbank.idempotency.bloom.shards=2", "billingbank.idempotency.bloom.expected-keys=4",
+		"billingbank.idempotency.bloom.bits-per-key=4" })
+public class BloomFilteredIdempotencyBillingBankStoreIntTest extends BillingBankStoreIntTest {
+
+	@Autowired
+	private IdempotentTransactionStore requestStore;
+
+	@Test
+	public void storeIsBehindTheFilter() {
+		Assert.assertTrue(requestStore instanceof BloomFilteredIdempotentTransactionStore);
+		Assert.assertTrue(((BloomFilteredIdempotentTransactionStore) requestStore)
+				.getDelegate() instanceof IdempotentTransactionStoreImpl);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.netflix.billing.bank.service.itest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import com.netflix.billing.bank.service.IdempotentTransactionStore;
+import com.netflix.billing.bank.service.OffHeapIdempotentTransactionStore;
+
+/**
+ * Runs the BillingBankStoreIntTest suite against the off-heap idempotency
+ * store.
+ */
+@TestPropertySource(properties = { "billingbank.idempotency.store=offheap",
+		"billingbank.idempotency.offheap.segments=4", "billingbank.idempotency.offheap.initial-capacity=4" })
+public class OffHeapIdempotencyBillingBankStoreIntTest extends BillingBankStoreIntTest {
+
+	@Autowired
+	private IdempotentTransactionStore requestStore;
+
+	@Test
+	public void offHeapStoreIsSelected() {
+		Assert.assertTrue(requestStore instanceof OffHeapIdempotentTransactionStore);
+		Assert.assertEquals(4, ((OffHeapIdempotentTransactionStore) requestStore).getSegmentCount());
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.netflix.billing.bank.service.itest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import com.netflix.billing.bank.service.BillingBankStore;
+import com.netflix.billing.bank.service.ShardedBillingBankStore;
+
+/**
+ * Runs the BillingBankStoreIntTest suite against the sharded engine.
+ */
+@TestPropertySource(properties = { "billingbank.store.engine=sharded", "billingbank.store.shards=4" })
+public class ShardedBillingBankStoreIntTest extends BillingBankStoreIntTest {
+
+	@Autowired
+	private BillingBankStore billingBankStore;
+
+	@Test
+	public void shardedEngineIsSelected() {
+		Assert.assertTrue(billingBankStore instanceof ShardedBillingBankStore);
+		Assert.assertEquals(4, ((ShardedBillingBankStore) billingBankStore).getShardCount());
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.netflix.billing.bank.service.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.service.AccountIdempotentTransactionStore;
+import com.netflix.billing.bank.service.BillingBankStore;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.ShardedBillingBankStore;
+import com.netflix.billing.bank.service.Util;
+
+public class AccountIdempotentTransactionStoreTest {
+
+	@Test
+	public void duplicatesAreIgnoredUntilTheAccountIsDeleted() {
+		BillingBankStoreImpl bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new AccountIdempotentTransactionStore());
+		assertKeysAreKeptByAccount(bankStore);
+	}
+
+	@Test
+	public void duplicatesAreIgnoredUntilTheAccountIsDeletedOnTheShardedEngine() {
+		ShardedBillingBankStore bankStore = new ShardedBillingBankStore(2, 100);
+		bankStore.setRequestStore(new AccountIdempotentTransactionStore());
+		try {
+			assertKeysAreKeptByAccount(bankStore);
+		} finally {
+			bankStore.shutdown();
+		}
+	}
+
+	private static void assertKeysAreKeptByAccount(BillingBankStore bankStore) {
+		bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+		bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+		bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 10));
+		bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 10));
+		// same ids on another account.
+		bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 5));
+
+		CustomerBalance custBal = bankStore.getCustomerAccountBalance("cust-1");
+		Assert.assertEquals(40l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		custBal = bankStore.getCustomerAccountBalance("cust-2");
+		Assert.assertEquals(5l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+		// the keys are deleted with the account.
+		bankStore.delete("cust-1");
+		custBal = bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+		Assert.assertEquals(50l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+	}
+}
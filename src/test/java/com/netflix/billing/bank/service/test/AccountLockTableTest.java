@@ -0,0 +1,33 @@
+package com.netflix.billing.bank.service.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.service.AccountLockTable;
+
+public class AccountLockTableTest {
+
+	@Test
+	public void stripeCountIsRoundedUpToPowerOfTwo() {
+		Assert.assertEquals(1, new AccountLockTable(1).getStripeCount());
+		Assert.assertEquals(2, new AccountLockTable(2).getStripeCount());
+		Assert.assertEquals(8, new AccountLockTable(5).getStripeCount());
+		Assert.assertEquals(1024, new AccountLockTable(1024).getStripeCount());
+	}
+
+	@Test
+	public void customerAlwaysMapsToTheSameStripe() {
+		AccountLockTable lockTable = new AccountLockTable(64);
+		for (int i = 0; i < 1000; i++) {
+			String customerId = "cust-" + i;
+			Assert.assertSame(lockTable.lockFor(customerId), lockTable.lockFor(new String(customerId)));
+			Assert.assertTrue(lockTable.stripeIndex(customerId) < 64);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void stripeCountShouldBePositive() {
+		new AccountLockTable(0);
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.netflix.billing.bank.service.test;
+
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore;
+import com.netflix.billing.bank.service.BloomFilteredIdempotentTransactionStore.FilterStats;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+
+public class BloomFilteredIdempotentTransactionStoreTest {
+
+	private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+
+	@Test
+	public void duplicatesAreDetectedAndNewKeysSkipTheLookup() {
+		BloomFilteredIdempotentTransactionStore store = new BloomFilteredIdempotentTransactionStore(
+				new IdempotentTransactionStoreImpl(), 4, 10_000, 16);
+		for (int i = 0; i < 10_000; i++) {
+			Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-" + i)));
+		}
+		for (int i = 0; i < 10_000; i++) {
+			Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("trans-" + i)));
+		}
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(new BankingTransaction(
+				TransactionKey.forDebit("cust-1", "trans-0"), TransactionType.DEBIT, START)));
+		Assert.assertNotNull(store.getCurTransaction(TransactionKey.forCredit("cust-1", CreditType.CASH, "trans-1"),
+				TransactionType.CREDIT));
+
+		FilterStats stats = store.getStats();
+		Assert.assertEquals(10_001, stats.getDefiniteMisses() + stats.getFalsePositives());
+		Assert.assertEquals(10_000 + stats.getFalsePositives(), stats.getProbableDuplicates());
+		Assert.assertTrue(stats.getFalsePositiveRate() < 0.01);
+		Assert.assertTrue(stats.getExpectedFalsePositiveRate() < 0.01);
+
+		store.clearAllRequests();
+		Assert.assertEquals(0, store.getStats().getBitsSet());
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-0")));
+	}
+
+	@Test
+	public void anOverfilledFilterStillDetectsEveryDuplicate() {
+		// one bit per expected key, nearly every new key is a false positive.
+		BloomFilteredIdempotentTransactionStore store = new BloomFilteredIdempotentTransactionStore(
+				new IdempotentTransactionStoreImpl(), 1, 10, 1);
+		for (int i = 0; i < 1_000; i++) {
+			Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-" + i)));
+			Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("trans-" + i)));
+		}
+		Assert.assertTrue(store.getStats().getFalsePositiveRate() > 0.5);
+	}
+
+	private static BankingTransaction credit(String transactionId) {
+		return new BankingTransaction(TransactionKey.forCredit("cust-1", CreditType.CASH, transactionId),
+				TransactionType.CREDIT, START);
+	}
+}
@@ -0,0 +1,133 @@
+package com.netflix.billing.bank.service.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
+import com.netflix.billing.bank.controller.wire.BulkImportReport;
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.BulkImportService;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+
+public class BulkImportServiceTest {
+
+	private BillingBankStoreImpl bankStore = null;
+	private BulkImportService importService = null;
+
+	@Before
+	public void setupBeforeTest() {
+		bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+
+		importService = new BulkImportService();
+		importService.setBillingBankStore(bankStore);
+		importService.setBatchSize(2);
+		importService.setQueuedBatches(1);
+	}
+
+	@Test
+	public void importCreditsAndDebitsInBatches() throws IOException {
+		String ndjson = credit("cust-1", "trans-1", 100) + credit("cust-2", "trans-1", 50)
+				+ debit("cust-1", "inv-1", 30) + credit("cust-1", "trans-1", 100)
+				+ "{\"customerId\":\"cust-2\",\"credit\":{\"transactionId\":\"trans-2\",\"creditType\":\"BOGUS\"}}\n"
+				+ debit("cust-2", "inv-1", 60);
+
+		BulkImportReport report = importService.importNdjson(input(ndjson));
+
+		Assert.assertEquals(6, report.getOperations());
+		Assert.assertEquals(3, report.getApplied());
+		Assert.assertEquals(1, report.getDuplicates());
+		// the unknown credit type and the debit that is not covered by the credits.
+		Assert.assertEquals(2, report.getFailed());
+		Assert.assertEquals(3, report.getBatches());
+		Assert.assertFalse(report.isAborted());
+		Assert.assertEquals(2, report.getErrors().size());
+
+		CustomerBalance cust1Bal = bankStore.getCustomerAccountBalance("cust-1");
+		Assert.assertEquals(70l, (long) cust1Bal.getBalanceAmounts().get(CreditType.GIFTCARD).get(0).getAmount());
+		CustomerBalance cust2Bal = bankStore.getCustomerAccountBalance("cust-2");
+		Assert.assertEquals(50l, (long) cust2Bal.getBalanceAmounts().get(CreditType.GIFTCARD).get(0).getAmount());
+	}
+
+	@Test
+	public void importIsAbortedOnInvalidJson() throws IOException {
+		String ndjson = credit("cust-1", "trans-1", 100) + "{\"customerId\": oops\n" + credit("cust-1", "trans-2", 5);
+
+		BulkImportReport report = importService.importNdjson(input(ndjson));
+
+		Assert.assertTrue(report.isAborted());
+		Assert.assertEquals(1, report.getApplied());
+		Assert.assertEquals(100l, (long) bankStore.getCustomerAccountBalance("cust-1").getBalanceAmounts()
+				.get(CreditType.GIFTCARD).get(0).getAmount());
+	}
+
+	@Test(timeout = 10000)
+	public void importIsAbortedWhenTheApplierStops() throws IOException {
+		BillingBankStoreImpl interruptedStore = new BillingBankStoreImpl() {
+			@Override
+			public BatchResult processBatch(List<BatchOperation> operations) {
+				// the applier stops on its next take.
+				Thread.currentThread().interrupt();
+				return super.processBatch(operations);
+			}
+		};
+		interruptedStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		importService.setBillingBankStore(interruptedStore);
+
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			ndjson.append(credit("cust-1", "trans-" + i, 1));
+		}
+		BulkImportReport report = importService.importNdjson(input(ndjson.toString()));
+
+		Assert.assertTrue(report.isAborted());
+		Assert.assertEquals(1, report.getBatches());
+		Assert.assertEquals(2, report.getApplied());
+	}
+
+	@Test(timeout = 10000)
+	public void importIsAbortedWhenTheApplierFails() throws IOException {
+		BillingBankStoreImpl failingStore = new BillingBankStoreImpl() {
+			@Override
+			public BatchResult processBatch(List<BatchOperation> operations) {
+				throw new OutOfMemoryError("no room for the batch");
+			}
+		};
+		failingStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		importService.setBillingBankStore(failingStore);
+
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			ndjson.append(credit("cust-1", "trans-" + i, 1));
+		}
+		BulkImportReport report = importService.importNdjson(input(ndjson.toString()));
+
+		Assert.assertTrue(report.isAborted());
+		Assert.assertEquals(0, report.getApplied());
+		Assert.assertTrue(report.getErrors().get(report.getErrors().size() - 1).endsWith("the applier stopped"));
+	}
+
+	private static ByteArrayInputStream input(String ndjson) {
+		return new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String credit(String customerId, String transactionId, long amount) {
+		return "{\"customerId\":\"" + customerId + "\",\"credit\":{\"transactionId\":\"" + transactionId
+				+ "\",\"creditType\":\"GIFTCARD\",\"money\":{\"amount\":" + amount + ",\"currency\":\"USD\"}}}\n";
+	}
+
+	private static String debit(String customerId, String invoiceId, long amount) {
+		return "{\"customerId\":\"" + customerId + "\",\"debit\":{\"invoiceId\":\"" + invoiceId
+				+ "\",\"money\":{\"amount\":" + amount + ",\"currency\":\"USD\"}}}\n";
+	}
+
+}
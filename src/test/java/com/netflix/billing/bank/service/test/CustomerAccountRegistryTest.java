@@ -0,0 +1,73 @@
+package com.netflix.billing.bank.service.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.CustomerAccountRegistry;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.RegistryStats;
+import com.netflix.billing.bank.service.CustomerAccountRegistry.ShardStats;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.Util;
+
+public class CustomerAccountRegistryTest {
+
+	private CustomerAccountRegistry customers;
+	private BillingBankStoreImpl bankStore;
+
+	@Before
+	public void setUp() {
+		customers = new CustomerAccountRegistry(3, 100);
+		bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		bankStore.setCustomers(customers);
+	}
+
+	@Test
+	public void customersAreSplitOverAPowerOfTwoShards() {
+		Assert.assertEquals(4, customers.getShardCount());
+		for (int i = 0; i < 100; i++) {
+			bankStore.processCredit("cust-" + i, Util.buildCreditAmount("trans-" + i, CreditType.CASH, "USD", 10));
+		}
+
+		RegistryStats stats = bankStore.getCustomerShardStats();
+		Assert.assertEquals(100l, stats.getAccounts());
+		Assert.assertEquals(100l, stats.getWrites());
+		Assert.assertEquals(4, stats.getShards().size());
+		long accounts = 0l;
+		for (ShardStats shard : stats.getShards()) {
+			Assert.assertTrue(shard.getAccounts() > 0);
+			accounts += shard.getAccounts();
+		}
+		Assert.assertEquals(100l, accounts);
+		Assert.assertEquals(customers.shardIndex("cust-1"), customers.shardIndex(new String("cust-1")));
+	}
+
+	@Test
+	public void estimatedBytesFollowTheWritesOfTheAccounts() {
+		bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+		int shard = customers.shardIndex("cust-1");
+		long oneCredit = bankStore.getCustomerShardStats().getShards().get(shard).getEstimatedBytes();
+		Assert.assertTrue(oneCredit > 0);
+
+		for (int i = 2; i <= 20; i++) {
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-" + i, CreditType.CASH, "USD", 10));
+		}
+		bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 5));
+		RegistryStats stats = bankStore.getCustomerShardStats();
+		Assert.assertTrue(stats.getShards().get(shard).getEstimatedBytes() > oneCredit);
+		Assert.assertEquals(21l, stats.getShards().get(shard).getWrites());
+		// one busy customer on four shards.
+		Assert.assertEquals(1, stats.getHotShards().size());
+		Assert.assertEquals(shard, (int) stats.getHotShards().get(0));
+		Assert.assertEquals(shard, (int) stats.getOversizedShards().get(0));
+
+		bankStore.delete("cust-1");
+		stats = bankStore.getCustomerShardStats();
+		Assert.assertEquals(0l, stats.getShards().get(shard).getEstimatedBytes());
+		Assert.assertEquals(0l, stats.getAccounts());
+		Assert.assertTrue(stats.getOversizedShards().isEmpty());
+	}
+}
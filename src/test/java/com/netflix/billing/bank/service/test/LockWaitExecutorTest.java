@@ -0,0 +1,102 @@
+package com.netflix.billing.bank.service.test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.controller.wire.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.DebitHistoryQuery;
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.service.AccountLockTable;
+import com.netflix.billing.bank.service.AccountSynchronizer;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.LockWaitExecutor;
+import com.netflix.billing.bank.service.Util;
+import com.netflix.billing.bank.service.VirtualThreads;
+
+public class LockWaitExecutorTest {
+
+	@Test
+	public void requestsOfALockedCustomerDoNotHoldTheCallingThread() throws Exception {
+		AccountLockTable lockTable = new AccountLockTable(16);
+		BillingBankStoreImpl bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		bankStore.setLockTable(lockTable);
+		bankStore.setLockWaitExecutor(new LockWaitExecutor(2, 10));
+		bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		custActSync.acquireWriteLock();
+		CompletableFuture<CustomerBalance> credit;
+		CompletableFuture<DebitHistory> history;
+		CompletableFuture<DebitHistoryPage> page;
+		try {
+			credit = bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 5));
+			history = bankStore.debitHistoryAsync("cust-1");
+			page = bankStore.debitHistoryPageAsync("cust-1", new DebitHistoryQuery());
+			assertWaiting(credit);
+			assertWaiting(history);
+			assertWaiting(page);
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		CustomerBalance custBal = credit.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(15l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		Assert.assertTrue(history.get(5, TimeUnit.SECONDS).getDebits().isEmpty());
+		Assert.assertTrue(page.get(5, TimeUnit.SECONDS).getDebits().isEmpty());
+
+		// the lock is free, the history is read on the calling thread.
+		Assert.assertTrue(bankStore.debitHistoryAsync("cust-1").isDone());
+
+		// the lock is free, the credit is applied on the calling thread.
+		Assert.assertTrue(bankStore.processCreditAsync("cust-1",
+				Util.buildCreditAmount("trans-3", CreditType.CASH, "USD", 5)).isDone());
+	}
+
+	@Test
+	public void requestsAreRejectedOnceTheQueueIsFull() throws Exception {
+		assertRejectedPastTheQueue(new LockWaitExecutor(1, 1));
+	}
+
+	@Test
+	public void requestsOnVirtualThreadsAreRejectedPastTheSameBound() throws Exception {
+		LockWaitExecutor executor = new LockWaitExecutor(1, 1, true);
+		// falls back to the pool on jvms without virtual threads.
+		Assert.assertEquals(VirtualThreads.isSupported(), executor.isVirtual());
+		assertRejectedPastTheQueue(executor);
+	}
+
+	private static void assertRejectedPastTheQueue(LockWaitExecutor executor) throws Exception {
+		CompletableFuture<Void> blocker = new CompletableFuture<>();
+		executor.submit("cust-1", blocker::join);
+		executor.submit("cust-1", () -> null);
+		try {
+			executor.submit("cust-1", () -> null).get(5, TimeUnit.SECONDS);
+			Assert.fail("the request should have been rejected");
+		} catch (ExecutionException e) {
+			Assert.assertEquals(503, ((ApiException) e.getCause()).getHttpStatus());
+		} finally {
+			blocker.complete(null);
+			executor.shutdown();
+		}
+	}
+
+	private static void assertWaiting(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(100, TimeUnit.MILLISECONDS);
+			Assert.fail("the request should wait for the lock");
+		} catch (TimeoutException e) {
+			// expected.
+		}
+	}
+}
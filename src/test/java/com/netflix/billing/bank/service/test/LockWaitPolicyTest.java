@@ -0,0 +1,164 @@
+package com.netflix.billing.bank.service.test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.BatchItemStatus;
+import com.netflix.billing.bank.controller.wire.BatchOperation;
+import com.netflix.billing.bank.controller.wire.BatchResult;
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.exception.AccountBusyException;
+import com.netflix.billing.bank.service.AccountLockTable;
+import com.netflix.billing.bank.service.AccountSynchronizer;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.LockWaitExecutor;
+import com.netflix.billing.bank.service.LockWaitPolicy;
+import com.netflix.billing.bank.service.LockWaitPolicy.LockWaitStats;
+import com.netflix.billing.bank.service.LockWaitPolicy.Operation;
+import com.netflix.billing.bank.service.Util;
+
+public class LockWaitPolicyTest {
+
+	private AccountLockTable lockTable;
+	private BillingBankStoreImpl bankStore;
+
+	@Before
+	public void setUp() {
+		lockTable = new AccountLockTable(16);
+		bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		bankStore.setLockTable(lockTable);
+		bankStore.setLockWaitExecutor(new LockWaitExecutor(4, 10));
+		// credits wait 100 ms for the lock, one waiter per customer.
+		bankStore.setLockWaitPolicy(new LockWaitPolicy(100, 100, 100, 100, 1));
+	}
+
+	@Test
+	public void operationsWaitingPastTheirDeadlineTimeOut() {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		custActSync.acquireWriteLock();
+		try {
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			Assert.fail("the credit should have timed out");
+		} catch (AccountBusyException e) {
+			Assert.assertEquals(503, e.getHttpStatus());
+			Assert.assertEquals("lock_timeout", e.getErrorCode());
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		Assert.assertNull(bankStore.getCustomerAccountBalance("cust-1"));
+		LockWaitStats stats = bankStore.getLockWaitStats();
+		Assert.assertEquals(1l, (long) stats.getTimedOut().get(Operation.CREDIT));
+		Assert.assertEquals(0, stats.getWaiting());
+	}
+
+	@Test
+	public void operationsPastTheWaitersOfALockAreRejected() throws Exception {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		custActSync.acquireWriteLock();
+		CompletableFuture<CustomerBalance> waiting;
+		try {
+			waiting = bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			CompletableFuture<CustomerBalance> rejected = bankStore.processDebitAsync("cust-1",
+					Util.buildDebitAmount("inv-1", "USD", 5));
+			try {
+				rejected.get(5, TimeUnit.SECONDS);
+				Assert.fail("the debit should have been rejected");
+			} catch (ExecutionException e) {
+				Assert.assertEquals(429, ((AccountBusyException) e.getCause()).getHttpStatus());
+			}
+			Assert.assertEquals(1, bankStore.getLockWaitStats().getWaiting());
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		// the waiter got the lock before its deadline.
+		Assert.assertEquals(10l,
+				(long) waiting.get(5, TimeUnit.SECONDS).getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		LockWaitStats stats = bankStore.getLockWaitStats();
+		Assert.assertEquals(1l, (long) stats.getRejected().get(Operation.DEBIT));
+		Assert.assertEquals(0, stats.getWaiting());
+	}
+
+	@Test
+	public void waitersAreCountedPerCustomerOfAStripe() throws Exception {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		String otherCustomer = null;
+		for (int i = 2; otherCustomer == null; i++) {
+			if (lockTable.lockFor("cust-" + i) == custActSync) {
+				otherCustomer = "cust-" + i;
+			}
+		}
+
+		CompletableFuture<CustomerBalance> waiting;
+		CompletableFuture<CustomerBalance> otherWaiting;
+		custActSync.acquireWriteLock();
+		try {
+			waiting = bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			try {
+				bankStore.processDebitAsync("cust-1", Util.buildDebitAmount("inv-1", "USD", 5)).get(5,
+						TimeUnit.SECONDS);
+				Assert.fail("the debit should have been rejected");
+			} catch (ExecutionException e) {
+				Assert.assertEquals(429, ((AccountBusyException) e.getCause()).getHttpStatus());
+			}
+			// the waiter slot of cust-1 is taken, not the one of the other customer.
+			otherWaiting = bankStore.processCreditAsync(otherCustomer,
+					Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 20));
+			Assert.assertEquals(1, custActSync.getWaiterCount("cust-1"));
+			Assert.assertEquals(1, custActSync.getWaiterCount(otherCustomer));
+			Assert.assertEquals(2, bankStore.getLockWaitStats().getWaiting());
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		Assert.assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(20l, (long) otherWaiting.get(5, TimeUnit.SECONDS).getBalanceAmounts()
+				.get(CreditType.CASH).get(0).getAmount());
+		Assert.assertEquals(0, custActSync.getWaitingCustomerCount());
+		Assert.assertEquals(1l, (long) bankStore.getLockWaitStats().getRejected().get(Operation.DEBIT));
+	}
+
+	@Test
+	public void batchOperationsOfABusyCustomerFail() throws Exception {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		Thread holder = new Thread(() -> {
+			custActSync.acquireWriteLock();
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				custActSync.releaseWriteLock();
+			}
+		});
+		holder.start();
+		while (!custActSync.isWriteLocked()) {
+			Thread.yield();
+		}
+		// another customer, on another stripe.
+		String otherCustomer = "cust-2";
+		Assert.assertNotSame(custActSync, lockTable.lockFor(otherCustomer));
+
+		BatchResult result = bankStore.processBatch(Arrays.asList(
+				BatchOperation.credit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10)),
+				BatchOperation.credit(otherCustomer, Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 10))));
+
+		Assert.assertEquals(BatchItemStatus.FAILED, result.getResults().get(0).getStatus());
+		Assert.assertEquals(BatchItemStatus.APPLIED, result.getResults().get(1).getStatus());
+		Assert.assertNull(bankStore.getCustomerAccountBalance("cust-1"));
+		Assert.assertEquals(1l, (long) bankStore.getLockWaitStats().getTimedOut().get(Operation.BATCH));
+		holder.join();
+	}
+}
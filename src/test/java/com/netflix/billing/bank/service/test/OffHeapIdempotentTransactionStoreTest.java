@@ -0,0 +1,77 @@
+package com.netflix.billing.bank.service.test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionStatus;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.OffHeapIdempotentTransactionStore;
+
+public class OffHeapIdempotentTransactionStoreTest {
+
+	private static final Instant START = Instant.parse("2026-01-01T00:00:00.123456789Z");
+
+	@Test
+	public void keysAreFoundAfterTheTablesGrow() {
+		OffHeapIdempotentTransactionStore store = new OffHeapIdempotentTransactionStore(4, 2);
+		for (int i = 0; i < 10_000; i++) {
+			Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("cust-" + (i % 100), "trans-" + i)));
+		}
+		for (int i = 0; i < 10_000; i++) {
+			Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("cust-" + (i % 100), "trans-" + i)));
+		}
+		Assert.assertEquals(10_000, store.size());
+
+		// same ids, different customer, credit type or kind of transaction.
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("cust-1", "trans-0")));
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(new BankingTransaction(
+				TransactionKey.forCredit("cust-0", CreditType.GIFTCARD, "trans-0"), TransactionType.CREDIT, START)));
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(new BankingTransaction(
+				TransactionKey.forDebit("cust-0", "trans-0"), TransactionType.DEBIT, START)));
+		Assert.assertEquals(10_003, store.size());
+
+		store.clearAllRequests();
+		Assert.assertEquals(0, store.size());
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("cust-0", "trans-0")));
+	}
+
+	@Test
+	public void transactionsAreReadBackWithTheirTimeAndStatus() {
+		OffHeapIdempotentTransactionStore store = new OffHeapIdempotentTransactionStore(2, 2);
+		BankingTransaction credit = credit("cust-1", "trans-1");
+		BankingTransaction debit = new BankingTransaction(TransactionKey.forDebit("cust-1", "inv-1"),
+				TransactionType.DEBIT, START.plusSeconds(5));
+		store.recordTransactionIfNotAvailable(credit);
+		store.recordTransactionIfNotAvailable(debit);
+		debit.setStatus(TransactionStatus.FAILURE);
+		store.updateStatus(debit);
+
+		BankingTransaction found = store.getCurTransaction(credit.getId(), TransactionType.CREDIT);
+		Assert.assertEquals(TransactionType.CREDIT, found.getTransactionType());
+		Assert.assertEquals(START, found.getTransactionTime());
+		Assert.assertEquals(TransactionStatus.RECEIVED, found.getStatus());
+		Assert.assertEquals(TransactionStatus.FAILURE,
+				store.getCurTransaction(debit.getId(), TransactionType.DEBIT).getStatus());
+		Assert.assertNull(store.getCurTransaction(TransactionKey.forDebit("cust-1", "inv-2"), TransactionType.DEBIT));
+
+		Map<TransactionKey, BankingTransaction> walked = new HashMap<>();
+		store.forEachTransaction(transaction -> walked.put(transaction.getId(), transaction));
+		Assert.assertEquals(2, walked.size());
+		Assert.assertEquals(START.plusSeconds(5), walked.get(debit.getId()).getTransactionTime());
+		Assert.assertEquals(TransactionType.DEBIT, walked.get(debit.getId()).getTransactionType());
+		Assert.assertEquals(TransactionStatus.FAILURE, walked.get(debit.getId()).getStatus());
+		Assert.assertEquals(TransactionType.CREDIT, walked.get(credit.getId()).getTransactionType());
+	}
+
+	private static BankingTransaction credit(String customerId, String transactionId) {
+		return new BankingTransaction(TransactionKey.forCredit(customerId, CreditType.CASH, transactionId),
+				TransactionType.CREDIT, START);
+	}
+}
@@ -0,0 +1,40 @@
+package com.netflix.billing.bank.service.test;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.RequestAuditLog;
+import com.netflix.billing.bank.service.RequestAuditLog.AuditedRequest;
+import com.netflix.billing.bank.service.Util;
+
+public class RequestAuditLogTest {
+
+	@Test
+	public void disabledAuditLogCapturesNothing() {
+		RequestAuditLog auditLog = new RequestAuditLog(false, 1, 16);
+		auditLog.record("cust-123", TransactionType.CREDIT,
+				Util.buildCreditAmount("trans-123", CreditType.GIFTCARD, "USD", 10));
+
+		Assert.assertTrue(auditLog.getCapturedRequests().isEmpty());
+	}
+
+	@Test
+	public void sampledRequestsAreKeptInABoundedBuffer() {
+		RequestAuditLog auditLog = new RequestAuditLog(true, 2, 3);
+		for (int i = 0; i < 10; i++) {
+			auditLog.record("cust-123", TransactionType.DEBIT, Util.buildDebitAmount("inv-" + i, "USD", 10));
+		}
+
+		// requests 0, 2, 4, 6 and 8 are sampled, only the last 3 fit in the buffer.
+		List<AuditedRequest> capturedRequests = auditLog.getCapturedRequests();
+		Assert.assertEquals(3, capturedRequests.size());
+		Assert.assertTrue(capturedRequests.get(0).getRequest().contains("\"inv-4\""));
+		Assert.assertTrue(capturedRequests.get(1).getRequest().contains("\"inv-6\""));
+		Assert.assertTrue(capturedRequests.get(2).getRequest().contains("\"inv-8\""));
+		Assert.assertEquals(TransactionType.DEBIT, capturedRequests.get(2).getTransactionType());
+	}
+}
@@ -0,0 +1,88 @@
+package com.netflix.billing.bank.service.test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.WindowedIdempotentTransactionStore;
+
+public class WindowedIdempotentTransactionStoreTest {
+
+	private static final Instant START = Instant.parse("2026-01-01T00:00:00Z");
+
+	@Test
+	public void duplicatesAreDetectedAcrossTheGenerationsOfTheWindow() {
+		// 10 generations of one day.
+		WindowedIdempotentTransactionStore store = new WindowedIdempotentTransactionStore(
+				Duration.ofDays(10).getSeconds(), 10, 0);
+		for (int day = 0; day < 10; day++) {
+			Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-" + day, START.plus(Duration.ofDays(day)))));
+		}
+		Assert.assertEquals(10, store.getLiveGenerations());
+
+		Instant now = START.plus(Duration.ofDays(9));
+		for (int day = 0; day < 10; day++) {
+			Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("trans-" + day, now)));
+			Assert.assertNotNull(store.getCurTransaction(
+					TransactionKey.forCredit("cust-1", CreditType.CASH, "trans-" + day), TransactionType.CREDIT));
+		}
+		// same id, different kind of transaction.
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(debit("trans-0", now)));
+		Assert.assertEquals(11, store.getKeyCount());
+	}
+
+	@Test
+	public void expiredGenerationsAreDropped() {
+		WindowedIdempotentTransactionStore store = new WindowedIdempotentTransactionStore(
+				Duration.ofDays(10).getSeconds(), 10, 0);
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-1", START)));
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-2", START.plus(Duration.ofDays(5)))));
+
+		// still in the window 10 days later.
+		Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("trans-1", START.plus(Duration.ofDays(10)))));
+
+		// 11 days later the first generation is gone.
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-3", START.plus(Duration.ofDays(11)))));
+		Assert.assertNull(store.getCurTransaction(TransactionKey.forCredit("cust-1", CreditType.CASH, "trans-1"),
+				TransactionType.CREDIT));
+		Assert.assertEquals(2, store.getKeyCount());
+
+		// transactions older than the window are not remembered.
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-4", START)));
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-4", START)));
+		Assert.assertEquals(2, store.getKeyCount());
+	}
+
+	@Test
+	public void oldestGenerationsAreDroppedOverTheMaximumNumberOfKeys() {
+		WindowedIdempotentTransactionStore store = new WindowedIdempotentTransactionStore(
+				Duration.ofDays(10).getSeconds(), 10, 5);
+		for (int day = 0; day < 3; day++) {
+			for (int i = 0; i < 2; i++) {
+				store.recordTransactionIfNotAvailable(credit("trans-" + day + "-" + i, START.plus(Duration.ofDays(day))));
+			}
+		}
+
+		// the first day is dropped as a whole, the other days are kept.
+		Assert.assertEquals(4, store.getKeyCount());
+		Assert.assertEquals(2, store.getLiveGenerations());
+		Assert.assertTrue(store.recordTransactionIfNotAvailable(credit("trans-0-0", START.plus(Duration.ofDays(2)))));
+		Assert.assertFalse(store.recordTransactionIfNotAvailable(credit("trans-1-0", START.plus(Duration.ofDays(2)))));
+	}
+
+	private static BankingTransaction credit(String transactionId, Instant transactionTime) {
+		return new BankingTransaction(TransactionKey.forCredit("cust-1", CreditType.CASH, transactionId),
+				TransactionType.CREDIT, transactionTime);
+	}
+
+	private static BankingTransaction debit(String invoiceId, Instant transactionTime) {
+		return new BankingTransaction(TransactionKey.forDebit("cust-1", invoiceId), TransactionType.DEBIT,
+				transactionTime);
+	}
+}
@@ -0,0 +1,177 @@
+package com.netflix.billing.bank.service.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.exception.AccountBusyException;
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.service.AccountLockTable;
+import com.netflix.billing.bank.service.AccountSynchronizer;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.LockWaitExecutor;
+import com.netflix.billing.bank.service.LockWaitPolicy;
+import com.netflix.billing.bank.service.LockWaitPolicy.LockWaitStats;
+import com.netflix.billing.bank.service.LockWaitPolicy.Operation;
+import com.netflix.billing.bank.service.Util;
+
+public class WriteCombiningTest {
+
+	private AccountLockTable lockTable;
+	private BillingBankStoreImpl bankStore;
+
+	@Before
+	public void setUp() {
+		lockTable = new AccountLockTable(16);
+		bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		bankStore.setLockTable(lockTable);
+		bankStore.setLockWaitExecutor(new LockWaitExecutor(4, 10));
+		bankStore.setLockWaitPolicy(new LockWaitPolicy(5000, 5000, 5000, 5000, 0, 64));
+	}
+
+	@Test
+	public void queuedWritesAreAppliedInArrivalOrderByTheHolder() throws Exception {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		List<CompletableFuture<CustomerBalance>> writes = new ArrayList<>();
+		custActSync.acquireWriteLock();
+		try {
+			writes.add(bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10)));
+			// more than the balance once the first credit is applied.
+			writes.add(bankStore.processDebitAsync("cust-1", Util.buildDebitAmount("inv-1", "USD", 15)));
+			writes.add(bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 10)));
+			writes.add(bankStore.processDebitAsync("cust-1", Util.buildDebitAmount("inv-2", "USD", 15)));
+			for (CompletableFuture<CustomerBalance> write : writes) {
+				Assert.assertFalse(write.isDone());
+			}
+			Assert.assertEquals(4, bankStore.getLockWaitStats().getWaiting());
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		Assert.assertNotNull(writes.get(0).get(5, TimeUnit.SECONDS));
+		try {
+			writes.get(1).get(5, TimeUnit.SECONDS);
+			Assert.fail("the first debit should have failed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof ApiException);
+		}
+		Assert.assertNotNull(writes.get(2).get(5, TimeUnit.SECONDS));
+		CustomerBalance balance = writes.get(3).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(5l, (long) balance.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+		LockWaitStats stats = bankStore.getLockWaitStats();
+		Assert.assertEquals(1l, stats.getCombinedRounds());
+		Assert.assertEquals(4l, stats.getCombinedWrites());
+		Assert.assertEquals(0, stats.getWaiting());
+	}
+
+	@Test
+	public void blockingWritesDoNotOvertakeTheQueuedWrites() throws Exception {
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		// the only lock wait thread is busy, the combiner of the queued writes waits
+		// for it while the blocking writers take the lock.
+		LockWaitExecutor lockWaitExecutor = new LockWaitExecutor(1, 10);
+		bankStore.setLockWaitExecutor(lockWaitExecutor);
+		CountDownLatch busy = new CountDownLatch(1);
+		lockWaitExecutor.submit("cust-0", () -> {
+			try {
+				return busy.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		});
+		CompletableFuture<CustomerBalance> credit;
+		CompletableFuture<CustomerBalance> queuedDebit;
+		CompletableFuture<CustomerBalance> debit = new CompletableFuture<>();
+		custActSync.acquireWriteLock();
+		try {
+			credit = bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			queuedDebit = bankStore.processDebitAsync("cust-1", Util.buildDebitAmount("inv-1", "USD", 3));
+			// fails unless the queued writes are applied first.
+			runBlocking(debit, () -> bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-2", "USD", 5)));
+			awaitWaiters(custActSync, "cust-1", 3);
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		CustomerBalance balance;
+		try {
+			balance = debit.get(5, TimeUnit.SECONDS);
+		} finally {
+			busy.countDown();
+		}
+		Assert.assertNotNull(credit.get(5, TimeUnit.SECONDS));
+		Assert.assertNotNull(queuedDebit.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals(2l, (long) balance.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		// the debits are applied in their arrival order.
+		DebitHistory debitHistory = bankStore.debitHistory("cust-1");
+		Assert.assertEquals(2, debitHistory.getDebits().size());
+		Assert.assertEquals("inv-1", debitHistory.getDebits().get(0).getInvoiceId());
+		Assert.assertEquals("inv-2", debitHistory.getDebits().get(1).getInvoiceId());
+		Assert.assertEquals(2l, bankStore.getLockWaitStats().getCombinedWrites());
+		Assert.assertEquals(0, bankStore.getLockWaitStats().getWaiting());
+	}
+
+	@Test
+	public void queuedWritesTimeOutWhenTheLockIsHeldPastTheirDeadline() throws Exception {
+		bankStore.setLockWaitPolicy(new LockWaitPolicy(100, 100, 100, 100, 0, 64));
+		AccountSynchronizer custActSync = lockTable.lockFor("cust-1");
+		CompletableFuture<CustomerBalance> credit;
+		custActSync.acquireWriteLock();
+		try {
+			credit = bankStore.processCreditAsync("cust-1",
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			try {
+				credit.get(5, TimeUnit.SECONDS);
+				Assert.fail("the credit should have timed out");
+			} catch (ExecutionException e) {
+				Assert.assertEquals("lock_timeout", ((AccountBusyException) e.getCause()).getErrorCode());
+			}
+		} finally {
+			custActSync.releaseWriteLock();
+		}
+
+		Assert.assertNull(bankStore.getCustomerAccountBalance("cust-1"));
+		Assert.assertFalse(custActSync.hasPendingWrites());
+		LockWaitStats stats = bankStore.getLockWaitStats();
+		Assert.assertEquals(1l, (long) stats.getTimedOut().get(Operation.CREDIT));
+		Assert.assertEquals(0l, stats.getCombinedWrites());
+		Assert.assertEquals(0, stats.getWaiting());
+	}
+
+	private static void runBlocking(CompletableFuture<CustomerBalance> result, Supplier<CustomerBalance> write) {
+		new Thread(() -> {
+			try {
+				result.complete(write.get());
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}).start();
+	}
+
+	private static void awaitWaiters(AccountSynchronizer custActSync, String customerId, int waiters)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (custActSync.getWaiterCount(customerId) < waiters && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(waiters, custActSync.getWaiterCount(customerId));
+	}
+}
@@ -0,0 +1,229 @@
+package com.netflix.billing.bank.snapshot.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.service.AccountIdempotentTransactionStore;
+import com.netflix.billing.bank.service.BillingBankStore;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.IdempotentTransactionStore;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.ShardedBillingBankStore;
+import com.netflix.billing.bank.service.SnapshotService;
+import com.netflix.billing.bank.service.Util;
+import com.netflix.billing.bank.snapshot.AccountSnapshotStore;
+import com.netflix.billing.bank.snapshot.SnapshotWriter;
+import com.netflix.billing.bank.wal.FsyncPolicy;
+import com.netflix.billing.bank.wal.SegmentedWriteAheadLog;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+public class AccountSnapshotStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void bankIsRestoredFromTheSnapshotAndTheLogTail() throws IOException {
+		restoreFromTheSnapshotAndTheLogTail(IdempotentTransactionStoreImpl::new);
+	}
+
+	@Test
+	public void keysKeptByAccountAreRestoredWithTheirAccount() throws IOException {
+		restoreFromTheSnapshotAndTheLogTail(AccountIdempotentTransactionStore::new);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void keysOfAnotherStoreAreNotDroppedByTheAccountStore() throws IOException {
+		Path walDir = folder.newFolder("wal").toPath();
+		AccountSnapshotStore snapshotStore = new AccountSnapshotStore(folder.newFolder("snapshot").toPath());
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			IdempotentTransactionStore requestStore = new IdempotentTransactionStoreImpl();
+			BillingBankStoreImpl bankStore = newBankStore(requestStore, wal, snapshotStore);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			Assert.assertEquals(1, newSnapshotService(bankStore, requestStore, wal, snapshotStore).takeSnapshot());
+		}
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			newBankStore(new AccountIdempotentTransactionStore(), wal, snapshotStore).recover();
+		}
+	}
+
+	private void restoreFromTheSnapshotAndTheLogTail(Supplier<IdempotentTransactionStore> requestStores)
+			throws IOException {
+		Path walDir = folder.newFolder("wal").toPath();
+		AccountSnapshotStore snapshotStore = new AccountSnapshotStore(folder.newFolder("snapshot").toPath());
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			IdempotentTransactionStore requestStore = requestStores.get();
+			BillingBankStoreImpl bankStore = newBankStore(requestStore, wal, snapshotStore);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.GIFTCARD, "USD", 10));
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+			bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+			bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-1", CreditType.CASH, "EUR", 20));
+			int segments = countFiles(walDir);
+
+			Assert.assertEquals(4, newSnapshotService(bankStore, requestStore, wal, snapshotStore).takeSnapshot());
+			Assert.assertTrue(countFiles(walDir) < segments);
+
+			// tail of the log.
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-3", CreditType.PROMOTION, "USD", 20));
+			bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-2", "USD", 5));
+			bankStore.delete("cust-2");
+			bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-2", CreditType.CASH, "EUR", 7));
+		}
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			BillingBankStoreImpl bankStore = newBankStore(requestStores.get(), wal, snapshotStore);
+			bankStore.recover();
+			assertRestored(bankStore);
+		}
+	}
+
+	@Test
+	public void recordsAlreadyInTheSnapshotAreNotAppliedAgain() throws IOException {
+		Path walDir = folder.newFolder("wal").toPath();
+		AccountSnapshotStore snapshotStore = new AccountSnapshotStore(folder.newFolder("snapshot").toPath());
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			IdempotentTransactionStore requestStore = new IdempotentTransactionStoreImpl();
+			ShardedBillingBankStore bankStore = new ShardedBillingBankStore(2, 100);
+			bankStore.setRequestStore(requestStore);
+			bankStore.setWriteAheadLog(wal);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.GIFTCARD, "USD", 10));
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+			bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+			bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-1", CreditType.CASH, "EUR", 20));
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-3", CreditType.PROMOTION, "USD", 20));
+			bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-2", "USD", 5));
+			bankStore.delete("cust-2");
+			bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-2", CreditType.CASH, "EUR", 7));
+
+			// snapshot started before any record, the whole log is replayed on top.
+			try (SnapshotWriter writer = snapshotStore.begin(WriteAheadLog.NO_LSN)) {
+				bankStore.forEachAccount(writer::writeAccount);
+				requestStore.forEachTransaction(writer::writeTransaction);
+				writer.commit();
+			}
+			bankStore.shutdown();
+		}
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			BillingBankStoreImpl bankStore = newBankStore(new IdempotentTransactionStoreImpl(), wal, snapshotStore);
+			bankStore.recover();
+			assertRestored(bankStore);
+		}
+	}
+
+	@Test
+	public void writeBetweenTheAccountsAndTheKeysOfASnapshotStaysIdempotent() throws IOException {
+		Path walDir = folder.newFolder("wal").toPath();
+		AccountSnapshotStore snapshotStore = new AccountSnapshotStore(folder.newFolder("snapshot").toPath());
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			AtomicInteger passes = new AtomicInteger();
+			BillingBankStoreImpl bankStore = new BillingBankStoreImpl() {
+				@Override
+				public void forEachAccount(Consumer<CustomerAccount> visitor) {
+					creditBetweenThePasses(this, passes);
+					super.forEachAccount(visitor);
+				}
+			};
+			IdempotentTransactionStore requestStore = new IdempotentTransactionStoreImpl() {
+				@Override
+				public void forEachTransaction(Consumer<BankingTransaction> action) {
+					creditBetweenThePasses(bankStore, passes);
+					super.forEachTransaction(action);
+				}
+			};
+			bankStore.setRequestStore(requestStore);
+			bankStore.setWriteAheadLog(wal);
+			bankStore.setSnapshotStore(snapshotStore);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			Assert.assertEquals(1, newSnapshotService(bankStore, requestStore, wal, snapshotStore).takeSnapshot());
+		}
+
+		try (SegmentedWriteAheadLog wal = openLog(walDir)) {
+			BillingBankStoreImpl bankStore = newBankStore(new IdempotentTransactionStoreImpl(), wal, snapshotStore);
+			bankStore.recover();
+			CustomerBalance custBal = bankStore.getCustomerAccountBalance("cust-1");
+			Assert.assertEquals(60l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+			// the retry of the credit written between the passes is a duplicate.
+			custBal = bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+			Assert.assertEquals(60l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		}
+	}
+
+	// credits cust-1 at the start of the second pass of the snapshot.
+	private static void creditBetweenThePasses(BillingBankStore bankStore, AtomicInteger passes) {
+		if (passes.incrementAndGet() == 2) {
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+		}
+	}
+
+	private static void assertRestored(BillingBankStore bankStore) {
+		CustomerBalance custBal = bankStore.getCustomerAccountBalance("cust-1");
+		Assert.assertNull(custBal.getBalanceAmounts().get(CreditType.GIFTCARD));
+		Assert.assertEquals(15l, (long) custBal.getBalanceAmounts().get(CreditType.PROMOTION).get(0).getAmount());
+		Assert.assertEquals(45l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+		custBal = bankStore.getCustomerAccountBalance("cust-2");
+		Assert.assertEquals(7l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+		DebitHistory debitHistory = bankStore.debitHistory("cust-1");
+		Assert.assertEquals(3, debitHistory.getDebits().size());
+		Assert.assertEquals(2, bankStore.debitHistoryOfInvoice("cust-1", "inv-1").getDebits().size());
+
+		// idempotency keys are restored, the credits and debits are not applied
+		// again.
+		bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+		custBal = bankStore.processCredit("cust-1",
+				Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+		Assert.assertEquals(45l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+
+		// the remaining credits are consumed in the same order.
+		custBal = bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-3", "USD", 20));
+		Assert.assertNull(custBal.getBalanceAmounts().get(CreditType.PROMOTION));
+		Assert.assertEquals(40l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+	}
+
+	private static SegmentedWriteAheadLog openLog(Path dir) {
+		return new SegmentedWriteAheadLog(dir, FsyncPolicy.BATCHED, 100, 64, 128);
+	}
+
+	private static BillingBankStoreImpl newBankStore(IdempotentTransactionStore requestStore, WriteAheadLog wal,
+			AccountSnapshotStore snapshotStore) {
+		BillingBankStoreImpl bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(requestStore);
+		bankStore.setWriteAheadLog(wal);
+		bankStore.setSnapshotStore(snapshotStore);
+		return bankStore;
+	}
+
+	private static SnapshotService newSnapshotService(BillingBankStore bankStore,
+			IdempotentTransactionStore requestStore, WriteAheadLog wal, AccountSnapshotStore snapshotStore) {
+		return new SnapshotService(bankStore, requestStore, wal, snapshotStore, 0l, false);
+	}
+
+	private static int countFiles(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return (int) files.count();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.netflix.billing.bank.wal.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.netflix.billing.bank.controller.wire.CreditType;
+import com.netflix.billing.bank.controller.wire.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.DebitHistory;
+import com.netflix.billing.bank.exception.ApiException;
+import com.netflix.billing.bank.model.BankingTransaction;
+import com.netflix.billing.bank.model.CustomerAccount;
+import com.netflix.billing.bank.model.TransactionKey;
+import com.netflix.billing.bank.model.TransactionType;
+import com.netflix.billing.bank.service.BillingBankStoreImpl;
+import com.netflix.billing.bank.service.CustomerAccountProcessor;
+import com.netflix.billing.bank.service.IdempotentTransactionStoreImpl;
+import com.netflix.billing.bank.service.Util;
+import com.netflix.billing.bank.wal.FsyncPolicy;
+import com.netflix.billing.bank.wal.SegmentedWriteAheadLog;
+import com.netflix.billing.bank.wal.WalRecord;
+import com.netflix.billing.bank.wal.WriteAheadLog;
+
+public class SegmentedWriteAheadLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordsAreReplayedInOrderAfterReopening() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			long lastLsn = WriteAheadLog.NO_LSN;
+			for (int i = 0; i < 100; i++) {
+				lastLsn = wal.append(credit("cust-" + (i % 3), "trans-" + i, 10 + i));
+			}
+			wal.append(WalRecord.delete("cust-0"));
+			wal.awaitDurable(lastLsn + 1);
+			Assert.assertEquals(101, wal.getDurableLsn());
+		}
+
+		List<WalRecord> records = new ArrayList<>();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			Assert.assertEquals(101, wal.getDurableLsn());
+			Assert.assertEquals(101, wal.replay(WriteAheadLog.NO_LSN, records::add));
+			Assert.assertEquals(102, wal.append(WalRecord.delete("cust-1")));
+		}
+
+		for (int i = 0; i < 100; i++) {
+			WalRecord record = records.get(i);
+			Assert.assertEquals(i + 1, record.getLsn());
+			Assert.assertEquals(WalRecord.Type.CREDIT, record.getType());
+			Assert.assertEquals("cust-" + (i % 3), record.getCustomerId());
+			Assert.assertEquals("trans-" + i, record.getExternalId());
+			Assert.assertEquals(CreditType.CASH, record.getCreditType());
+			Assert.assertEquals("USD", record.getCurrency());
+			Assert.assertEquals(10 + i, record.getAmount());
+		}
+		Assert.assertEquals(WalRecord.Type.DELETE, records.get(100).getType());
+	}
+
+	@Test
+	public void tornRecordAtTheEndIsTruncated() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			for (int i = 0; i < 10; i++) {
+				wal.awaitDurable(wal.append(credit("cust-1", "trans-" + i, 10)));
+			}
+		}
+		// half written frame of the next record.
+		Path segment = segments(dir).get(0);
+		Files.write(segment, new byte[] { 0, 0, 0, 42, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			Assert.assertEquals(10, wal.getDurableLsn());
+			wal.awaitDurable(wal.append(credit("cust-1", "trans-10", 10)));
+		}
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			Assert.assertEquals(11, wal.replay(WriteAheadLog.NO_LSN, record -> {
+			}));
+		}
+	}
+
+	@Test
+	public void segmentsRollAndReplayStartsFromTheLsn() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 256)) {
+			for (int i = 0; i < 50; i++) {
+				wal.awaitDurable(wal.append(credit("cust-1", "trans-" + i, 10)));
+			}
+		}
+		Assert.assertTrue(segments(dir).size() > 1);
+
+		List<Long> lsns = new ArrayList<>();
+		try (SegmentedWriteAheadLog wal = open(dir, 256)) {
+			wal.replay(41, record -> lsns.add(record.getLsn()));
+		}
+		Assert.assertEquals(10, lsns.size());
+		Assert.assertEquals(41l, (long) lsns.get(0));
+		Assert.assertEquals(50l, (long) lsns.get(9));
+	}
+
+	@Test
+	public void bankIsRebuiltFromTheLog() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			BillingBankStoreImpl bankStore = newBankStore(wal);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.GIFTCARD, "USD", 10));
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 50));
+			bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+			bankStore.processCredit("cust-2", Util.buildCreditAmount("trans-1", CreditType.CASH, "EUR", 20));
+			bankStore.delete("cust-2");
+		}
+
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			BillingBankStoreImpl bankStore = newBankStore(wal);
+			bankStore.recover();
+
+			CustomerBalance custBal = bankStore.getCustomerAccountBalance("cust-1");
+			Assert.assertNull(custBal.getBalanceAmounts().get(CreditType.GIFTCARD));
+			Assert.assertEquals(45l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+			Assert.assertNull(bankStore.getCustomerAccountBalance("cust-2"));
+
+			DebitHistory debitHistory = bankStore.debitHistory("cust-1");
+			Assert.assertEquals(2, debitHistory.getDebits().size());
+			Assert.assertEquals("trans-1", debitHistory.getDebits().get(0).getTransactionId());
+			Assert.assertEquals("trans-2", debitHistory.getDebits().get(1).getTransactionId());
+
+			// idempotency keys are rebuilt too.
+			custBal = bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+			Assert.assertEquals(45l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		}
+	}
+
+	@Test
+	public void duplicatesWaitForTheLastLsnOfTheAccount() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			CustomerAccountProcessor accountProcessor = new CustomerAccountProcessor(
+					new IdempotentTransactionStoreImpl(), wal);
+			CustomerAccount custAccount = new CustomerAccount("cust-1");
+			long creditLsn = accountProcessor.processCredit(custAccount,
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+			Assert.assertEquals(creditLsn, accountProcessor.processCredit(custAccount,
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50)));
+
+			long debitLsn = accountProcessor.processDebit(custAccount, Util.buildDebitAmount("inv-1", "USD", 15));
+			Assert.assertTrue(debitLsn > creditLsn);
+			// a retry of the credit waits for the debit too, it is never acknowledged
+			// before the original.
+			Assert.assertEquals(debitLsn, accountProcessor.processCredit(custAccount,
+					Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50)));
+			Assert.assertEquals(debitLsn,
+					accountProcessor.processDebit(custAccount, Util.buildDebitAmount("inv-1", "USD", 15)));
+		}
+	}
+
+	@Test
+	public void duplicateIsNotAcknowledgedBeforeTheOriginalIsDurable() {
+		HeldWriteAheadLog wal = new HeldWriteAheadLog();
+		BillingBankStoreImpl bankStore = newBankStore(wal);
+
+		CompletableFuture<CustomerBalance> original = bankStore.processCreditAsync("cust-1",
+				Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+		CompletableFuture<CustomerBalance> retry = bankStore.processCreditAsync("cust-1",
+				Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 50));
+		Assert.assertFalse(original.isDone());
+		Assert.assertFalse(retry.isDone());
+
+		wal.makeDurable();
+		Assert.assertEquals(50l, (long) retry.join().getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		Assert.assertTrue(original.isDone());
+	}
+
+	@Test
+	public void rejectedDebitStaysADuplicateAfterRestart() throws IOException {
+		Path dir = folder.newFolder("wal").toPath();
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			BillingBankStoreImpl bankStore = newBankStore(wal);
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-1", CreditType.CASH, "USD", 10));
+			try {
+				bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+				Assert.fail("the debit should have been rejected");
+			} catch (ApiException e) {
+				// not enough credits.
+			}
+		}
+
+		try (SegmentedWriteAheadLog wal = open(dir, 1 << 20)) {
+			BillingBankStoreImpl bankStore = newBankStore(wal);
+			bankStore.recover();
+			bankStore.processCredit("cust-1", Util.buildCreditAmount("trans-2", CreditType.CASH, "USD", 100));
+
+			// the invoice id was kept with the rejection, same as without the restart.
+			CustomerBalance custBal = bankStore.processDebit("cust-1", Util.buildDebitAmount("inv-1", "USD", 15));
+			Assert.assertEquals(110l, (long) custBal.getBalanceAmounts().get(CreditType.CASH).get(0).getAmount());
+		}
+	}
+
+	private SegmentedWriteAheadLog open(Path dir, long segmentBytes) {
+		return new SegmentedWriteAheadLog(dir, FsyncPolicy.BATCHED, 100, 64, segmentBytes);
+	}
+
+	private static BillingBankStoreImpl newBankStore(WriteAheadLog wal) {
+		BillingBankStoreImpl bankStore = new BillingBankStoreImpl();
+		bankStore.setRequestStore(new IdempotentTransactionStoreImpl());
+		bankStore.setWriteAheadLog(wal);
+		return bankStore;
+	}
+
+	/**
+	 * Log whose records only become durable when the test says so.
+	 */
+	private static class HeldWriteAheadLog implements WriteAheadLog {
+
+		private final AtomicLong lastLsn = new AtomicLong();
+
+		private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+		@Override
+		public long append(WalRecord record) {
+			return lastLsn.incrementAndGet();
+		}
+
+		@Override
+		public CompletableFuture<Void> whenDurable(long lsn) {
+			return lsn == NO_LSN ? CompletableFuture.completedFuture(null) : durable;
+		}
+
+		@Override
+		public long replay(long fromLsn, Consumer<WalRecord> consumer) {
+			return 0l;
+		}
+
+		@Override
+		public long getDurableLsn() {
+			return durable.isDone() ? lastLsn.get() : NO_LSN;
+		}
+
+		@Override
+		public int truncateBefore(long lsn) {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		void makeDurable() {
+			durable.complete(null);
+		}
+	}
+
+	private static WalRecord credit(String customerId, String transactionId, long amount) {
+		BankingTransaction creditTransaction = new BankingTransaction(
+				TransactionKey.forCredit(customerId, CreditType.CASH, transactionId), TransactionType.CREDIT,
+				Instant.now());
+		return WalRecord.credit(creditTransaction, CreditType.CASH, "USD", amount);
+	}
+
+	private static List<Path> segments(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+}